@@ -0,0 +1,57 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks of address decoding and the SOCKS5 UDP request header encoding and decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final int PAYLOAD_SIZE = 512;
+
+    private final byte[] ipv4 = {(byte) 192, (byte) 168, 1, 42};
+    private ByteBuffer encodedDatagram;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        buffer = ByteBuffer.allocate(SocksConstants.DEFAULT_BUF_SIZE);
+        encodedDatagram = ByteBuffer.allocate(10 + PAYLOAD_SIZE);
+        UdpHeaderCodec.writeHeader(encodedDatagram, 10, ipv4, 9999);
+    }
+
+    @Benchmark
+    public InetAddress calcInetAddress() {
+        return Utils.calcInetAddress(ipv4);
+    }
+
+    @Benchmark
+    public int encodeUdpHeader() {
+        return UdpHeaderCodec.writeHeader(buffer, UdpHeaderCodec.HEADER_ROOM, ipv4, 9999);
+    }
+
+    @Benchmark
+    public int decodeUdpHeader() {
+        final int headerLength = UdpHeaderCodec.headerLength(encodedDatagram, 0, encodedDatagram.capacity());
+        return headerLength + UdpHeaderCodec.port(encodedDatagram, 0, headerLength);
+    }
+}
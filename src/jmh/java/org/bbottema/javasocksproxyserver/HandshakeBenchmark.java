@@ -0,0 +1,122 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.bbottema.javasocksproxyserver.auth.UsernamePasswordAuthenticator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ServerSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.bbottema.javasocksproxyserver.LoopbackServers.LOOPBACK;
+
+/**
+ * Full handshake rate: connect to the proxy, negotiate, CONNECT to a local sink and close again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    private static final String USERNAME = "benchmark";
+    private static final String PASSWORD = "secret";
+
+    @Param({"SOCKS4", "SOCKS5_NO_AUTH", "SOCKS5_USER_PASS"})
+    public String protocol;
+
+    private SyncSocksServer server;
+    private ServerSocket sink;
+    private int proxyPort;
+    private byte[] request;
+    private int replyLength;
+    private int statusIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        sink = LoopbackServers.startTcpSink();
+        server = new SyncSocksServer();
+        proxyPort = Utils.getFreePort();
+        server.start(proxyPort, ServerSocketFactory.getDefault(), new UsernamePasswordAuthenticator(!protocol.equals("SOCKS5_USER_PASS")) {
+            @Override
+            public boolean validate(String username, String password) {
+                return USERNAME.equals(username) && PASSWORD.equals(password);
+            }
+        });
+        request = pipelinedRequest();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public int handshake() throws IOException {
+        try (Socket socket = new Socket(LOOPBACK, proxyPort)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(request);
+            byte[] replies = new byte[replyLength];
+            LoopbackServers.readFully(in, replies, replyLength);
+            return replies[statusIndex];
+        }
+    }
+
+    /**
+     * All handshake messages in one go, and the replies are read back in one go as well: this measures the server, not round trips.
+     */
+    private byte[] pipelinedRequest() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] ip = LOOPBACK.getAddress();
+        int port = sink.getLocalPort();
+        if (protocol.equals("SOCKS4")) {
+            bytes.write(4);
+            bytes.write(1);
+            bytes.write(port >> 8);
+            bytes.write(port);
+            bytes.write(ip, 0, 4);
+            bytes.write(0);
+            replyLength = 8;
+            statusIndex = 1;
+            return bytes.toByteArray();
+        }
+        if (protocol.equals("SOCKS5_USER_PASS")) {
+            bytes.write(new byte[]{5, 1, 2}, 0, 3);
+            bytes.write(1);
+            bytes.write(USERNAME.length());
+            bytes.write(USERNAME.getBytes(UTF_8), 0, USERNAME.length());
+            bytes.write(PASSWORD.length());
+            bytes.write(PASSWORD.getBytes(UTF_8), 0, PASSWORD.length());
+            replyLength = 2 + 2 + 10;
+        } else {
+            bytes.write(new byte[]{5, 1, 0}, 0, 3);
+            replyLength = 2 + 10;
+        }
+        bytes.write(new byte[]{5, 1, 0, 1}, 0, 4);
+        bytes.write(ip, 0, 4);
+        bytes.write(port >> 8);
+        bytes.write(port);
+        statusIndex = replyLength - 9;
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,114 @@
+package org.bbottema.javasocksproxyserver;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Local targets for the benchmarks, so everything runs on loopback.
+ */
+final class LoopbackServers {
+
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private LoopbackServers() {
+    }
+
+    /**
+     * TCP server echoing everything back on every accepted connection.
+     */
+    static ServerSocket startTcpEcho() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1024, LOOPBACK);
+        daemon("tcp-echo", () -> {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                daemon("tcp-echo-connection", () -> {
+                    try (Socket s = socket) {
+                        InputStream in = s.getInputStream();
+                        OutputStream out = s.getOutputStream();
+                        byte[] buffer = new byte[64 * 1024];
+                        int len;
+                        while ((len = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, len);
+                        }
+                    }
+                });
+            }
+        });
+        return serverSocket;
+    }
+
+    /**
+     * TCP server that accepts connections and closes them again as soon as the client does.
+     */
+    static ServerSocket startTcpSink() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1024, LOOPBACK);
+        daemon("tcp-sink", () -> {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                daemon("tcp-sink-connection", () -> {
+                    try (Socket s = socket) {
+                        //noinspection StatementWithEmptyBody
+                        while (s.getInputStream().read() >= 0) {
+                            // wait for the client to go away
+                        }
+                    }
+                });
+            }
+        });
+        return serverSocket;
+    }
+
+    static DatagramSocket startUdpEcho() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0, LOOPBACK);
+        daemon("udp-echo", () -> {
+            DatagramPacket packet = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+            while (!socket.isClosed()) {
+                packet.setLength(packet.getData().length);
+                socket.receive(packet);
+                socket.send(packet);
+            }
+        });
+        return socket;
+    }
+
+    static void readFully(InputStream in, byte[] buffer, int len) throws IOException {
+        new DataInputStream(in).readFully(buffer, 0, len);
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void daemon(String name, IoRunnable runnable) {
+        Thread thread = new Thread(() -> {
+            try {
+                runnable.run();
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private interface IoRunnable {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,90 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.bbottema.javasocksproxyserver.LoopbackServers.LOOPBACK;
+
+/**
+ * Round trips through an established CONNECT tunnel to a local echo server, for each relay mode and several payload sizes.
+ * Throughput is reported as round trips per second, latency as sampled round trip times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RelayBenchmark {
+
+    @Param({"POLLING", "FULL_DUPLEX", "NIO"})
+    public String relay;
+
+    @Param({"64", "4096", "65536"})
+    public int payloadSize;
+
+    private ServerSocket echoServer;
+    private NioRelayEngine relayEngine;
+    private SyncSocksServer server;
+    private Socket tunnel;
+    private OutputStream out;
+    private InputStream in;
+    private byte[] payload;
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws IOException {
+        echoServer = LoopbackServers.startTcpEcho();
+        server = new SyncSocksServer();
+        if (relay.equals("FULL_DUPLEX")) {
+            server.setFullDuplexRelay(true);
+        } else if (relay.equals("NIO")) {
+            relayEngine = new NioRelayEngine(1);
+            server.setRelayEngine(relayEngine);
+        }
+        int proxyPort = Utils.getFreePort();
+        server.start(proxyPort);
+
+        tunnel = new Socket(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(LOOPBACK, proxyPort)));
+        tunnel.setTcpNoDelay(true);
+        tunnel.connect(echoServer.getLocalSocketAddress());
+        out = tunnel.getOutputStream();
+        in = tunnel.getInputStream();
+        payload = new byte[payloadSize];
+        response = new byte[payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tunnel.close();
+        server.stop();
+        LoopbackServers.closeQuietly(relayEngine);
+        echoServer.close();
+    }
+
+    @Benchmark
+    public byte roundTrip() throws IOException {
+        out.write(payload);
+        LoopbackServers.readFully(in, response, payloadSize);
+        return response[0];
+    }
+}
@@ -0,0 +1,95 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.bbottema.javasocksproxyserver.LoopbackServers.LOOPBACK;
+
+/**
+ * Datagram round trips through a UDP ASSOCIATE relay ({@link Socks5Impl#processUdp()}) to a local UDP echo server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UdpAssociateBenchmark {
+
+    private static final int HEADER_LENGTH = 10; // IPv4 SOCKS5 UDP request header
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private DatagramSocket echoServer;
+    private SyncSocksServer server;
+    private Socket control;
+    private DatagramSocket client;
+    private DatagramPacket request;
+    private DatagramPacket response;
+
+    @Setup
+    public void setUp() throws IOException {
+        echoServer = LoopbackServers.startUdpEcho();
+        server = new SyncSocksServer();
+        int proxyPort = Utils.getFreePort();
+        server.start(proxyPort);
+
+        control = new Socket(LOOPBACK, proxyPort);
+        control.getOutputStream().write(new byte[]{5, 1, 0, 5, 3, 0, 1, 0, 0, 0, 0, 0, 0});
+        byte[] replies = new byte[2 + 10];
+        InputStream in = control.getInputStream();
+        LoopbackServers.readFully(in, replies, replies.length);
+        if (replies[3] != 0) {
+            throw new IllegalStateException("UDP ASSOCIATE refused: " + replies[3]);
+        }
+        InetAddress relayAddress = InetAddress.getByAddress(new byte[]{replies[6], replies[7], replies[8], replies[9]});
+        int relayPort = Utils.calcPort(replies[10], replies[11]);
+
+        byte[] datagram = new byte[HEADER_LENGTH + payloadSize];
+        byte[] target = echoServer.getLocalAddress().getAddress();
+        datagram[3] = 1;
+        System.arraycopy(target, 0, datagram, 4, 4);
+        datagram[8] = (byte) (echoServer.getLocalPort() >> 8);
+        datagram[9] = (byte) echoServer.getLocalPort();
+
+        client = new DatagramSocket(0, LOOPBACK);
+        client.setSoTimeout(1000);
+        request = new DatagramPacket(datagram, datagram.length, relayAddress, relayPort);
+        response = new DatagramPacket(new byte[HEADER_LENGTH + payloadSize + 64], HEADER_LENGTH + payloadSize + 64);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        control.close();
+        server.stop();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        client.send(request);
+        response.setLength(response.getData().length);
+        client.receive(response);
+        return response.getLength();
+    }
+}
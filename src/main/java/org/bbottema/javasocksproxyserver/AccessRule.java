@@ -0,0 +1,130 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+
+/**
+ * The conditions of an allow or deny rule in {@link AccessRules}. A rule applies to a request if it meets all of its conditions;
+ * conditions left out match anything.
+ * <p>
+ * A destination is either a network, which matches requests for an IP address, or a domain suffix, which matches requests for
+ * that domain or any of its subdomains. A network is also checked against the addresses a requested domain resolves to, see
+ * {@link AccessRules}.
+ */
+@Value
+public class AccessRule {
+
+	public static final int ANY_PORT = -1;
+
+	private static final AccessRule ANY = new AccessRule(null, null, null, ANY_PORT, ANY_PORT, null);
+
+	@Nullable
+	String clientNetwork;
+	@Nullable
+	String destinationNetwork;
+	@Nullable
+	String destinationDomain;
+	int fromPort;
+	int toPort;
+	@Nullable
+	String user;
+
+	/**
+	 * @return A rule that applies to every request, to narrow down with the {@code with} methods.
+	 */
+	@NotNull
+	public static AccessRule any() {
+		return ANY;
+	}
+
+	/**
+	 * @param network In CIDR notation, such as {@code 10.0.0.0/8} or {@code 2001:db8::/32}, or a single IP address.
+	 */
+	@NotNull
+	public AccessRule withClientNetwork(@NotNull String network) {
+		parseNetwork(network);
+		return new AccessRule(network, destinationNetwork, destinationDomain, fromPort, toPort, user);
+	}
+
+	/**
+	 * @param network In CIDR notation, or a single IP address. Replaces any destination domain.
+	 */
+	@NotNull
+	public AccessRule withDestinationNetwork(@NotNull String network) {
+		parseNetwork(network);
+		return new AccessRule(clientNetwork, network, null, fromPort, toPort, user);
+	}
+
+	/**
+	 * @param domain Such as {@code example.com}, which also covers {@code www.example.com}. Replaces any destination network.
+	 */
+	@NotNull
+	public AccessRule withDestinationDomain(@NotNull String domain) {
+		final String normalized = domain.startsWith(".") ? domain.substring(1) : domain;
+		if (normalized.isEmpty() || normalized.contains("..")) {
+			throw new IllegalArgumentException("Not a domain: " + domain);
+		}
+		return new AccessRule(clientNetwork, null, normalized.toLowerCase(Locale.ROOT), fromPort, toPort, user);
+	}
+
+	@NotNull
+	public AccessRule withDestinationPort(int port) {
+		return withDestinationPorts(port, port);
+	}
+
+	@NotNull
+	public AccessRule withDestinationPorts(int fromPort, int toPort) {
+		if (fromPort < 0 || toPort > 0xFFFF || fromPort > toPort) {
+			throw new IllegalArgumentException("Invalid port range " + fromPort + "-" + toPort);
+		}
+		return new AccessRule(clientNetwork, destinationNetwork, destinationDomain, fromPort, toPort, user);
+	}
+
+	/**
+	 * Restricts the rule to SOCKS5 clients that authenticated with the given username.
+	 */
+	@NotNull
+	public AccessRule withUser(@NotNull String user) {
+		return new AccessRule(clientNetwork, destinationNetwork, destinationDomain, fromPort, toPort, user);
+	}
+
+	/**
+	 * @return The network's address bytes and its prefix length in bits.
+	 */
+	@NotNull
+	static Network parseNetwork(@NotNull String network) {
+		final int slash = network.indexOf('/');
+		final String address = slash < 0 ? network : network.substring(0, slash);
+		// only IP literals, so parsing never turns into a DNS lookup
+		if (!address.matches("[0-9.]+|[0-9a-fA-F:.]*:[0-9a-fA-F:.]*")) {
+			throw new IllegalArgumentException("Not an IP address or network: " + network);
+		}
+		final byte[] bytes;
+		try {
+			bytes = InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Not an IP address or network: " + network, e);
+		}
+		final int prefixLength;
+		try {
+			prefixLength = slash < 0 ? bytes.length * 8 : Integer.parseInt(network.substring(slash + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid prefix length: " + network, e);
+		}
+		if (prefixLength < 0 || prefixLength > bytes.length * 8) {
+			throw new IllegalArgumentException("Invalid prefix length: " + network);
+		}
+		return new Network(bytes, prefixLength);
+	}
+
+	@Value
+	static class Network {
+		byte[] address;
+		int prefixLength;
+	}
+}
@@ -0,0 +1,300 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * An ordered list of allow and deny {@link AccessRule rules} for CONNECT and BIND destinations and UDP datagrams, where the
+ * first rule that applies decides, and a default decides if none does. Refused requests get the reply "connection not allowed by
+ * ruleset": {@code 0x02} for SOCKS5 and {@code 91} for SOCKS4.
+ * <p>
+ * Rules are compiled into a trie per kind of address and a table of port ranges, each mapping a request to the set of rules it
+ * meets, as bitsets; the first rule in all sets decides. A check therefore costs one step per address bit or domain label, no
+ * matter how many rules there are, and doesn't allocate.
+ * <p>
+ * Requests are checked before anything is resolved or connected. A domain is only resolved if the decision depends on it, when
+ * a rule on a destination network comes first; the request is then refused if any of the addresses it resolves to is denied.
+ */
+public final class AccessRules {
+
+	static final int ALLOWED = 0;
+	static final int DENIED = 1;
+	static final int NEEDS_ADDRESS = 2;
+
+	private static final AccessRules ALLOW_ALL = builder().build();
+
+	private final boolean[] allows;
+	private final boolean allowByDefault;
+	private final int words;
+	private final CidrTrie ipv4Clients;
+	private final CidrTrie ipv6Clients;
+	private final CidrTrie ipv4Destinations;
+	private final CidrTrie ipv6Destinations;
+	private final DomainSuffixTrie domainDestinations;
+	// rules with a destination network, which a domain can only be checked against once it's resolved
+	private final long[] networkRules;
+	// port ranges: interval i covers ports portStarts[i] up to the next start
+	private final int[] portStarts;
+	private final long[][] portRules;
+	private final Map<String, long[]> userRules;
+	private final long[] anyUserRules;
+
+	private AccessRules(Builder builder) {
+		final int ruleCount = builder.rules.size();
+		this.words = (ruleCount + 63) >>> 6;
+		this.allows = new boolean[ruleCount];
+		this.allowByDefault = builder.allowByDefault;
+		this.networkRules = new long[words];
+		this.anyUserRules = new long[words];
+
+		final CidrTrie.Builder ipv4ClientsBuilder = new CidrTrie.Builder(words);
+		final CidrTrie.Builder ipv6ClientsBuilder = new CidrTrie.Builder(words);
+		final CidrTrie.Builder ipv4DestinationsBuilder = new CidrTrie.Builder(words);
+		final CidrTrie.Builder ipv6DestinationsBuilder = new CidrTrie.Builder(words);
+		final DomainSuffixTrie.Builder domainsBuilder = new DomainSuffixTrie.Builder(words);
+		final Map<String, List<Integer>> rulesPerUser = new HashMap<>();
+		final TreeSet<Integer> portBoundaries = new TreeSet<>();
+		portBoundaries.add(0);
+
+		for (int rule = 0; rule < ruleCount; rule++) {
+			final AccessRule accessRule = builder.rules.get(rule);
+			allows[rule] = builder.ruleAllows.get(rule);
+
+			if (accessRule.getClientNetwork() == null) {
+				ipv4ClientsBuilder.addToAny(rule);
+				ipv6ClientsBuilder.addToAny(rule);
+			} else {
+				final AccessRule.Network network = AccessRule.parseNetwork(accessRule.getClientNetwork());
+				(network.getAddress().length == 4 ? ipv4ClientsBuilder : ipv6ClientsBuilder).add(network.getAddress(), network.getPrefixLength(), rule);
+			}
+
+			if (accessRule.getDestinationNetwork() != null) {
+				final AccessRule.Network network = AccessRule.parseNetwork(accessRule.getDestinationNetwork());
+				(network.getAddress().length == 4 ? ipv4DestinationsBuilder : ipv6DestinationsBuilder).add(network.getAddress(), network.getPrefixLength(), rule);
+				set(networkRules, rule);
+			} else if (accessRule.getDestinationDomain() != null) {
+				domainsBuilder.add(accessRule.getDestinationDomain(), rule);
+			} else {
+				ipv4DestinationsBuilder.addToAny(rule);
+				ipv6DestinationsBuilder.addToAny(rule);
+				domainsBuilder.addToAny(rule);
+			}
+
+			if (accessRule.getFromPort() != AccessRule.ANY_PORT) {
+				portBoundaries.add(accessRule.getFromPort());
+				if (accessRule.getToPort() < 0xFFFF) {
+					portBoundaries.add(accessRule.getToPort() + 1);
+				}
+			}
+
+			if (accessRule.getUser() == null) {
+				set(anyUserRules, rule);
+			} else {
+				rulesPerUser.computeIfAbsent(accessRule.getUser(), user -> new ArrayList<>()).add(rule);
+			}
+		}
+
+		this.ipv4Clients = ipv4ClientsBuilder.build();
+		this.ipv6Clients = ipv6ClientsBuilder.build();
+		this.ipv4Destinations = ipv4DestinationsBuilder.build();
+		this.ipv6Destinations = ipv6DestinationsBuilder.build();
+		this.domainDestinations = domainsBuilder.build();
+
+		this.portStarts = portBoundaries.stream().mapToInt(Integer::intValue).toArray();
+		this.portRules = new long[portStarts.length][];
+		for (int interval = 0; interval < portStarts.length; interval++) {
+			final long[] rules = new long[words];
+			for (int rule = 0; rule < ruleCount; rule++) {
+				final AccessRule accessRule = builder.rules.get(rule);
+				if (accessRule.getFromPort() == AccessRule.ANY_PORT
+						|| (accessRule.getFromPort() <= portStarts[interval] && portStarts[interval] <= accessRule.getToPort())) {
+					set(rules, rule);
+				}
+			}
+			// neighbouring intervals often end up with the same rules
+			portRules[interval] = interval > 0 && Arrays.equals(rules, portRules[interval - 1]) ? portRules[interval - 1] : rules;
+		}
+
+		this.userRules = new HashMap<>();
+		for (Map.Entry<String, List<Integer>> entry : rulesPerUser.entrySet()) {
+			final long[] rules = anyUserRules.clone();
+			for (int rule : entry.getValue()) {
+				set(rules, rule);
+			}
+			userRules.put(entry.getKey(), rules);
+		}
+	}
+
+	/**
+	 * @return Rules that allow everything, the default.
+	 */
+	@NotNull
+	public static AccessRules allowAll() {
+		return ALLOW_ALL;
+	}
+
+	@NotNull
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return Whether the rules allow the client to reach the given destination address.
+	 */
+	public boolean permits(@NotNull InetAddress client, @Nullable String user, @NotNull InetAddress destination, int port) {
+		final byte[] address = destination.getAddress();
+		return evaluate(client.getAddress(), user, address.length == 4 ? UdpHeaderCodec.ATYP_IPV4 : UdpHeaderCodec.ATYP_IPV6, address, 0,
+				address.length, port) == ALLOWED;
+	}
+
+	/**
+	 * @param resolved The addresses the domain resolves to, only consulted if the decision depends on them.
+	 * @return Whether the rules allow the client to reach the given domain.
+	 */
+	public boolean permits(@NotNull InetAddress client, @Nullable String user, @NotNull String domain, @NotNull InetAddress[] resolved,
+			int port) {
+		final byte[] name = domain.getBytes(ISO_8859_1);
+		final int decision = evaluate(client.getAddress(), user, UdpHeaderCodec.ATYP_DOMAIN, name, 0, name.length, port);
+		return decision == ALLOWED || (decision == NEEDS_ADDRESS && permitsResolved(client.getAddress(), user, name, 0, name.length, resolved, port));
+	}
+
+	/**
+	 * Checks a request before anything is resolved.
+	 *
+	 * @param client      The client's address bytes.
+	 * @param addressType One of the SOCKS5 address types, {@link UdpHeaderCodec#ATYP_IPV4}, {@link UdpHeaderCodec#ATYP_IPV6} or
+	 *                    {@link UdpHeaderCodec#ATYP_DOMAIN}.
+	 * @return {@link #ALLOWED}, {@link #DENIED}, or for domains {@link #NEEDS_ADDRESS} if it depends on what the domain
+	 * resolves to, see {@link #permitsResolved}.
+	 */
+	int evaluate(@NotNull byte[] client, @Nullable String user, byte addressType, @NotNull byte[] destination, int offset, int length,
+			int port) {
+		if (words == 0) {
+			return allowByDefault ? ALLOWED : DENIED;
+		}
+		final long[] clientRules = (client.length == 4 ? ipv4Clients : ipv6Clients).lookup(client, 0);
+		final long[] userRules = userRules(user);
+		final long[] portRules = portRules(port);
+		final boolean domain = addressType == UdpHeaderCodec.ATYP_DOMAIN;
+		final long[] destinationRules = domain
+				? domainDestinations.lookup(destination, offset, length)
+				: (addressType == UdpHeaderCodec.ATYP_IPV4 ? ipv4Destinations : ipv6Destinations).lookup(destination, offset);
+		for (int i = 0; i < words; i++) {
+			final long undecided = domain ? networkRules[i] : 0;
+			final long matching = clientRules[i] & userRules[i] & portRules[i] & (destinationRules[i] | undecided);
+			if (matching != 0) {
+				final long first = Long.lowestOneBit(matching);
+				if ((first & undecided) != 0) {
+					return NEEDS_ADDRESS;
+				}
+				return allows[(i << 6) + Long.numberOfTrailingZeros(first)] ? ALLOWED : DENIED;
+			}
+		}
+		return allowByDefault ? ALLOWED : DENIED;
+	}
+
+	/**
+	 * Checks a domain request the decision of which depends on the addresses the domain resolved to.
+	 *
+	 * @return Whether each of the addresses is allowed, considering both the domain and the address.
+	 */
+	boolean permitsResolved(@NotNull byte[] client, @Nullable String user, @NotNull byte[] domain, int offset, int length,
+			@NotNull InetAddress[] resolved, int port) {
+		final long[] clientRules = (client.length == 4 ? ipv4Clients : ipv6Clients).lookup(client, 0);
+		final long[] userRules = userRules(user);
+		final long[] portRules = portRules(port);
+		final long[] domainRules = domainDestinations.lookup(domain, offset, length);
+		for (InetAddress address : resolved) {
+			final byte[] bytes = address.getAddress();
+			final long[] addressRules = (bytes.length == 4 ? ipv4Destinations : ipv6Destinations).lookup(bytes, 0);
+			boolean allowed = allowByDefault;
+			for (int i = 0; i < words; i++) {
+				final long matching = clientRules[i] & userRules[i] & portRules[i] & (domainRules[i] | (addressRules[i] & networkRules[i]));
+				if (matching != 0) {
+					allowed = allows[(i << 6) + Long.numberOfTrailingZeros(matching)];
+					break;
+				}
+			}
+			if (!allowed) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long[] userRules(@Nullable String user) {
+		if (user == null) {
+			return anyUserRules;
+		}
+		final long[] rules = userRules.get(user);
+		return rules != null ? rules : anyUserRules;
+	}
+
+	private long[] portRules(int port) {
+		int index = Arrays.binarySearch(portStarts, port);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return portRules[index];
+	}
+
+	static void set(long[] bits, int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	static long[] or(long[] a, long[] b) {
+		final long[] result = a.clone();
+		for (int i = 0; i < result.length; i++) {
+			result[i] |= b[i];
+		}
+		return result;
+	}
+
+	public static final class Builder {
+
+		private final List<AccessRule> rules = new ArrayList<>();
+		private final List<Boolean> ruleAllows = new ArrayList<>();
+		private boolean allowByDefault = true;
+
+		private Builder() {
+		}
+
+		@NotNull
+		public Builder allow(@NotNull AccessRule rule) {
+			rules.add(rule);
+			ruleAllows.add(true);
+			return this;
+		}
+
+		@NotNull
+		public Builder deny(@NotNull AccessRule rule) {
+			rules.add(rule);
+			ruleAllows.add(false);
+			return this;
+		}
+
+		/**
+		 * Decides requests no rule applies to. Allows them by default.
+		 */
+		@NotNull
+		public Builder allowByDefault(boolean allowByDefault) {
+			this.allowByDefault = allowByDefault;
+			return this;
+		}
+
+		@NotNull
+		public AccessRules build() {
+			return new AccessRules(this);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enforces {@link ConnectionLimits} for one server. Unlimited dimensions aren't tracked at all.
+ */
+final class AdmissionControl {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+
+	static final AdmissionControl UNLIMITED = new AdmissionControl(ConnectionLimits.unlimited());
+
+	private final Permits connections;
+	private final Permits handshakes;
+
+	AdmissionControl(@NotNull ConnectionLimits limits) {
+		connections = new Permits(limits.getMaxConnections(), limits.getMaxConnectionsPerClient());
+		handshakes = new Permits(limits.getMaxHandshakes(), limits.getMaxHandshakesPerClient());
+	}
+
+	/**
+	 * @return {@code false} if the freshly accepted socket is over a connection limit, in which case it has been closed already.
+	 */
+	boolean admit(@NotNull Socket clientSocket, @NotNull SocksMetrics metrics) {
+		if (connections.tryAcquire(clientSocket.getInetAddress())) {
+			return true;
+		}
+		LOGGER.debug("Rejected connection from {}: too many connections", clientSocket.getInetAddress());
+		metrics.connectionRejected();
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		return false;
+	}
+
+	void connectionClosed(InetAddress client) {
+		connections.release(client);
+	}
+
+	boolean tryStartHandshake(InetAddress client) {
+		return handshakes.tryAcquire(client);
+	}
+
+	void handshakeEnded(InetAddress client) {
+		handshakes.release(client);
+	}
+
+	private static final class Permits {
+
+		private final int globalLimit;
+		private final int perClientLimit;
+		private final AtomicInteger global = new AtomicInteger();
+		private final ConcurrentMap<InetAddress, Integer> perClient = new ConcurrentHashMap<>();
+
+		Permits(int globalLimit, int perClientLimit) {
+			this.globalLimit = globalLimit;
+			this.perClientLimit = perClientLimit;
+		}
+
+		boolean tryAcquire(InetAddress client) {
+			if (globalLimit != ConnectionLimits.UNLIMITED && global.incrementAndGet() > globalLimit) {
+				global.decrementAndGet();
+				return false;
+			}
+			if (perClientLimit != ConnectionLimits.UNLIMITED && perClient.merge(client, 1, Integer::sum) > perClientLimit) {
+				releaseClient(client);
+				if (globalLimit != ConnectionLimits.UNLIMITED) {
+					global.decrementAndGet();
+				}
+				return false;
+			}
+			return true;
+		}
+
+		void release(InetAddress client) {
+			if (globalLimit != ConnectionLimits.UNLIMITED) {
+				global.decrementAndGet();
+			}
+			if (perClientLimit != ConnectionLimits.UNLIMITED) {
+				releaseClient(client);
+			}
+		}
+
+		private void releaseClient(InetAddress client) {
+			perClient.computeIfPresent(client, (address, count) -> count > 1 ? count - 1 : null);
+		}
+	}
+}
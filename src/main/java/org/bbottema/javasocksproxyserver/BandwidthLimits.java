@@ -0,0 +1,57 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Rate limits on relayed CONNECT and BIND traffic, per connection, per authenticated user and for the whole server. Each limit
+ * counts the bytes relayed in both directions and is a token bucket: a sustained rate in bytes per second, plus a burst of
+ * bytes that can be relayed at once after a quiet period.
+ * <p>
+ * A tunnel over any of its limits isn't dropped: the relay stops reading from it until the limit allows more, so TCP flow
+ * control slows down the sender.
+ */
+@Value
+public class BandwidthLimits {
+
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	private static final BandwidthLimits NONE = new BandwidthLimits(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+
+	long connectionBytesPerSecond;
+	long connectionBurstBytes;
+	long userBytesPerSecond;
+	long userBurstBytes;
+	long globalBytesPerSecond;
+	long globalBurstBytes;
+
+	@NotNull
+	public static BandwidthLimits unlimited() {
+		return NONE;
+	}
+
+	@NotNull
+	public BandwidthLimits withPerConnection(long bytesPerSecond, long burstBytes) {
+		return new BandwidthLimits(requirePositive(bytesPerSecond), requirePositive(burstBytes), userBytesPerSecond, userBurstBytes, globalBytesPerSecond, globalBurstBytes);
+	}
+
+	/**
+	 * Limits the traffic of all tunnels of one user together. Applies to SOCKS5 clients that authenticated with a username only.
+	 */
+	@NotNull
+	public BandwidthLimits withPerUser(long bytesPerSecond, long burstBytes) {
+		return new BandwidthLimits(connectionBytesPerSecond, connectionBurstBytes, requirePositive(bytesPerSecond), requirePositive(burstBytes), globalBytesPerSecond, globalBurstBytes);
+	}
+
+	@NotNull
+	public BandwidthLimits withGlobal(long bytesPerSecond, long burstBytes) {
+		return new BandwidthLimits(connectionBytesPerSecond, connectionBurstBytes, userBytesPerSecond, userBurstBytes, requirePositive(bytesPerSecond), requirePositive(burstBytes));
+	}
+
+	private static long requirePositive(long limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limits must be positive, use UNLIMITED for no limit");
+		}
+		return limit;
+	}
+}
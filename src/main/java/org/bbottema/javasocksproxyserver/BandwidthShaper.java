@@ -0,0 +1,49 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out the {@link Throttle} of each tunnel according to the server's {@link BandwidthLimits}, keeping the buckets that are
+ * shared between tunnels: the global one, and one per authenticated user. User buckets are kept for the lifetime of the server.
+ */
+final class BandwidthShaper {
+
+	static final BandwidthShaper UNLIMITED = new BandwidthShaper(BandwidthLimits.unlimited());
+
+	private final BandwidthLimits limits;
+	@Nullable
+	private final TokenBucket globalBucket;
+	private final ConcurrentMap<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+	BandwidthShaper(@NotNull BandwidthLimits limits) {
+		this.limits = limits;
+		this.globalBucket = limits.getGlobalBytesPerSecond() != BandwidthLimits.UNLIMITED
+				? new TokenBucket(limits.getGlobalBytesPerSecond(), limits.getGlobalBurstBytes(), System.nanoTime())
+				: null;
+	}
+
+	/**
+	 * @return The tunnel's throttle, or {@code null} if none of the limits apply to it.
+	 */
+	@Nullable
+	Throttle throttle(@Nullable String username) {
+		final List<TokenBucket> buckets = new ArrayList<>(3);
+		if (limits.getConnectionBytesPerSecond() != BandwidthLimits.UNLIMITED) {
+			buckets.add(new TokenBucket(limits.getConnectionBytesPerSecond(), limits.getConnectionBurstBytes(), System.nanoTime()));
+		}
+		if (username != null && limits.getUserBytesPerSecond() != BandwidthLimits.UNLIMITED) {
+			buckets.add(userBuckets.computeIfAbsent(username,
+					user -> new TokenBucket(limits.getUserBytesPerSecond(), limits.getUserBurstBytes(), System.nanoTime())));
+		}
+		if (globalBucket != null) {
+			buckets.add(globalBucket);
+		}
+		return buckets.isEmpty() ? null : new Throttle(buckets.toArray(new TokenBucket[0]));
+	}
+}
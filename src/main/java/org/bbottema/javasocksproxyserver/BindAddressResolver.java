@@ -0,0 +1,157 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Works out, once per server, the address advertised to BIND clients as where the server listens for the incoming connection.
+ * In order of preference:
+ * <ol>
+ *     <li>the address configured on the server;</li>
+ *     <li>the address the server listens on, if it doesn't listen on all interfaces;</li>
+ *     <li>the address of the interface the default route goes out of. This only consults the routing table, nothing is sent, and
+ *     is refreshed in the background every so often in case the host's addresses change;</li>
+ *     <li>the local address of the client's connection, if the host has no route at all.</li>
+ * </ol>
+ * SOCKS4 replies only have room for IPv4 addresses, so for SOCKS4 clients IPv6 candidates are skipped, down to {@code 0.0.0.0}
+ * as a last resort, which SOCKS4 clients take to mean the address of the proxy itself.
+ */
+final class BindAddressResolver {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BindAddressResolver.class);
+
+	private static final long REFRESH_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+	// TEST-NET-1, never actually contacted
+	private static final byte[] ROUTE_PROBE_ADDRESS = {(byte) 192, 0, 2, 1};
+	private static final InetAddress UNSPECIFIED_IPV4 = unspecifiedIpv4();
+
+	@Nullable
+	private final InetAddress configuredAddress;
+	@Nullable
+	private volatile InetAddress listenAddress;
+	@Nullable
+	private volatile InetAddress routedAddress;
+	private volatile long resolvedAtNanos;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	BindAddressResolver(@Nullable InetAddress configuredAddress) {
+		this.configuredAddress = configuredAddress;
+		if (configuredAddress == null) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Called once the server listens, on all interfaces or on a single address.
+	 */
+	void listeningOn(@NotNull InetAddress address) {
+		listenAddress = address.isAnyLocalAddress() ? null : address;
+	}
+
+	@NotNull
+	InetAddress resolve(@NotNull Socket clientSocket) {
+		return resolve(clientSocket, false);
+	}
+
+	/**
+	 * @param ipv4Only Whether only an IPv4 address will do, as for SOCKS4 clients.
+	 */
+	@NotNull
+	InetAddress resolve(@NotNull Socket clientSocket, boolean ipv4Only) {
+		if (usable(configuredAddress, ipv4Only)) {
+			return configuredAddress;
+		}
+		final InetAddress listening = listenAddress;
+		if (usable(listening, ipv4Only)) {
+			return listening;
+		}
+		if (System.nanoTime() - resolvedAtNanos > REFRESH_INTERVAL_NANOS && refreshing.compareAndSet(false, true)) {
+			CompletableFuture.runAsync(() -> {
+				try {
+					refresh();
+				} finally {
+					refreshing.set(false);
+				}
+			});
+		}
+		final InetAddress routed = routedAddress;
+		if (usable(routed, ipv4Only)) {
+			return routed;
+		}
+		final InetAddress local = clientSocket.getLocalAddress();
+		return usable(local, ipv4Only) ? local : UNSPECIFIED_IPV4;
+	}
+
+	private static boolean usable(@Nullable InetAddress address, boolean ipv4Only) {
+		return address != null && (!ipv4Only || address instanceof Inet4Address);
+	}
+
+	private void refresh() {
+		final InetAddress address = discoverRoutedAddress();
+		if (address != null && !address.equals(routedAddress)) {
+			LOGGER.debug("Advertising {} to BIND clients", address);
+		}
+		routedAddress = address;
+		resolvedAtNanos = System.nanoTime();
+	}
+
+	@Nullable
+	private static InetAddress discoverRoutedAddress() {
+		try (DatagramSocket probe = new DatagramSocket()) {
+			// connecting a datagram socket only picks the route and with it the local address, it doesn't send anything
+			probe.connect(InetAddress.getByAddress(ROUTE_PROBE_ADDRESS), 9);
+			final InetAddress local = probe.getLocalAddress();
+			if (local != null && !local.isAnyLocalAddress()) {
+				return local;
+			}
+		} catch (IOException | UncheckedIOException e) {
+			LOGGER.debug("No default route to derive the BIND address from: {}", e.getMessage());
+		}
+		return firstInterfaceAddress();
+	}
+
+	@Nullable
+	private static InetAddress firstInterfaceAddress() {
+		try {
+			final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				final NetworkInterface networkInterface = interfaces.nextElement();
+				if (networkInterface.isUp() && !networkInterface.isLoopback()) {
+					for (Enumeration<InetAddress> addresses = networkInterface.getInetAddresses(); addresses.hasMoreElements(); ) {
+						final InetAddress address = addresses.nextElement();
+						// SOCKS4 can only advertise IPv4 addresses
+						if (address instanceof Inet4Address) {
+							return address;
+						}
+					}
+				}
+			}
+		} catch (SocketException e) {
+			LOGGER.debug("Can't list network interfaces: {}", e.getMessage());
+		}
+		return null;
+	}
+
+	private static InetAddress unspecifiedIpv4() {
+		try {
+			return InetAddress.getByAddress(new byte[4]);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
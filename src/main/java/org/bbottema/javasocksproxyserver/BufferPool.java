@@ -0,0 +1,143 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of equally sized relay buffers, so steady state relaying doesn't allocate.
+ * <p>
+ * Buffers are kept in a shared queue. Threads that keep coming back for buffers (such as relay event loops) additionally get a
+ * small private cache, which spares them the shared queue. Buffers released while the pool is full are simply left to the GC.
+ * <p>
+ * Heap pools back the blocking relay and UDP code, which need {@link ByteBuffer#array()}; direct pools only suit a {@link NioRelayEngine}.
+ */
+public final class BufferPool {
+
+	static final int DEFAULT_MAX_POOLED_BUFFERS = 1024;
+	private static final int THREAD_CACHE_SIZE = 4;
+	/**
+	 * Threads acquiring fewer buffers than this are assumed to be short-lived, so their buffers go back to the shared queue.
+	 */
+	private static final int THREAD_CACHE_MIN_ACQUISITIONS = 8;
+
+	private static final BufferPool SHARED = new BufferPool(SocksConstants.DEFAULT_BUF_SIZE, DEFAULT_MAX_POOLED_BUFFERS, false);
+
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+	private final boolean direct;
+
+	private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledCount = new AtomicInteger();
+	private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(ThreadCache::new);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder outstanding = new LongAdder();
+
+	public BufferPool(int bufferSize, int maxPooledBuffers, boolean direct) {
+		if (bufferSize < 1 || maxPooledBuffers < 0) {
+			throw new IllegalArgumentException("bufferSize must be positive and maxPooledBuffers can't be negative");
+		}
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return The heap pool used by default, with buffers of {@link SocksConstants#DEFAULT_BUF_SIZE} bytes.
+	 */
+	@NotNull
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * @return A cleared buffer of {@link #getBufferSize()} bytes, to be handed back with {@link #release(ByteBuffer)}.
+	 */
+	@NotNull
+	public ByteBuffer acquire() {
+		outstanding.increment();
+		final ThreadCache cache = threadCache.get();
+		cache.acquisitions++;
+		ByteBuffer buffer = cache.buffers.poll();
+		if (buffer == null) {
+			buffer = pooled.poll();
+			if (buffer != null) {
+				pooledCount.decrementAndGet();
+			}
+		}
+		if (buffer != null) {
+			hits.increment();
+			buffer.clear();
+			return buffer;
+		}
+		misses.increment();
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * @return The backing array of a freshly acquired buffer, for stream based code. Only for heap pools.
+	 */
+	@NotNull
+	public byte[] acquireArray() {
+		return acquire().array();
+	}
+
+	/**
+	 * Hands a buffer back to the pool. The caller must not touch the buffer afterwards.
+	 */
+	public void release(@NotNull ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+			return;
+		}
+		outstanding.decrement();
+		final ThreadCache cache = threadCache.get();
+		if (cache.acquisitions >= THREAD_CACHE_MIN_ACQUISITIONS && cache.buffers.size() < THREAD_CACHE_SIZE) {
+			cache.buffers.add(buffer);
+		} else if (pooledCount.incrementAndGet() <= maxPooledBuffers) {
+			pooled.add(buffer);
+		} else {
+			pooledCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @see #release(ByteBuffer)
+	 */
+	public void releaseArray(@NotNull byte[] array) {
+		release(ByteBuffer.wrap(array));
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@NotNull
+	public Stats getStats() {
+		return new Stats(hits.sum(), misses.sum(), outstanding.sum(), pooledCount.get());
+	}
+
+	/**
+	 * Point-in-time pool statistics. {@code hits} and {@code misses} count acquisitions served from the pool or by a new
+	 * allocation, {@code outstanding} counts acquired buffers not released yet and {@code pooled} the buffers in the shared queue.
+	 */
+	@Value
+	public static class Stats {
+		long hits;
+		long misses;
+		long outstanding;
+		int pooled;
+	}
+
+	private static final class ThreadCache {
+		private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>(THREAD_CACHE_SIZE);
+		private int acquisitions;
+	}
+}
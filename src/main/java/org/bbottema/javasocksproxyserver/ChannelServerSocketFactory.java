@@ -0,0 +1,55 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Creates {@link ServerSocket}s backed by a {@link ServerSocketChannel}, so accepted client sockets can be handed over to a
+ * {@link NioRelayEngine} once the SOCKS handshake is done.
+ */
+class ChannelServerSocketFactory extends ServerSocketFactory {
+
+	static final ChannelServerSocketFactory INSTANCE = new ChannelServerSocketFactory();
+
+	/**
+	 * @return A channel backed factory if a relay engine is in use and the user did not supply a custom factory, the given factory otherwise.
+	 */
+	@NotNull
+	static ServerSocketFactory forEngine(@NotNull ServerSocketFactory factory, @Nullable NioRelayEngine relayEngine) {
+		return relayEngine != null && factory == ServerSocketFactory.getDefault() ? INSTANCE : factory;
+	}
+
+	@Override
+	public ServerSocket createServerSocket() throws IOException {
+		return ServerSocketChannel.open().socket();
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException {
+		return createServerSocket(port, SocksConstants.DEFAULT_LISTEN_BACKLOG, null);
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+		return createServerSocket(port, backlog, null);
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
+		final ServerSocket serverSocket = createServerSocket();
+		try {
+			serverSocket.bind(new InetSocketAddress(ifAddress, port), backlog);
+			return serverSocket;
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+	}
+}
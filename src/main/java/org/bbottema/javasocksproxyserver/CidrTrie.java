@@ -0,0 +1,91 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Binary trie over the bits of IP addresses of one family, mapping an address to the set of rules whose network contains it.
+ * Every node holds the rules of its own prefix plus those of all shorter prefixes, so a lookup walks down at most the address
+ * bits and takes the set of the deepest node it reaches, however many networks the trie holds.
+ * <p>
+ * Rule sets are bitsets indexed by rule number, shared between nodes wherever a node adds no rules of its own.
+ */
+final class CidrTrie {
+
+	private final Node root;
+
+	private CidrTrie(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * @param address Of the trie's family, starting at the offset.
+	 * @return The rules whose network contains the address, including the rules matching any address.
+	 */
+	@NotNull
+	long[] lookup(@NotNull byte[] address, int offset) {
+		Node node = root;
+		// nodes at full address length have no children
+		for (int bit = 0; node.zero != null || node.one != null; bit++) {
+			final Node child = (address[offset + (bit >>> 3)] & (0x80 >>> (bit & 7))) == 0 ? node.zero : node.one;
+			if (child == null) {
+				break;
+			}
+			node = child;
+		}
+		return node.rules;
+	}
+
+	static final class Builder {
+
+		private final int words;
+		private final Node root = new Node();
+
+		/**
+		 * @param words Size of the rule bitsets.
+		 */
+		Builder(int words) {
+			this.words = words;
+			root.rules = new long[words];
+		}
+
+		void addToAny(int rule) {
+			AccessRules.set(root.rules, rule);
+		}
+
+		void add(@NotNull byte[] address, int prefixLength, int rule) {
+			Node node = root;
+			for (int bit = 0; bit < prefixLength; bit++) {
+				if ((address[bit >>> 3] & (0x80 >>> (bit & 7))) == 0) {
+					node = node.zero != null ? node.zero : (node.zero = new Node());
+				} else {
+					node = node.one != null ? node.one : (node.one = new Node());
+				}
+			}
+			if (node.rules == null) {
+				node.rules = new long[words];
+			}
+			AccessRules.set(node.rules, rule);
+		}
+
+		@NotNull
+		CidrTrie build() {
+			inherit(root.zero, root.rules);
+			inherit(root.one, root.rules);
+			return new CidrTrie(root);
+		}
+
+		private static void inherit(Node node, long[] parentRules) {
+			if (node != null) {
+				node.rules = node.rules == null ? parentRules : AccessRules.or(node.rules, parentRules);
+				inherit(node.zero, node.rules);
+				inherit(node.one, node.rules);
+			}
+		}
+	}
+
+	private static final class Node {
+		Node zero;
+		Node one;
+		long[] rules;
+	}
+}
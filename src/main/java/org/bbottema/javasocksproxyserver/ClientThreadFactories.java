@@ -0,0 +1,53 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Ready-made {@link ThreadFactory}s for running client connections, see {@link SocksServer#setClientThreadFactory(ThreadFactory)}.
+ */
+public final class ClientThreadFactories {
+
+	private ClientThreadFactories() {
+	}
+
+	/**
+	 * @return The default: a new platform thread per client connection.
+	 */
+	@NotNull
+	public static ThreadFactory platformThreads() {
+		return Thread::new;
+	}
+
+	/**
+	 * @return Whether the running JVM supports virtual threads (Java 21 and up).
+	 */
+	public static boolean virtualThreadsSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Equivalent of {@code Thread.ofVirtual().name("socks-client-", 0).factory()}, looked up reflectively so this library keeps
+	 * running on older JVMs.
+	 *
+	 * @throws UnsupportedOperationException If the running JVM doesn't support virtual threads.
+	 */
+	@NotNull
+	public static ThreadFactory virtualThreads() {
+		try {
+			final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Method name = builderType.getMethod("name", String.class, long.class);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(name.invoke(builder, "socks-client-", 0L));
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Winds down the live connections of a server that stopped accepting: first they get the chance to end by themselves, up to a
+ * single deadline for all of them together, then whatever remains is closed all at once rather than one after another. Closing
+ * a blocking socket can itself block, for up to the linger time with {@link SocketOptions#withLinger(int)}, so the closes run
+ * in parallel on a few short-lived threads and the close timeout bounds them all together instead of each.
+ */
+final class ConnectionDrain {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionDrain.class);
+
+	private static final long POLL_INTERVAL_MILLIS = 10;
+	private static final int MAX_CLOSE_THREADS = 32;
+
+	private ConnectionDrain() {
+	}
+
+	/**
+	 * @param connections The server's live connections, which remove themselves once finished.
+	 * @param drainMillis How long connections may take to end by themselves, 0 to close them right away.
+	 * @param closeMillis How long closed connections may take to finish.
+	 * @return Whether all connections finished in time.
+	 */
+	static boolean drain(@NotNull SessionRegistry connections, long drainMillis, long closeMillis) {
+		if (drainMillis > 0 && !connections.isEmpty()) {
+			LOGGER.debug("Draining {} connections for up to {} ms", connections.size(), drainMillis);
+			if (awaitFinished(connections, drainMillis)) {
+				return true;
+			}
+		}
+		if (connections.isEmpty()) {
+			return true;
+		}
+		LOGGER.debug("Closing {} remaining connections", connections.size());
+		final ExecutorService closers = newCloserPool(Math.max(1, Math.min(connections.size(), MAX_CLOSE_THREADS)));
+		for (ProxyHandler connection : connections.handlers()) {
+			closers.execute(() -> connection.terminate(ConnectionListener.CloseReason.CLOSED_BY_SERVER));
+		}
+		closers.shutdown();
+		final boolean finished = awaitFinished(connections, closeMillis);
+		if (!finished) {
+			LOGGER.error("{} connections didn't close within {} ms", connections.size(), closeMillis);
+			// closes still blocked in the kernel can't be interrupted, but the ones not started yet won't be
+			closers.shutdownNow();
+		}
+		return finished;
+	}
+
+	private static ExecutorService newCloserPool(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "socks-drain-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static boolean awaitFinished(SessionRegistry connections, long timeoutMillis) {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try {
+			while (!connections.isEmpty() && deadline - System.nanoTime() > 0) {
+				Thread.sleep(POLL_INTERVAL_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return connections.isEmpty();
+	}
+}
@@ -0,0 +1,57 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Admission limits for a server, globally and per client IP address, on concurrent connections and on handshakes in progress
+ * (connections that haven't finished negotiating their command yet).
+ * <p>
+ * Connections over a connection limit are closed right after accepting them, without spending a thread on them. Connections over
+ * a handshake limit are refused with the SOCKS reply for their version: {@code 91} for SOCKS4, and "no acceptable methods" for
+ * SOCKS5. Rejections are counted in {@link SocksMetrics}.
+ */
+@Value
+public class ConnectionLimits {
+
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private static final ConnectionLimits NONE = new ConnectionLimits(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+
+	int maxConnections;
+	int maxConnectionsPerClient;
+	int maxHandshakes;
+	int maxHandshakesPerClient;
+
+	@NotNull
+	public static ConnectionLimits unlimited() {
+		return NONE;
+	}
+
+	@NotNull
+	public ConnectionLimits withMaxConnections(int maxConnections) {
+		return new ConnectionLimits(requirePositive(maxConnections), maxConnectionsPerClient, maxHandshakes, maxHandshakesPerClient);
+	}
+
+	@NotNull
+	public ConnectionLimits withMaxConnectionsPerClient(int maxConnectionsPerClient) {
+		return new ConnectionLimits(maxConnections, requirePositive(maxConnectionsPerClient), maxHandshakes, maxHandshakesPerClient);
+	}
+
+	@NotNull
+	public ConnectionLimits withMaxHandshakes(int maxHandshakes) {
+		return new ConnectionLimits(maxConnections, maxConnectionsPerClient, requirePositive(maxHandshakes), maxHandshakesPerClient);
+	}
+
+	@NotNull
+	public ConnectionLimits withMaxHandshakesPerClient(int maxHandshakesPerClient) {
+		return new ConnectionLimits(maxConnections, maxConnectionsPerClient, maxHandshakes, requirePositive(maxHandshakesPerClient));
+	}
+
+	private static int requirePositive(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limits must be positive, use UNLIMITED for no limit");
+		}
+		return limit;
+	}
+}
@@ -0,0 +1,100 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives the lifecycle events of every client connection of a server, for billing, tracing and the like, see
+ * {@link SocksServer#addConnectionListener(ConnectionListener)}. Implement only the events you need.
+ * <p>
+ * Events are delivered on the threads handling the connection, including the accepting thread and the relaying threads, so
+ * listeners must be thread-safe and quick; hand off anything slow. Relayed bytes and datagrams are reported in batches rather
+ * than per read, and whatever is left unreported is reported right before {@link #closed}. Exceptions thrown by a listener are
+ * logged and otherwise ignored.
+ * <p>
+ * Servers without listeners don't produce any events, nor do they measure anything just for them.
+ */
+public interface ConnectionListener {
+
+	/**
+	 * Bytes relayed in one direction are reported whenever this many have accumulated.
+	 */
+	int BYTES_BATCH = 64 * 1024;
+
+	/**
+	 * UDP datagrams are reported whenever this many have accumulated, in both directions together.
+	 */
+	int DATAGRAMS_BATCH = 64;
+
+	/**
+	 * Why the server let go of a connection, see {@link #closed}.
+	 */
+	enum CloseReason {
+		/**
+		 * The client or the destination closed the connection.
+		 */
+		ENDED,
+		/**
+		 * Too many handshakes were in progress, see {@link ConnectionLimits}.
+		 */
+		REJECTED,
+		/**
+		 * The client sent an invalid or unsupported request, failed to authenticate, or asked for a destination that doesn't
+		 * resolve or isn't allowed.
+		 */
+		HANDSHAKE_FAILED,
+		/**
+		 * The command couldn't be carried out, such as when the destination doesn't accept connections.
+		 */
+		COMMAND_FAILED,
+		/**
+		 * The handshake took too long or the connection was idle for too long, see {@link IdleTimeouts}.
+		 */
+		TIMED_OUT,
+		/**
+		 * The server was stopped, or the connection was closed through {@link SocksServer#closeSessions}.
+		 */
+		CLOSED_BY_SERVER
+	}
+
+	/**
+	 * A client connected and was admitted.
+	 */
+	default void accepted(long sessionId, @NotNull InetSocketAddress client) {
+	}
+
+	/**
+	 * The client finished negotiating its command, see the session's version, command, user and destination.
+	 */
+	default void handshakeCompleted(@NotNull Session session) {
+	}
+
+	/**
+	 * The server connected to the destination of a CONNECT command.
+	 *
+	 * @param latencyNanos How long connecting took, including trying alternative addresses.
+	 */
+	default void upstreamConnected(long sessionId, @NotNull InetSocketAddress upstream, long latencyNanos) {
+	}
+
+	/**
+	 * Bytes were relayed since the previous report, in batches of at least {@link #BYTES_BATCH} in either direction.
+	 */
+	default void bytesRelayed(long sessionId, long clientToServer, long serverToClient) {
+	}
+
+	/**
+	 * Datagrams of a UDP association were relayed since the previous report, in batches of {@link #DATAGRAMS_BATCH}.
+	 */
+	default void udpDatagramsRelayed(long sessionId, long clientToRemote, long remoteToClient) {
+	}
+
+	/**
+	 * The connection is gone, the last event of the session.
+	 *
+	 * @param session The connection's final state, including its total relayed bytes.
+	 */
+	default void closed(@NotNull Session session, @NotNull CloseReason reason) {
+	}
+}
@@ -0,0 +1,101 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Delivers events to all listeners of a server, keeping a failing listener from affecting the connection or the others.
+ */
+final class ConnectionListeners implements ConnectionListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionListeners.class);
+
+	private final ConnectionListener[] listeners;
+
+	private ConnectionListeners(ConnectionListener[] listeners) {
+		this.listeners = listeners;
+	}
+
+	/**
+	 * @return {@code null} if there are no listeners, so handlers can skip all event bookkeeping with a single check.
+	 */
+	@Nullable
+	static ConnectionListener of(@NotNull List<ConnectionListener> listeners) {
+		return listeners.isEmpty() ? null : new ConnectionListeners(listeners.toArray(new ConnectionListener[0]));
+	}
+
+	@Override
+	public void accepted(long sessionId, @NotNull InetSocketAddress client) {
+		for (ConnectionListener listener : listeners) {
+			try {
+				listener.accepted(sessionId, client);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void handshakeCompleted(@NotNull Session session) {
+		for (ConnectionListener listener : listeners) {
+			try {
+				listener.handshakeCompleted(session);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void upstreamConnected(long sessionId, @NotNull InetSocketAddress upstream, long latencyNanos) {
+		for (ConnectionListener listener : listeners) {
+			try {
+				listener.upstreamConnected(sessionId, upstream, latencyNanos);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void bytesRelayed(long sessionId, long clientToServer, long serverToClient) {
+		for (ConnectionListener listener : listeners) {
+			try {
+				listener.bytesRelayed(sessionId, clientToServer, serverToClient);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void udpDatagramsRelayed(long sessionId, long clientToRemote, long remoteToClient) {
+		for (ConnectionListener listener : listeners) {
+			try {
+				listener.udpDatagramsRelayed(sessionId, clientToRemote, remoteToClient);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void closed(@NotNull Session session, @NotNull CloseReason reason) {
+		for (ConnectionListener listener : listeners) {
+			try {
+				listener.closed(session, reason);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+
+	private static void failed(ConnectionListener listener, RuntimeException e) {
+		LOGGER.error("Connection listener {} failed", listener, e);
+	}
+}
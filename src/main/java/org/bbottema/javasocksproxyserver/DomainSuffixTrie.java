@@ -0,0 +1,179 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Trie over domain labels from right to left, mapping a domain name to the set of rules whose domain is the name itself or one
+ * of its parent domains. Like {@link CidrTrie}, every node holds the rules of its own suffix plus those of all shorter ones, so
+ * a lookup costs one step per label, however many domains the trie holds.
+ * <p>
+ * Lookups work on the raw bytes of the name as sent in a SOCKS5 request and compare case-insensitively, without allocating.
+ */
+final class DomainSuffixTrie {
+
+	private final Node root;
+
+	private DomainSuffixTrie(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return The rules whose domain covers the name, including the rules matching any destination.
+	 */
+	@NotNull
+	long[] lookup(@NotNull byte[] name, int offset, int length) {
+		int end = offset + length;
+		if (end > offset && name[end - 1] == '.') {
+			end--;
+		}
+		Node node = root;
+		while (end > offset) {
+			int start = end;
+			while (start > offset && name[start - 1] != '.') {
+				start--;
+			}
+			final Node child = node.child(name, start, end - start);
+			if (child == null) {
+				break;
+			}
+			node = child;
+			end = start - 1;
+		}
+		return node.rules;
+	}
+
+	static final class Builder {
+
+		private final int words;
+		private final Node root = new Node();
+
+		Builder(int words) {
+			this.words = words;
+			root.rules = new long[words];
+		}
+
+		void addToAny(int rule) {
+			AccessRules.set(root.rules, rule);
+		}
+
+		/**
+		 * @param domain Lower case, without leading or trailing dots.
+		 */
+		void add(@NotNull String domain, int rule) {
+			Node node = root;
+			final String[] labels = domain.split("\\.");
+			for (int i = labels.length - 1; i >= 0; i--) {
+				node = node.addChild(labels[i]);
+			}
+			if (node.rules == null) {
+				node.rules = new long[words];
+			}
+			AccessRules.set(node.rules, rule);
+		}
+
+		@NotNull
+		DomainSuffixTrie build() {
+			inheritChildren(root);
+			return new DomainSuffixTrie(root);
+		}
+
+		private static void inheritChildren(Node parent) {
+			for (Node child : parent.children) {
+				if (child != null) {
+					child.rules = child.rules == null ? parent.rules : AccessRules.or(child.rules, parent.rules);
+					inheritChildren(child);
+				}
+			}
+		}
+	}
+
+	private static final class Node {
+
+		private static final String[] NO_LABELS = {};
+		private static final Node[] NO_CHILDREN = {};
+
+		// open addressing table of child labels, its size a power of two
+		String[] labels = NO_LABELS;
+		Node[] children = NO_CHILDREN;
+		int size;
+		long[] rules;
+
+		Node child(byte[] name, int offset, int length) {
+			if (size == 0) {
+				return null;
+			}
+			final int mask = labels.length - 1;
+			for (int slot = hash(name, offset, length) & mask; labels[slot] != null; slot = (slot + 1) & mask) {
+				if (equalsIgnoreCase(labels[slot], name, offset, length)) {
+					return children[slot];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(String label) {
+			final byte[] bytes = label.getBytes(ISO_8859_1);
+			final Node existing = child(bytes, 0, bytes.length);
+			if (existing != null) {
+				return existing;
+			}
+			if ((size + 1) * 2 > labels.length) {
+				resize(Math.max(4, labels.length * 2));
+			}
+			final Node child = new Node();
+			put(label, child);
+			return child;
+		}
+
+		private void resize(int capacity) {
+			final String[] oldLabels = labels;
+			final Node[] oldChildren = children;
+			labels = new String[capacity];
+			children = new Node[capacity];
+			size = 0;
+			for (int i = 0; i < oldLabels.length; i++) {
+				if (oldLabels[i] != null) {
+					put(oldLabels[i], oldChildren[i]);
+				}
+			}
+		}
+
+		private void put(String label, Node child) {
+			final byte[] bytes = label.getBytes(ISO_8859_1);
+			final int mask = labels.length - 1;
+			int slot = hash(bytes, 0, bytes.length) & mask;
+			while (labels[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			labels[slot] = label;
+			children[slot] = child;
+			size++;
+		}
+
+		private static int hash(byte[] name, int offset, int length) {
+			int hash = 0;
+			for (int i = offset; i < offset + length; i++) {
+				hash = 31 * hash + toLowerCase(name[i]);
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+		private static boolean equalsIgnoreCase(String label, byte[] name, int offset, int length) {
+			if (label.length() != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (label.charAt(i) != toLowerCase(name[offset + i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int toLowerCase(byte b) {
+			return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Local addresses outbound connections and UDP associations are made from, instead of whichever address the operating system
+ * picks. As the ephemeral ports of each local address are used up independently, spreading connections over several addresses
+ * multiplies how many outbound connections the host can keep open, which matters for high churn toward a few destinations.
+ * <p>
+ * Connections take an address of the destination's family; if there is none, the operating system picks one as usual. Addresses
+ * that fail to bind, because their ports are used up, are skipped for a while. UDP associations take an address of the family
+ * the client connected with, and it is also the address clients are told to send their datagrams to, so it must be reachable
+ * for them.
+ */
+@Value
+public class EgressAddresses {
+
+	public enum Strategy {
+		/**
+		 * Each new connection takes the next address in turn.
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Each new connection takes the address with the fewest open connections.
+		 */
+		LEAST_USED,
+		/**
+		 * Connections of the same authenticated user take the same address, connections without one go round-robin.
+		 */
+		STICKY_PER_USER
+	}
+
+	private static final EgressAddresses NONE = new EgressAddresses(Collections.emptyList(), Strategy.ROUND_ROBIN);
+
+	@NotNull
+	List<InetAddress> addresses;
+	@NotNull
+	Strategy strategy;
+
+	/**
+	 * @return Leaves the local address to the operating system, the default.
+	 */
+	@NotNull
+	public static EgressAddresses none() {
+		return NONE;
+	}
+
+	@NotNull
+	public static EgressAddresses of(@NotNull Strategy strategy, @NotNull InetAddress... addresses) {
+		for (InetAddress address : addresses) {
+			if (address.isAnyLocalAddress()) {
+				throw new IllegalArgumentException("Egress addresses must be specific addresses, not " + address);
+			}
+		}
+		return new EgressAddresses(Collections.unmodifiableList(new ArrayList<>(Arrays.asList(addresses))), strategy);
+	}
+
+	/**
+	 * @return Every address of the given network interfaces, except link-local ones.
+	 */
+	@NotNull
+	public static EgressAddresses ofInterfaces(@NotNull Strategy strategy, @NotNull String... interfaceNames) throws SocketException {
+		final List<InetAddress> addresses = new ArrayList<>();
+		for (String interfaceName : interfaceNames) {
+			final NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+			if (networkInterface == null) {
+				throw new SocketException("No network interface named " + interfaceName);
+			}
+			for (Enumeration<InetAddress> interfaceAddresses = networkInterface.getInetAddresses(); interfaceAddresses.hasMoreElements(); ) {
+				final InetAddress address = interfaceAddresses.nextElement();
+				if (!address.isLinkLocalAddress()) {
+					addresses.add(address);
+				}
+			}
+		}
+		return of(strategy, addresses.toArray(new InetAddress[0]));
+	}
+
+	public boolean isNone() {
+		return addresses.isEmpty();
+	}
+}
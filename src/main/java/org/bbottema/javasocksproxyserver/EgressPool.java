@@ -0,0 +1,200 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binds outbound sockets to the server's {@link EgressAddresses}, keeping track of how many connections each address has open
+ * and which addresses recently ran out of ports.
+ */
+final class EgressPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EgressPool.class);
+
+	static final EgressPool NONE = new EgressPool(EgressAddresses.none());
+
+	// how long an address that ran out of ports is only tried after all others
+	static final long EXHAUSTED_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final EgressAddresses.Strategy strategy;
+	private final Slot[] ipv4Slots;
+	private final Slot[] ipv6Slots;
+	private final AtomicInteger nextSlot = new AtomicInteger();
+
+	EgressPool(@NotNull EgressAddresses egressAddresses) {
+		this.strategy = egressAddresses.getStrategy();
+		final List<Slot> ipv4 = new ArrayList<>();
+		final List<Slot> ipv6 = new ArrayList<>();
+		for (InetAddress address : egressAddresses.getAddresses()) {
+			(address instanceof Inet6Address ? ipv6 : ipv4).add(new Slot(address));
+		}
+		this.ipv4Slots = ipv4.toArray(new Slot[0]);
+		this.ipv6Slots = ipv6.toArray(new Slot[0]);
+	}
+
+	/**
+	 * Binds an unconnected socket to an egress address for connecting to the given destination.
+	 *
+	 * @return The address bound to, to be {@link #release(InetAddress) released} once the connection closes, or {@code null} if
+	 * there is no egress address of the destination's family and the socket was left unbound.
+	 * @throws BindException If every egress address of the destination's family is out of ports.
+	 */
+	@Nullable
+	InetAddress bind(@NotNull Socket socket, @NotNull InetAddress destination, @Nullable String username) throws IOException {
+		return bind(slotsFor(destination), username, socket::bind);
+	}
+
+	/**
+	 * @param clientFamily An address of the family the client uses, as the client sends its datagrams to the bound address.
+	 * @return The address bound to, or {@code null} if the channel was bound to the wildcard address.
+	 */
+	@Nullable
+	InetAddress bind(@NotNull DatagramChannel channel, @NotNull InetAddress clientFamily, @Nullable String username) throws IOException {
+		final Slot[] slots = slotsFor(clientFamily);
+		if (slots.length == 0) {
+			channel.bind(null);
+			return null;
+		}
+		return bind(slots, username, channel::bind);
+	}
+
+	/**
+	 * Marks the connection from the given address as closed. Ignores addresses that aren't egress addresses.
+	 */
+	void release(@Nullable InetAddress address) {
+		final Slot slot = address != null ? slotOf(address) : null;
+		if (slot != null) {
+			slot.inUse.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Connecting from the given address failed. If it was because the address ran out of ports, skips it for a while.
+	 */
+	void failed(@Nullable InetAddress address, @NotNull IOException e) {
+		final Slot slot = address != null ? slotOf(address) : null;
+		if (slot != null) {
+			slot.inUse.decrementAndGet();
+			if (e instanceof BindException) {
+				slot.exhausted();
+			}
+		}
+	}
+
+	int inUse(@NotNull InetAddress address) {
+		final Slot slot = slotOf(address);
+		return slot != null ? slot.inUse.get() : 0;
+	}
+
+	@Nullable
+	private InetAddress bind(Slot[] slots, @Nullable String username, Binder binder) throws IOException {
+		if (slots.length == 0) {
+			return null;
+		}
+		final long now = System.nanoTime();
+		final int first = firstChoice(slots, username, now);
+		final boolean[] exhausted = new boolean[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			exhausted[i] = slots[i].isExhausted(now);
+		}
+		BindException failure = null;
+		// addresses that recently ran out of ports go last, they may have some again by now
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < slots.length; i++) {
+				final int index = (first + i) % slots.length;
+				if (exhausted[index] == (pass == 0)) {
+					continue;
+				}
+				final Slot slot = slots[index];
+				slot.inUse.incrementAndGet();
+				try {
+					binder.bind(new InetSocketAddress(slot.address, 0));
+					return slot.address;
+				} catch (BindException e) {
+					slot.inUse.decrementAndGet();
+					slot.exhausted();
+					LOGGER.debug("Egress address {} is out of ports: {}", slot.address, e.getMessage());
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				} catch (IOException | RuntimeException e) {
+					slot.inUse.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+		throw failure;
+	}
+
+	private int firstChoice(Slot[] slots, @Nullable String username, long now) {
+		if (strategy == EgressAddresses.Strategy.LEAST_USED) {
+			int leastUsed = -1;
+			for (int i = 0; i < slots.length; i++) {
+				if (!slots[i].isExhausted(now) && (leastUsed < 0 || slots[i].inUse.get() < slots[leastUsed].inUse.get())) {
+					leastUsed = i;
+				}
+			}
+			if (leastUsed >= 0) {
+				return leastUsed;
+			}
+		} else if (strategy == EgressAddresses.Strategy.STICKY_PER_USER && username != null) {
+			return (username.hashCode() & Integer.MAX_VALUE) % slots.length;
+		}
+		return (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+	}
+
+	private Slot[] slotsFor(InetAddress family) {
+		return family instanceof Inet6Address ? ipv6Slots : ipv4Slots;
+	}
+
+	@Nullable
+	private Slot slotOf(InetAddress address) {
+		for (Slot slot : slotsFor(address)) {
+			if (slot.address.equals(address)) {
+				return slot;
+			}
+		}
+		return null;
+	}
+
+	private interface Binder {
+		void bind(InetSocketAddress address) throws IOException;
+	}
+
+	private static final class Slot {
+
+		final InetAddress address;
+		final AtomicInteger inUse = new AtomicInteger();
+		volatile long exhaustedUntilNanos;
+		volatile boolean exhausted = false;
+
+		Slot(InetAddress address) {
+			this.address = address;
+		}
+
+		void exhausted() {
+			exhaustedUntilNanos = System.nanoTime() + EXHAUSTED_BACKOFF_NANOS;
+			exhausted = true;
+		}
+
+		boolean isExhausted(long now) {
+			return exhausted && exhaustedUntilNanos - now > 0;
+		}
+	}
+}
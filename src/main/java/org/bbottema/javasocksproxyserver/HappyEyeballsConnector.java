@@ -0,0 +1,191 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first reachable address of a destination, racing its addresses as described by RFC 8305 (Happy Eyeballs v2):
+ * address families are interleaved starting with IPv6, a new attempt starts every {@link #CONNECTION_ATTEMPT_DELAY_MILLIS} or as
+ * soon as the previous one fails, and the first attempt to succeed wins. The whole race is bounded by one overall deadline, so a
+ * blackholed address costs at most the attempt delay instead of the OS connect timeout.
+ * <p>
+ * Every attempt is made from an address of the server's {@link EgressPool}, if it has one of the attempt's family.
+ */
+final class HappyEyeballsConnector {
+
+	/**
+	 * The delay RFC 8305 recommends between starting connection attempts.
+	 */
+	static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+
+	private HappyEyeballsConnector() {
+	}
+
+	/**
+	 * @param timeoutMillis Deadline for the whole attempt, 0 for none.
+	 * @param channelBacked Whether the returned socket must be backed by a {@link SocketChannel}. Sockets connected by racing
+	 *                      several addresses always are.
+	 * @param socketOptions Set on every attempt before it connects.
+	 * @param username      The authenticated user, for egress addresses sticky per user.
+	 * @return A connected socket in blocking mode. Its local address is {@link EgressPool#release(InetAddress) released} to the
+	 * egress pool once it closes.
+	 */
+	@NotNull
+	static Socket connect(@NotNull InetAddress[] addresses, int port, int timeoutMillis, boolean channelBacked,
+			@NotNull SocketOptions socketOptions, @NotNull EgressPool egress, @Nullable String username) throws IOException {
+		if (addresses.length == 1) {
+			final Socket socket = channelBacked ? SocketChannel.open().socket() : new Socket();
+			InetAddress egressAddress = null;
+			try {
+				socketOptions.applyTo(socket);
+				egressAddress = egress.bind(socket, addresses[0], username);
+				socket.connect(new InetSocketAddress(addresses[0], port), timeoutMillis);
+				return socket;
+			} catch (IOException e) {
+				egress.failed(egressAddress, e);
+				socket.close();
+				throw e;
+			}
+		}
+		return race(interleaveFamilies(addresses), port, timeoutMillis, socketOptions, egress, username).socket();
+	}
+
+	/**
+	 * @return The addresses alternating between IPv6 and IPv4, starting with IPv6 and otherwise keeping the resolver's order.
+	 */
+	@NotNull
+	static List<InetAddress> interleaveFamilies(@NotNull InetAddress[] addresses) {
+		final List<InetAddress> ipv6 = new ArrayList<>();
+		final List<InetAddress> ipv4 = new ArrayList<>();
+		for (InetAddress address : addresses) {
+			(address instanceof Inet6Address ? ipv6 : ipv4).add(address);
+		}
+		final List<InetAddress> interleaved = new ArrayList<>(addresses.length);
+		for (int i = 0; i < Math.max(ipv6.size(), ipv4.size()); i++) {
+			if (i < ipv6.size()) interleaved.add(ipv6.get(i));
+			if (i < ipv4.size()) interleaved.add(ipv4.get(i));
+		}
+		return interleaved;
+	}
+
+	@NotNull
+	private static SocketChannel race(List<InetAddress> addresses, int port, int timeoutMillis, SocketOptions socketOptions,
+			EgressPool egress, @Nullable String username) throws IOException {
+		final long attemptDelayNanos = TimeUnit.MILLISECONDS.toNanos(CONNECTION_ATTEMPT_DELAY_MILLIS);
+		final long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+		final List<SocketChannel> attempts = new ArrayList<>(addresses.size());
+		final List<InetAddress> egressAddresses = new ArrayList<>(addresses.size());
+		SocketChannel winner = null;
+		IOException failure = null;
+		try (Selector selector = Selector.open()) {
+			int next = 0;
+			int pending = 0;
+			long nextAttemptAt = System.nanoTime();
+			while (winner == null) {
+				final long now = System.nanoTime();
+				if (next < addresses.size() && (now - nextAttemptAt >= 0 || pending == 0)) {
+					final InetSocketAddress address = new InetSocketAddress(addresses.get(next++), port);
+					nextAttemptAt = now + attemptDelayNanos;
+					final int attempt = attempts.size();
+					try {
+						final SocketChannel channel = SocketChannel.open();
+						attempts.add(channel);
+						egressAddresses.add(null);
+						socketOptions.applyTo(channel.socket());
+						egressAddresses.set(attempt, egress.bind(channel.socket(), address.getAddress(), username));
+						channel.configureBlocking(false);
+						if (channel.connect(address)) {
+							winner = channel;
+						} else {
+							channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+							pending++;
+						}
+					} catch (IOException e) {
+						if (attempt < attempts.size()) {
+							egress.failed(egressAddresses.get(attempt), e);
+							egressAddresses.set(attempt, null);
+						}
+						failure = addFailure(failure, e);
+					}
+					continue;
+				}
+				if (pending == 0) {
+					throw failure != null ? failure : new IOException("No address to connect to");
+				}
+				if (now - deadline >= 0) {
+					final SocketTimeoutException timeout = new SocketTimeoutException("Connect timed out after " + timeoutMillis + " ms");
+					if (failure != null) {
+						timeout.addSuppressed(failure);
+					}
+					throw timeout;
+				}
+				final long waitUntil = next < addresses.size() && nextAttemptAt - deadline < 0 ? nextAttemptAt : deadline;
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitUntil - now)));
+				for (SelectionKey key : selector.selectedKeys()) {
+					final SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						if (channel.finishConnect()) {
+							winner = channel;
+							break;
+						}
+					} catch (IOException e) {
+						key.cancel();
+						pending--;
+						final int attempt = (Integer) key.attachment();
+						egress.failed(egressAddresses.get(attempt), e);
+						egressAddresses.set(attempt, null);
+						failure = addFailure(failure, e);
+						// per RFC 8305, a failed attempt makes way for the next one right away
+						nextAttemptAt = now;
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} finally {
+			for (int i = 0; i < attempts.size(); i++) {
+				if (attempts.get(i) != winner) {
+					closeQuietly(attempts.get(i));
+					egress.release(egressAddresses.get(i));
+				}
+			}
+		}
+		// the selector is closed by now, which deregisters the winner so it can be made blocking again
+		try {
+			winner.configureBlocking(true);
+			return winner;
+		} catch (IOException e) {
+			closeQuietly(winner);
+			egress.release(egressAddresses.get(attempts.indexOf(winner)));
+			throw e;
+		}
+	}
+
+	private static IOException addFailure(IOException failure, IOException e) {
+		if (failure == null) {
+			return e;
+		}
+		failure.addSuppressed(e);
+		return failure;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
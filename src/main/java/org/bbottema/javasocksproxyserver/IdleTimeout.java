@@ -0,0 +1,97 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single timeout of one connection on the {@link TimerWheel}, following it through its phases. Activity only records a
+ * timestamp; when the timeout fires it checks whether the connection really was idle that long, and otherwise reschedules
+ * itself for when it would be.
+ *
+ * @see IdleTimeouts
+ */
+final class IdleTimeout extends TimerWheel.Timeout {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IdleTimeout.class);
+
+	enum Phase {
+		HANDSHAKE, TUNNEL, UDP_ASSOCIATION, NONE
+	}
+
+	private final ProxyHandler handler;
+	private final IdleTimeouts timeouts;
+	private final TimerWheel wheel;
+	private volatile Phase phase = Phase.NONE;
+	private volatile long timeoutNanos;
+	private volatile long lastActivityNanos;
+
+	IdleTimeout(@NotNull ProxyHandler handler, @NotNull IdleTimeouts timeouts, @NotNull TimerWheel wheel) {
+		this.handler = handler;
+		this.timeouts = timeouts;
+		this.wheel = wheel;
+	}
+
+	void enter(@NotNull Phase phase) {
+		final long timeoutMillis = timeoutMillis(phase);
+		this.phase = timeoutMillis != IdleTimeouts.DISABLED ? phase : Phase.NONE;
+		if (this.phase == Phase.NONE) {
+			cancel();
+		} else {
+			timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			lastActivityNanos = System.nanoTime();
+			wheel.schedule(this, lastActivityNanos + timeoutNanos);
+		}
+	}
+
+	/**
+	 * Records relayed data or datagrams. Handshake reads don't count, the handshake has to finish within its timeout.
+	 */
+	void touch() {
+		if (phase != Phase.HANDSHAKE) {
+			lastActivityNanos = System.nanoTime();
+		}
+	}
+
+	@Override
+	void expired(long nowNanos) {
+		final Phase expiredPhase = phase;
+		if (expiredPhase == Phase.NONE) {
+			return;
+		}
+		final long idleUntilNanos = lastActivityNanos + timeoutNanos;
+		if (idleUntilNanos - nowNanos > 0) {
+			wheel.schedule(this, idleUntilNanos);
+			return;
+		}
+		phase = Phase.NONE;
+		LOGGER.debug("Closing connection after {} timeout of {} ms", expiredPhase, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+		switch (expiredPhase) {
+			case HANDSHAKE:
+				handler.context.metrics.handshakeTimedOut();
+				break;
+			case TUNNEL:
+				handler.context.metrics.tunnelTimedOut();
+				break;
+			default:
+				handler.context.metrics.udpAssociationTimedOut();
+				break;
+		}
+		handler.abort(ConnectionListener.CloseReason.TIMED_OUT);
+	}
+
+	private long timeoutMillis(Phase phase) {
+		switch (phase) {
+			case HANDSHAKE:
+				return timeouts.getHandshakeMillis();
+			case TUNNEL:
+				return timeouts.getTunnelMillis();
+			case UDP_ASSOCIATION:
+				return timeouts.getUdpAssociationMillis();
+			default:
+				return IdleTimeouts.DISABLED;
+		}
+	}
+}
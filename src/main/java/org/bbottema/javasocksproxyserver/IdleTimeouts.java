@@ -0,0 +1,58 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Timeouts after which the server closes connections that are stuck or idle, so they don't hold on to threads and file
+ * descriptors until a socket error happens to come along:
+ * <ul>
+ *     <li>the handshake, up to the command being established, must complete within its timeout, however much the client trickles;</li>
+ *     <li>an established CONNECT or BIND tunnel, or a BIND still waiting for its peer, is closed once no data went either way for
+ *     its timeout;</li>
+ *     <li>a UDP association is closed once no datagram went either way for its timeout.</li>
+ * </ul>
+ * Expired connections are closed on both sides and counted in {@link SocksMetrics}.
+ */
+@Value
+public class IdleTimeouts {
+
+	public static final long DISABLED = 0;
+
+	private static final IdleTimeouts NONE = new IdleTimeouts(DISABLED, DISABLED, DISABLED);
+
+	long handshakeMillis;
+	long tunnelMillis;
+	long udpAssociationMillis;
+
+	@NotNull
+	public static IdleTimeouts none() {
+		return NONE;
+	}
+
+	@NotNull
+	public IdleTimeouts withHandshake(long handshakeMillis) {
+		return new IdleTimeouts(requireValid(handshakeMillis), tunnelMillis, udpAssociationMillis);
+	}
+
+	@NotNull
+	public IdleTimeouts withTunnel(long tunnelMillis) {
+		return new IdleTimeouts(handshakeMillis, requireValid(tunnelMillis), udpAssociationMillis);
+	}
+
+	@NotNull
+	public IdleTimeouts withUdpAssociation(long udpAssociationMillis) {
+		return new IdleTimeouts(handshakeMillis, tunnelMillis, requireValid(udpAssociationMillis));
+	}
+
+	boolean isDisabled() {
+		return handshakeMillis == DISABLED && tunnelMillis == DISABLED && udpAssociationMillis == DISABLED;
+	}
+
+	private static long requireValid(long timeoutMillis) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("Timeouts can't be negative, use DISABLED for no timeout");
+		}
+		return timeoutMillis;
+	}
+}
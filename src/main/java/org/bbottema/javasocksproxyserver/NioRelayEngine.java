@@ -0,0 +1,366 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven relay for established CONNECT and BIND tunnels.
+ * <p>
+ * Instead of dedicating a polling thread to every tunnel (see {@link ProxyHandler#relay()}), tunnels handed to this engine are
+ * multiplexed over a small, fixed number of {@link Selector} event loops, so an idle tunnel costs no CPU and no thread.
+ * <p>
+ * Only sockets backed by a {@link SocketChannel} can be relayed this way. The servers take care of that when an engine is set and
+ * no custom {@code ServerSocketFactory} is used; other tunnels silently fall back to the blocking relay.
+ * <p>
+ * An engine can be shared by several servers and is not closed when a server stops; call {@link #close()} when done with it.
+ */
+public class NioRelayEngine implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NioRelayEngine.class);
+
+	private final EventLoop[] eventLoops;
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+	private final BufferPool bufferPool;
+
+	public NioRelayEngine() throws IOException {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	public NioRelayEngine(int eventLoopThreads) throws IOException {
+		this(eventLoopThreads, BufferPool.shared());
+	}
+
+	/**
+	 * @param bufferPool Provides the two buffers of each tunnel, can be a direct pool.
+	 */
+	public NioRelayEngine(int eventLoopThreads, @NotNull BufferPool bufferPool) throws IOException {
+		if (eventLoopThreads < 1) {
+			throw new IllegalArgumentException("eventLoopThreads must be positive");
+		}
+		this.bufferPool = bufferPool;
+		this.eventLoops = new EventLoop[eventLoopThreads];
+		for (int i = 0; i < eventLoopThreads; i++) {
+			eventLoops[i] = new EventLoop(i);
+		}
+	}
+
+	/**
+	 * Takes over relaying for the handler's client and server sockets. From here on the engine owns the handler and closes it when
+	 * the tunnel ends.
+	 *
+	 * @return {@code false} if either socket is not channel backed, in which case the caller should relay by itself.
+	 */
+	boolean register(@NotNull ProxyHandler handler) throws IOException {
+		final SocketChannel client = handler.m_ClientSocket != null ? handler.m_ClientSocket.getChannel() : null;
+		final SocketChannel server = handler.m_ServerSocket != null ? handler.m_ServerSocket.getChannel() : null;
+		if (client == null || server == null) {
+			return false;
+		}
+		client.configureBlocking(false);
+		server.configureBlocking(false);
+		final int index = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+		eventLoops[index].register(new Tunnel(handler, client, server));
+		return true;
+	}
+
+	/**
+	 * Stops all event loops and closes every tunnel that is still being relayed.
+	 */
+	@Override
+	public void close() {
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.close();
+		}
+	}
+
+	private final class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<Tunnel> pendingTunnels = new ConcurrentLinkedQueue<>();
+		private final Queue<Tunnel> closingTunnels = new ConcurrentLinkedQueue<>();
+		// endpoints that stopped reading because their tunnel is over its bandwidth limits, only touched by the event loop
+		private final List<Endpoint> pausedEndpoints = new ArrayList<>();
+		private volatile boolean closed = false;
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			final Thread thread = new Thread(this, "socks-relay-" + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void register(Tunnel tunnel) {
+			pendingTunnels.add(tunnel);
+			selector.wakeup();
+			if (closed) {
+				registerPendingTunnels();
+			}
+		}
+
+		void close() {
+			closed = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select(resumePausedEndpoints());
+					registerPendingTunnels();
+					closeClosingTunnels();
+					final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+					while (selectedKeys.hasNext()) {
+						final SelectionKey key = selectedKeys.next();
+						selectedKeys.remove();
+						// the tunnel may have been closed while handling its other endpoint
+						if (key.isValid()) {
+							((Endpoint) key.attachment()).handle(key);
+						}
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				LOGGER.error("Relay event loop crashed", e);
+			} finally {
+				closed = true;
+				registerPendingTunnels();
+				for (SelectionKey key : selector.keys()) {
+					((Endpoint) key.attachment()).tunnel.close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		/**
+		 * Has the event loop close the tunnel, as closing its channels from another thread wouldn't wake up the selector.
+		 */
+		void closeLater(Tunnel tunnel) {
+			closingTunnels.add(tunnel);
+			selector.wakeup();
+		}
+
+		private void closeClosingTunnels() {
+			Tunnel tunnel;
+			while ((tunnel = closingTunnels.poll()) != null) {
+				tunnel.close();
+			}
+		}
+
+		void pause(Endpoint endpoint, long nanos) {
+			endpoint.resumeAtNanos = System.nanoTime() + nanos;
+			if (!endpoint.paused) {
+				endpoint.paused = true;
+				pausedEndpoints.add(endpoint);
+			}
+		}
+
+		/**
+		 * Lets paused endpoints whose limits allow reading again read again.
+		 *
+		 * @return The select timeout until the next endpoint is due, 0 for none.
+		 */
+		private long resumePausedEndpoints() {
+			if (pausedEndpoints.isEmpty()) {
+				return 0;
+			}
+			final long now = System.nanoTime();
+			long nextResumeNanos = Long.MAX_VALUE;
+			for (Iterator<Endpoint> paused = pausedEndpoints.iterator(); paused.hasNext(); ) {
+				final Endpoint endpoint = paused.next();
+				if (endpoint.tunnel.closed) {
+					paused.remove();
+				} else if (endpoint.resumeAtNanos - now <= 0) {
+					paused.remove();
+					endpoint.paused = false;
+					endpoint.tunnel.updateInterest();
+				} else {
+					nextResumeNanos = Math.min(nextResumeNanos, endpoint.resumeAtNanos - now);
+				}
+			}
+			return nextResumeNanos == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextResumeNanos));
+		}
+
+		private void registerPendingTunnels() {
+			Tunnel tunnel;
+			while ((tunnel = pendingTunnels.poll()) != null) {
+				if (closed) {
+					tunnel.close();
+				} else {
+					tunnel.start(this);
+				}
+			}
+		}
+	}
+
+	private final class Tunnel {
+
+		private final ProxyHandler handler;
+		private final Endpoint client;
+		private final Endpoint server;
+		private EventLoop eventLoop;
+		private boolean closed = false;
+
+		Tunnel(ProxyHandler handler, SocketChannel clientChannel, SocketChannel serverChannel) {
+			this.handler = handler;
+			this.client = new Endpoint(this, clientChannel, true);
+			this.server = new Endpoint(this, serverChannel, false);
+			client.peer = server;
+			server.peer = client;
+		}
+
+		void start(EventLoop eventLoop) {
+			this.eventLoop = eventLoop;
+			// acquired on the event loop, so its thread cache gets the buffers back on close
+			client.inbound = bufferPool.acquire();
+			server.inbound = bufferPool.acquire();
+			try {
+				client.key = client.channel.register(eventLoop.selector, SelectionKey.OP_READ, client);
+				server.key = server.channel.register(eventLoop.selector, SelectionKey.OP_READ, server);
+				handler.relayCloser = () -> eventLoop.closeLater(this);
+			} catch (IOException e) {
+				LOGGER.debug("Can't register tunnel for relaying", e);
+				close();
+			}
+		}
+
+		void updateInterest() {
+			if (client.outputShutdown && server.outputShutdown) {
+				close();
+			} else {
+				client.updateInterest();
+				server.updateInterest();
+			}
+		}
+
+		void close() {
+			if (!closed) {
+				closed = true;
+				if (client.key != null) client.key.cancel();
+				if (server.key != null) server.key.cancel();
+				handler.close();
+				handler.finish();
+				if (client.inbound != null) {
+					bufferPool.release(client.inbound);
+					bufferPool.release(server.inbound);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One side of a tunnel. {@link #inbound} holds the bytes read from this side that have not been written to the peer yet, and
+	 * is always kept in fill mode. Only set once the tunnel is started.
+	 */
+	private final class Endpoint {
+
+		private final Tunnel tunnel;
+		private final SocketChannel channel;
+		private final boolean isClient;
+		private ByteBuffer inbound;
+		private Endpoint peer;
+		private SelectionKey key;
+		private boolean inputClosed = false;
+		private boolean outputShutdown = false;
+		private boolean paused = false;
+		private long resumeAtNanos;
+
+		Endpoint(Tunnel tunnel, SocketChannel channel, boolean isClient) {
+			this.tunnel = tunnel;
+			this.channel = channel;
+			this.isClient = isClient;
+		}
+
+		void handle(SelectionKey key) {
+			try {
+				if (key.isReadable() && !paused) {
+					final int count = read();
+					if (count > 0 && tunnel.handler.idleTimeout != null) {
+						tunnel.handler.idleTimeout.touch();
+					}
+					if (count < 0) {
+						inputClosed = true;
+					} else if (isClient) {
+						tunnel.handler.relayedClientToServer(count);
+					} else {
+						tunnel.handler.relayedServerToClient(count);
+					}
+					transferTo(peer);
+				}
+				if (key.isValid() && key.isWritable()) {
+					peer.transferTo(this);
+				}
+				tunnel.updateInterest();
+			} catch (IOException e) {
+				LOGGER.debug("Relay connection closed: {}", e.getMessage());
+				tunnel.close();
+			}
+		}
+
+		/**
+		 * Reads as much as the tunnel's bandwidth limits allow, and pauses reading this side once they allow nothing.
+		 */
+		private int read() throws IOException {
+			final Throttle throttle = tunnel.handler.throttle;
+			if (throttle == null || !inbound.hasRemaining()) {
+				return channel.read(inbound);
+			}
+			final int permitted = throttle.permitted(inbound.remaining());
+			if (permitted == 0) {
+				tunnel.eventLoop.pause(this, throttle.nanosUntilPermitted(inbound.remaining()));
+				return 0;
+			}
+			final int limit = inbound.limit();
+			inbound.limit(inbound.position() + permitted);
+			try {
+				final int count = channel.read(inbound);
+				throttle.consumed(count);
+				return count;
+			} finally {
+				inbound.limit(limit);
+			}
+		}
+
+		/**
+		 * Writes whatever was read from this side to the given side and propagates a half-close once everything has been written.
+		 */
+		private void transferTo(Endpoint destination) throws IOException {
+			if (inbound.position() > 0) {
+				inbound.flip();
+				destination.channel.write(inbound);
+				inbound.compact();
+			}
+			if (inputClosed && inbound.position() == 0 && !destination.outputShutdown) {
+				destination.outputShutdown = true;
+				destination.channel.socket().shutdownOutput();
+			}
+		}
+
+		void updateInterest() {
+			if (key.isValid()) {
+				final int readInterest = !inputClosed && !paused && inbound.hasRemaining() ? SelectionKey.OP_READ : 0;
+				final int writeInterest = peer.inbound.position() > 0 ? SelectionKey.OP_WRITE : 0;
+				key.interestOps(readInterest | writeInterest);
+			}
+		}
+	}
+}
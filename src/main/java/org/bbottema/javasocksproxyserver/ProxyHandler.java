@@ -5,14 +5,22 @@ import org.bbottema.javasocksproxyserver.auth.DefaultAuthenticator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ServerSocketFactory;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.Selector;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-import static java.lang.String.format;
 import static org.bbottema.javasocksproxyserver.Utils.getSocketInfo;
 
 public class ProxyHandler implements Runnable {
@@ -23,44 +31,295 @@ public class ProxyHandler implements Runnable {
 	private OutputStream m_ClientOutput = null;
 	private InputStream m_ServerInput = null;
 	private OutputStream m_ServerOutput = null;
-	private Object m_lock;
-	private Socks4Impl comm = null;
+	// read by session snapshots from other threads
+	private volatile Socks4Impl comm = null;
+	private boolean relayDelegated = false;
+	private boolean commandStarted = false;
+	private boolean handshakeInProgress = false;
+	private final AtomicBoolean finished = new AtomicBoolean();
 
-	final Authenticator authenticator;
+	private static final AtomicReferenceFieldUpdater<ProxyHandler, ConnectionListener.CloseReason> CLOSE_REASON =
+			AtomicReferenceFieldUpdater.newUpdater(ProxyHandler.class, ConnectionListener.CloseReason.class, "closeReason");
 
-	Socket m_ClientSocket;
-	Socket m_ServerSocket = null;
-	byte[] m_Buffer = new byte[SocksConstants.DEFAULT_BUF_SIZE];
+	final ServerContext context;
+	final Authenticator authenticator;
+	private final InetAddress clientAddress;
+	private final int clientPort;
+	private final long startTimeMillis = System.currentTimeMillis();
+	final long sessionId;
+
+	volatile Socket m_ClientSocket;
+	volatile Socket m_ServerSocket = null;
+	byte[] m_Buffer = null;
+	// client bytes read ahead during the handshake, kept in m_Buffer until they are parsed or forwarded
+	private int m_BufferPosition = 0;
+	private int m_BufferLimit = 0;
+	// set while a UDP association waits for datagrams, closing a registered channel doesn't wake it up by itself
+	volatile Selector udpSelector = null;
+	// the username a SOCKS5 client authenticated with, if any
+	String authenticatedUser = null;
+	// the client's address as checked against access rules, taken once it's needed
+	private byte[] clientAddressBytes = null;
+	// the domain name a SOCKS5 client asked for, if any
+	volatile String destinationHost = null;
+	// each written by one relaying thread only, and read by session snapshots
+	private volatile long bytesClientToServer = 0;
+	private volatile long bytesServerToClient = 0;
+	// null unless the server has connection listeners, which get everything below reported
+	private final ConnectionListener listener;
+	private long reportedClientToServer = 0;
+	private long reportedServerToClient = 0;
+	private long udpDatagramsClientToRemote = 0;
+	private long udpDatagramsRemoteToClient = 0;
+	private long reportedUdpClientToRemote = 0;
+	private long reportedUdpRemoteToClient = 0;
+	// the first reason the connection ended for, null while it didn't
+	private volatile ConnectionListener.CloseReason closeReason = null;
+	// the egress address the server or UDP socket is bound to, null if the OS picked one
+	InetAddress egressAddress = null;
+	// null unless bandwidth limits apply to the tunnel
+	Throttle throttle = null;
+	// null unless the server has idle timeouts
+	final IdleTimeout idleTimeout;
+	// set by the NioRelayEngine relaying the tunnel, to close it on the engine's event loop
+	volatile Runnable relayCloser = null;
 
 	public ProxyHandler(Socket clientSocket) {
 		this(clientSocket, new DefaultAuthenticator());
 	}
 
 	public ProxyHandler(Socket clientSocket, Authenticator authenticator) {
-		m_lock = this;
+		this(clientSocket, new ServerContext(authenticator));
+	}
+
+	ProxyHandler(Socket clientSocket, ServerContext context) {
 		m_ClientSocket = clientSocket;
-		this.authenticator = authenticator;
+		this.context = context;
+		this.authenticator = context.authenticator;
+		this.clientAddress = clientSocket.getInetAddress();
+		this.clientPort = clientSocket.getPort();
+		this.listener = context.connectionListener;
+		this.idleTimeout = context.config.getIdleTimeouts().isDisabled() ? null : new IdleTimeout(this, context.config.getIdleTimeouts(), TimerWheel.shared());
+		context.metrics.connectionOpened();
+		this.sessionId = context.sessions.add(this);
+		if (listener != null) {
+			listener.accepted(sessionId, new InetSocketAddress(clientAddress, clientPort));
+		}
 		try {
-			m_ClientSocket.setSoTimeout(SocksConstants.DEFAULT_PROXY_TIMEOUT);
+			m_ClientSocket.setSoTimeout(context.config.getRelayPollMillis());
 		} catch (SocketException e) {
 			LOGGER.error("Socket Exception during seting Timeout.");
 		}
 		LOGGER.debug("Proxy Created.");
 	}
 
+	/**
+	 * @deprecated The handler no longer synchronizes its relay on a lock (which would pin virtual threads), so this does nothing.
+	 */
+	@Deprecated
 	public void setLock(Object lock) {
-		this.m_lock = lock;
 	}
 
 	public void run() {
 		LOGGER.debug("Proxy Started.");
-		setLock(this);
 
-		if (prepareClient()) {
-			processRelay();
-			close();
+		final byte[] buffer = context.bufferPool.acquireArray();
+		m_Buffer = buffer;
+		try {
+			if (prepareClient()) {
+				processRelay();
+				if (!relayDelegated) {
+					close();
+				}
+			} else {
+				LOGGER.error("Proxy - client socket is null !");
+			}
+		} finally {
+			m_Buffer = null;
+			context.bufferPool.releaseArray(buffer);
+			if (!relayDelegated) {
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * Called exactly once when this connection is done for, either by the handler thread itself or, for tunnels it took over, by
+	 * the {@link NioRelayEngine}.
+	 */
+	void finish() {
+		if (finished.compareAndSet(false, true)) {
+			enterPhase(IdleTimeout.Phase.NONE);
+			endHandshake();
+			if (commandStarted) {
+				context.metrics.commandEnded(comm.SOCKS_Version, comm.socksCommand);
+			}
+			context.metrics.connectionClosed();
+			context.admissionControl.connectionClosed(clientAddress);
+			context.egressPool.release(egressAddress);
+			context.sessions.remove(sessionId);
+			if (listener != null) {
+				reportClosed();
+			}
+		}
+	}
+
+	private void reportClosed() {
+		final long clientToServer = bytesClientToServer - reportedClientToServer;
+		final long serverToClient = bytesServerToClient - reportedServerToClient;
+		if (clientToServer > 0 || serverToClient > 0) {
+			listener.bytesRelayed(sessionId, clientToServer, serverToClient);
+		}
+		if (unreportedUdpDatagrams() > 0) {
+			reportUdpDatagrams();
+		}
+		final ConnectionListener.CloseReason reason = closeReason;
+		listener.closed(toSession(), reason != null ? reason : ConnectionListener.CloseReason.ENDED);
+	}
+
+	/**
+	 * Records why the connection ends, unless an earlier reason was already recorded.
+	 */
+	void endedBecause(ConnectionListener.CloseReason reason) {
+		CLOSE_REASON.compareAndSet(this, null, reason);
+	}
+
+	/**
+	 * @return A copy of this connection's state, safe to take from any thread.
+	 */
+	Session toSession() {
+		final Socks4Impl comm = this.comm;
+		return new Session(
+				sessionId,
+				new InetSocketAddress(clientAddress, clientPort),
+				authenticatedUser,
+				comm != null ? comm.SOCKS_Version : 0,
+				comm != null && commandStarted ? SocksMetrics.commandName(comm.socksCommand) : null,
+				destinationHost,
+				comm != null ? comm.m_ServerIP : null,
+				comm != null ? comm.m_nServerPort : 0,
+				Instant.ofEpochMilli(startTimeMillis),
+				bytesClientToServer,
+				bytesServerToClient);
+	}
+
+	/**
+	 * Counts bytes relayed from the client to the server. Only one thread at a time relays either direction.
+	 */
+	void relayedClientToServer(int count) {
+		context.metrics.bytesClientToServer(count);
+		final long total = bytesClientToServer + count;
+		bytesClientToServer = total;
+		if (listener != null && total - reportedClientToServer >= ConnectionListener.BYTES_BATCH) {
+			listener.bytesRelayed(sessionId, total - reportedClientToServer, 0);
+			reportedClientToServer = total;
+		}
+	}
+
+	/**
+	 * Counts bytes relayed from the server to the client. Only one thread at a time relays either direction.
+	 */
+	void relayedServerToClient(int count) {
+		context.metrics.bytesServerToClient(count);
+		final long total = bytesServerToClient + count;
+		bytesServerToClient = total;
+		if (listener != null && total - reportedServerToClient >= ConnectionListener.BYTES_BATCH) {
+			listener.bytesRelayed(sessionId, 0, total - reportedServerToClient);
+			reportedServerToClient = total;
+		}
+	}
+
+	/**
+	 * Counts a datagram relayed from the client to a remote peer, on the UDP association's thread.
+	 */
+	void relayedUdpDatagramClientToRemote() {
+		context.metrics.udpDatagramClientToRemote();
+		udpDatagramsClientToRemote++;
+		if (listener != null && unreportedUdpDatagrams() >= ConnectionListener.DATAGRAMS_BATCH) {
+			reportUdpDatagrams();
+		}
+	}
+
+	/**
+	 * Counts a datagram relayed from a remote peer to the client, on the UDP association's thread.
+	 */
+	void relayedUdpDatagramRemoteToClient() {
+		context.metrics.udpDatagramRemoteToClient();
+		udpDatagramsRemoteToClient++;
+		if (listener != null && unreportedUdpDatagrams() >= ConnectionListener.DATAGRAMS_BATCH) {
+			reportUdpDatagrams();
+		}
+	}
+
+	private void reportUdpDatagrams() {
+		listener.udpDatagramsRelayed(sessionId, udpDatagramsClientToRemote - reportedUdpClientToRemote, udpDatagramsRemoteToClient - reportedUdpRemoteToClient);
+		reportedUdpClientToRemote = udpDatagramsClientToRemote;
+		reportedUdpRemoteToClient = udpDatagramsRemoteToClient;
+	}
+
+	private long unreportedUdpDatagrams() {
+		return udpDatagramsClientToRemote - reportedUdpClientToRemote + udpDatagramsRemoteToClient - reportedUdpRemoteToClient;
+	}
+
+	private void endHandshake() {
+		if (handshakeInProgress) {
+			handshakeInProgress = false;
+			context.admissionControl.handshakeEnded(clientAddress);
+		}
+	}
+
+	/**
+	 * Closes the connection from another thread, such as when it timed out, including a tunnel relayed by a {@link NioRelayEngine}.
+	 */
+	void terminate(ConnectionListener.CloseReason reason) {
+		endedBecause(reason);
+		final Runnable closer = relayCloser;
+		if (closer != null) {
+			closer.run();
 		} else {
-			LOGGER.error("Proxy - client socket is null !");
+			close();
+		}
+	}
+
+	/**
+	 * Ends the connection from a thread that must not block, such as the {@link TimerWheel}'s. Closing a socket can block while
+	 * it lingers, so this only shuts down input: the handler's own threads then read end of stream and close the connection
+	 * themselves. A tunnel relayed by a {@link NioRelayEngine} is closed on the engine's event loop, which never blocks either.
+	 */
+	void abort(ConnectionListener.CloseReason reason) {
+		endedBecause(reason);
+		final Runnable closer = relayCloser;
+		if (closer != null) {
+			closer.run();
+			return;
+		}
+		shutdownInput(m_ClientSocket);
+		shutdownInput(m_ServerSocket);
+		final Selector selector = udpSelector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	private static void shutdownInput(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.shutdownInput();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	private void enterPhase(IdleTimeout.Phase phase) {
+		if (idleTimeout != null) {
+			idleTimeout.enter(phase);
+		}
+	}
+
+	private void touch() {
+		if (idleTimeout != null) {
+			idleTimeout.touch();
 		}
 	}
 
@@ -82,17 +341,21 @@ public class ProxyHandler implements Runnable {
 			// ignore
 		}
 
+		// the full-duplex relay may close from both pumps at once, so don't rely on the fields staying put
+		final Socket clientSocket = m_ClientSocket;
+		final Socket serverSocket = m_ServerSocket;
+
 		try {
-			if (m_ClientSocket != null) {
-				m_ClientSocket.close();
+			if (clientSocket != null) {
+				clientSocket.close();
 			}
 		} catch (IOException e) {
 			// ignore
 		}
 
 		try {
-			if (m_ServerSocket != null) {
-				m_ServerSocket.close();
+			if (serverSocket != null) {
+				serverSocket.close();
 			}
 		} catch (IOException e) {
 			// ignore
@@ -101,6 +364,11 @@ public class ProxyHandler implements Runnable {
 		m_ServerSocket = null;
 		m_ClientSocket = null;
 
+		final Selector selector = udpSelector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+
 		LOGGER.debug("Proxy Closed.");
 	}
 
@@ -120,9 +388,13 @@ public class ProxyHandler implements Runnable {
 	}
 
 	public void sendToServer(byte[] buffer, int len) {
-		if (m_ServerOutput != null && len > 0 && len <= buffer.length) {
+		sendToServer(buffer, 0, len);
+	}
+
+	private void sendToServer(byte[] buffer, int offset, int len) {
+		if (m_ServerOutput != null && len > 0 && offset + len <= buffer.length) {
 			try {
-				m_ServerOutput.write(buffer, 0, len);
+				m_ServerOutput.write(buffer, offset, len);
 				m_ServerOutput.flush();
 			} catch (IOException e) {
 				LOGGER.error("Sending data to server");
@@ -142,18 +414,64 @@ public class ProxyHandler implements Runnable {
 			return;
 		}
 
-		m_ServerSocket = new Socket(server, port);
-		m_ServerSocket.setSoTimeout(SocksConstants.DEFAULT_PROXY_TIMEOUT);
+		connectToServer(InetAddress.getAllByName(server), port);
+	}
+
+	/**
+	 * Connects to whichever of the destination's addresses answers first, within the server's connect timeout, from one of the
+	 * server's egress addresses if it has any.
+	 *
+	 * @see HappyEyeballsConnector
+	 */
+	void connectToServer(InetAddress[] addresses, int port) throws IOException {
+		final long startNanos = listener != null ? System.nanoTime() : 0;
+		m_ServerSocket = HappyEyeballsConnector.connect(addresses, port, context.config.getConnectTimeoutMillis(), context.relayEngine != null,
+				context.config.getUpstreamSocketOptions(), context.egressPool, authenticatedUser);
+		if (context.egressPool != EgressPool.NONE) {
+			egressAddress = m_ServerSocket.getLocalAddress();
+		}
+		m_ServerSocket.setSoTimeout(context.config.getRelayPollMillis());
+		if (listener != null) {
+			listener.upstreamConnected(sessionId, (InetSocketAddress) m_ServerSocket.getRemoteSocketAddress(), System.nanoTime() - startNanos);
+		}
 
 		LOGGER.debug("Connected to " + getSocketInfo(m_ServerSocket));
 		prepareServer();
 	}
 
-	protected void prepareServer() throws IOException {
-		synchronized (m_lock) {
-			m_ServerInput = m_ServerSocket.getInputStream();
-			m_ServerOutput = m_ServerSocket.getOutputStream();
+	/**
+	 * Checks a destination against the server's access rules, before anything is resolved.
+	 *
+	 * @return One of {@link AccessRules#ALLOWED}, {@link AccessRules#DENIED} or {@link AccessRules#NEEDS_ADDRESS}.
+	 * @see AccessRules#evaluate
+	 */
+	int checkAccess(byte addressType, byte[] destination, int offset, int length, int port) {
+		if (context.accessRules == AccessRules.allowAll()) {
+			return AccessRules.ALLOWED;
+		}
+		if (clientAddressBytes == null) {
+			clientAddressBytes = clientAddress.getAddress();
 		}
+		return context.accessRules.evaluate(clientAddressBytes, authenticatedUser, addressType, destination, offset, length, port);
+	}
+
+	/**
+	 * Finishes checking a domain the access rules couldn't decide on without the addresses it resolves to.
+	 */
+	boolean permitsResolved(byte[] domain, int offset, int length, InetAddress[] resolved, int port) {
+		return context.accessRules.permitsResolved(clientAddressBytes, authenticatedUser, domain, offset, length, resolved, port);
+	}
+
+	/**
+	 * @return An unbound-port listening socket for BIND, channel backed if the accepted connection is to be relayed by a {@link NioRelayEngine}.
+	 */
+	ServerSocket openBindSocket() throws IOException {
+		return ChannelServerSocketFactory.forEngine(ServerSocketFactory.getDefault(), context.relayEngine).createServerSocket(0);
+	}
+
+	protected void prepareServer() throws IOException {
+		m_ServerInput = m_ServerSocket.getInputStream();
+		m_ServerOutput = m_ServerSocket.getOutputStream();
 	}
 
 	public boolean prepareClient() {
@@ -172,6 +490,9 @@ public class ProxyHandler implements Runnable {
 
 	public void processRelay() {
 		try {
+			// block on handshake reads instead of polling, closing the handler still interrupts them
+			m_ClientSocket.setSoTimeout(0);
+			enterPhase(IdleTimeout.Phase.HANDSHAKE);
 			byte SOCKS_Version = getByteFromClient();
 
 			switch (SOCKS_Version) {
@@ -183,26 +504,48 @@ public class ProxyHandler implements Runnable {
 					break;
 				default:
 					LOGGER.error("Invalid SOKCS version : " + SOCKS_Version);
+					endedBecause(ConnectionListener.CloseReason.HANDSHAKE_FAILED);
 					return;
 			}
+			if (!context.admissionControl.tryStartHandshake(clientAddress)) {
+				LOGGER.debug("Rejected SOCKS {} Request from {}: too many handshakes in progress", SOCKS_Version, clientAddress);
+				context.metrics.handshakeRejected();
+				comm.rejectHandshake(SOCKS_Version);
+				endedBecause(ConnectionListener.CloseReason.REJECTED);
+				return;
+			}
+			handshakeInProgress = true;
 			LOGGER.debug("Accepted SOCKS " + SOCKS_Version + " Request.");
 
 			comm.authenticate(SOCKS_Version);
 			comm.clientAuthResponse();
 			comm.getClientCommand();
+			// the handshake ends with the command; connecting has its own deadline and a BIND waits like an idle tunnel
+			enterPhase(IdleTimeout.Phase.NONE);
+			m_ClientSocket.setSoTimeout(context.config.getRelayPollMillis());
+			context.metrics.commandStarted(comm.SOCKS_Version, comm.socksCommand);
+			commandStarted = true;
+			if (listener != null) {
+				listener.handshakeCompleted(toSession());
+			}
 
 			switch (comm.socksCommand) {
 				case SocksConstants.SC_CONNECT:
 					comm.connect();
+					endHandshake();
 					relay();
 					break;
 
 				case SocksConstants.SC_BIND:
+					enterPhase(IdleTimeout.Phase.TUNNEL);
 					comm.bind();
+					endHandshake();
 					relay();
 					break;
 
 				case SocksConstants.SC_UDP:
+					endHandshake();
+					enterPhase(IdleTimeout.Phase.UDP_ASSOCIATION);
 					comm.udp();
 					break;
 				default:
@@ -210,25 +553,84 @@ public class ProxyHandler implements Runnable {
 					break;
 			}
 		} catch (Exception e) {
+			endedBecause(commandStarted ? ConnectionListener.CloseReason.COMMAND_FAILED : ConnectionListener.CloseReason.HANDSHAKE_FAILED);
 			LOGGER.error(e.getMessage(), e);
 		}
 	}
 
-	public byte getByteFromClient() throws Exception {
-		while (m_ClientSocket != null) {
-			int b;
-			try {
-				b = m_ClientInput.read();
-			} catch (InterruptedIOException e) {
-				Thread.yield();
-				continue;
+	/**
+	 * Returns the next handshake byte. The client is read in bulk, so pipelined handshake messages cost no extra reads and any data
+	 * the client sends ahead of the tunnel stays buffered until {@link #relay()} forwards it.
+	 */
+	public byte getByteFromClient() throws IOException {
+		while (m_BufferPosition == m_BufferLimit) {
+			m_BufferPosition = 0;
+			m_BufferLimit = 0;
+			if (readClientData() < 0) {
+				throw new EOFException("Client connection closed during handshake");
 			}
-			return (byte) b; // return loaded byte
 		}
-		throw new Exception("Interrupted Reading GetByteFromClient()");
+		return m_Buffer[m_BufferPosition++];
+	}
+
+	/**
+	 * Appends whatever the client has sent to the buffered client data, waiting at most the client socket's timeout.
+	 *
+	 * @return The number of bytes read, which is 0 if nothing arrived in time or the buffer is full, or -1 if the client is gone.
+	 */
+	int readClientData() {
+		final InputStream clientInput = m_ClientInput;
+		if (m_ClientSocket == null || clientInput == null) {
+			return -1;
+		}
+		if (m_BufferLimit == m_Buffer.length) {
+			return 0;
+		}
+		try {
+			final int count = clientInput.read(m_Buffer, m_BufferLimit, m_Buffer.length - m_BufferLimit);
+			if (count > 0) {
+				m_BufferLimit += count;
+			}
+			return count;
+		} catch (InterruptedIOException e) {
+			return 0;
+		} catch (IOException e) {
+			LOGGER.debug("Client connection closed: {}", e.getMessage());
+			return -1;
+		}
+	}
+
+	private void forwardBufferedClientData() {
+		final int length = m_BufferLimit - m_BufferPosition;
+		if (length > 0) {
+			LOGGER.debug("Forwarding {} bytes the client sent ahead of the tunnel", length);
+			relayedClientToServer(length);
+			sendToServer(m_Buffer, m_BufferPosition, length);
+		}
+		m_BufferPosition = 0;
+		m_BufferLimit = 0;
 	}
 
 	public void relay() {
+		forwardBufferedClientData();
+		throttle = context.bandwidthShaper.throttle(authenticatedUser);
+		enterPhase(IdleTimeout.Phase.TUNNEL);
+		if (context.relayEngine != null) {
+			try {
+				relayDelegated = context.relayEngine.register(this);
+			} catch (IOException e) {
+				LOGGER.error("Can't hand over tunnel to relay engine", e);
+				return;
+			}
+			if (relayDelegated) {
+				return;
+			}
+		}
+		if (context.fullDuplexRelay) {
+			relayFullDuplex();
+			return;
+		}
+
 		boolean isActive = true;
 
 		while (isActive) {
@@ -241,7 +643,9 @@ public class ProxyHandler implements Runnable {
 				isActive = false;
 			}
 			if (dlen > 0) {
+				touch();
 				logData(dlen, "Cli data");
+				relayedClientToServer(dlen);
 				sendToServer(m_Buffer, dlen);
 			}
 
@@ -250,69 +654,150 @@ public class ProxyHandler implements Runnable {
 
 			if (dlen < 0) isActive = false;
 			if (dlen > 0) {
+				touch();
 				logData(dlen, "Srv data");
+				relayedServerToClient(dlen);
 				sendToClient(m_Buffer, dlen);
 			}
 
 			Thread.yield();
+			if (throttle != null) {
+				// both sides were skipped while over the limit, don't spin until the limit allows reading again
+				throttle.awaitPermitted(m_Buffer.length);
+			}
 		}
 	}
 
-	public int checkClientData() {
-		synchronized (m_lock) {
-			//	The client side is not opened.
-			if (m_ClientInput == null) return -1;
+	/**
+	 * Relays each direction on its own thread with its own buffer, using plain blocking reads. A slow write in one direction no
+	 * longer stalls the other, and an EOF from either side is propagated as a half-close rather than tearing down the tunnel.
+	 */
+	void relayFullDuplex() {
+		final Socket clientSocket = m_ClientSocket;
+		final Socket serverSocket = m_ServerSocket;
+		if (clientSocket == null || serverSocket == null) {
+			return;
+		}
+		final Thread serverToClient = context.clientThreadFactory.newThread(() -> {
+			final byte[] buffer = context.bufferPool.acquireArray();
+			try {
+				pump(serverSocket, m_ServerInput, clientSocket, m_ClientOutput, buffer, false);
+			} finally {
+				context.bufferPool.releaseArray(buffer);
+			}
+		});
+		serverToClient.start();
+		pump(clientSocket, m_ClientInput, serverSocket, m_ServerOutput, m_Buffer, true);
+		try {
+			serverToClient.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
+	private void pump(Socket source, InputStream input, Socket destination, OutputStream output, byte[] buffer, boolean fromClient) {
+		final String dataSource = fromClient ? "Cli data" : "Srv data";
+		try {
+			// no more polling: block until data arrives or the tunnel is closed
+			source.setSoTimeout(0);
+			final Throttle throttle = this.throttle;
 			int dlen;
-
-			try {
-				dlen = m_ClientInput.read(m_Buffer, 0, SocksConstants.DEFAULT_BUF_SIZE);
-			} catch (InterruptedIOException e) {
-				return 0;
-			} catch (IOException e) {
-				LOGGER.debug("Client connection Closed!");
-				close();    //	Close the server on this exception
-				return -1;
+			while ((dlen = input.read(buffer, 0, throttle != null ? throttle.awaitPermitted(buffer.length) : buffer.length)) >= 0) {
+				if (dlen > 0) {
+					touch();
+					if (throttle != null) {
+						throttle.consumed(dlen);
+					}
+					logData(dlen, dataSource);
+					if (fromClient) {
+						relayedClientToServer(dlen);
+					} else {
+						relayedServerToClient(dlen);
+					}
+					output.write(buffer, 0, dlen);
+				}
 			}
+			destination.shutdownOutput();
+		} catch (IOException | UnsupportedOperationException e) {
+			LOGGER.debug("{} relay ended: {}", dataSource, e.getMessage());
+			close();
+		}
+	}
 
-			if (dlen < 0) close();
+	public int checkClientData() {
+		//	The client side is not opened.
+		if (m_ClientInput == null) return -1;
+
+		final int length = permittedReadLength();
+		if (length == 0) return 0;
 
-			return dlen;
+		int dlen;
+
+		try {
+			dlen = m_ClientInput.read(m_Buffer, 0, length);
+			if (throttle != null) {
+				throttle.consumed(dlen);
+			}
+		} catch (InterruptedIOException e) {
+			return 0;
+		} catch (IOException e) {
+			LOGGER.debug("Client connection Closed!");
+			close();    //	Close the server on this exception
+			return -1;
 		}
+
+		if (dlen < 0) close();
+
+		return dlen;
 	}
 
 	public int checkServerData() {
-		synchronized (m_lock) {
-			//	The client side is not opened.
-			if (m_ServerInput == null) return -1;
+		//	The client side is not opened.
+		if (m_ServerInput == null) return -1;
 
-			int dlen;
+		final int length = permittedReadLength();
+		if (length == 0) return 0;
 
-			try {
-				dlen = m_ServerInput.read(m_Buffer, 0, SocksConstants.DEFAULT_BUF_SIZE);
-			} catch (InterruptedIOException e) {
-				return 0;
-			} catch (IOException e) {
-				LOGGER.debug("Server connection Closed!");
-				close();    //	Close the server on this exception
-				return -1;
-			}
+		int dlen;
 
-			if (dlen < 0) {
-				close();
+		try {
+			dlen = m_ServerInput.read(m_Buffer, 0, length);
+			if (throttle != null) {
+				throttle.consumed(dlen);
 			}
+		} catch (InterruptedIOException e) {
+			return 0;
+		} catch (IOException e) {
+			LOGGER.debug("Server connection Closed!");
+			close();    //	Close the server on this exception
+			return -1;
+		}
 
-			return dlen;
+		if (dlen < 0) {
+			close();
 		}
+
+		return dlen;
+	}
+
+	/**
+	 * @return How much the polling relay may read from either side right now, which is 0 while over the bandwidth limits.
+	 */
+	private int permittedReadLength() {
+		return throttle != null ? throttle.permitted(m_Buffer.length) : m_Buffer.length;
 	}
 
+	/**
+	 * Called for every relayed chunk, so must not allocate or resolve anything unless actually tracing.
+	 */
 	private void logData(final int traffic, final String dataSource) {
-		LOGGER.debug(format("%s : %s >> <%s/%s:%d> : %d bytes.",
-				dataSource,
-				getSocketInfo(m_ClientSocket),
-				comm.m_ServerIP.getHostName(),
-				comm.m_ServerIP.getHostAddress(),
-				comm.m_nServerPort, traffic));
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("{} : {} >> <{}:{}> : {} bytes.",
+					dataSource,
+					getSocketInfo(m_ClientSocket),
+					Utils.iP2Str(comm.m_ServerIP),
+					comm.m_nServerPort, traffic);
+		}
 	}
 
 	public int getPort() {
@@ -0,0 +1,79 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Opens listening sockets with {@code SO_REUSEPORT}, so several sockets can listen on the same port and have the kernel spread
+ * incoming connections over them (Linux 3.9+ and the BSDs). The option only exists on Java 9 and up, hence the reflection.
+ */
+final class ReusePort {
+
+	@Nullable
+	private static final SocketOption<Boolean> SO_REUSEPORT = lookupOption();
+
+	private static volatile Boolean supported;
+
+	private ReusePort() {
+	}
+
+	static boolean isSupported() {
+		if (supported == null) {
+			boolean result = false;
+			if (SO_REUSEPORT != null) {
+				try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+					result = channel.supportedOptions().contains(SO_REUSEPORT);
+				} catch (IOException e) {
+					// treat as unsupported
+				}
+			}
+			supported = result;
+		}
+		return supported;
+	}
+
+	/**
+	 * @return A socket bound to the given port with {@code SO_REUSEPORT} enabled. Check {@link #isSupported()} first.
+	 */
+	@NotNull
+	static ServerSocket bind(@NotNull ServerSocketFactory factory, int port, int backlog) throws IOException {
+		if (SO_REUSEPORT == null) {
+			throw new IOException("SO_REUSEPORT requires Java 9 or later");
+		}
+		final ServerSocket serverSocket = factory.createServerSocket();
+		try {
+			if (serverSocket.getChannel() != null) {
+				serverSocket.getChannel().setOption(SO_REUSEPORT, true);
+			} else {
+				ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(serverSocket, SO_REUSEPORT, true);
+			}
+			serverSocket.bind(new InetSocketAddress(port), backlog);
+			return serverSocket;
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | RuntimeException e) {
+			serverSocket.close();
+			throw new IOException("Can't enable SO_REUSEPORT", e instanceof InvocationTargetException ? e.getCause() : e);
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+	}
+
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			return null;
+		}
+	}
+}
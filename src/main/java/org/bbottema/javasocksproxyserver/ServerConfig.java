@@ -0,0 +1,197 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tunables of a server: buffer sizes, timeouts, socket options and the listen backlog. Defaults to the values in
+ * {@link SocksConstants}, with socket options left to the operating system.
+ * <pre>{@code
+ * ServerConfig config = ServerConfig.builder()
+ *         .clientSocketOptions(SocketOptions.defaults().withTcpNoDelay(true))
+ *         .upstreamSocketOptions(SocketOptions.defaults().withTcpNoDelay(true).withKeepAlive(true))
+ *         .bufferSize(16 * 1024)
+ *         .build();
+ * }</pre>
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class ServerConfig {
+
+	/**
+	 * Buffers have to hold at least a SOCKS5 UDP header and a reasonable datagram.
+	 */
+	public static final int MIN_BUFFER_SIZE = 512;
+
+	private static final ServerConfig DEFAULTS = new Builder().build();
+
+	/**
+	 * Size of the relay, handshake and UDP buffers of each connection.
+	 */
+	int bufferSize;
+	/**
+	 * How long acceptors block on the listening socket before checking whether the server was stopped.
+	 */
+	int acceptPollMillis;
+	/**
+	 * How long the polling relay waits for one side before checking the other.
+	 */
+	int relayPollMillis;
+	int connectTimeoutMillis;
+	int authenticationTimeoutMillis;
+	/**
+	 * How long {@link SocksServer#stop(long)} waits for acceptors and for connections to close, after the drain timeout.
+	 */
+	int closeTimeoutMillis;
+	@NotNull
+	IdleTimeouts idleTimeouts;
+	int listenBacklog;
+	@NotNull
+	SocketOptions clientSocketOptions;
+	@NotNull
+	SocketOptions upstreamSocketOptions;
+
+	@NotNull
+	public static ServerConfig defaults() {
+		return DEFAULTS;
+	}
+
+	@NotNull
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	@NotNull
+	public Builder toBuilder() {
+		return new Builder()
+				.bufferSize(bufferSize)
+				.acceptPollMillis(acceptPollMillis)
+				.relayPollMillis(relayPollMillis)
+				.connectTimeoutMillis(connectTimeoutMillis)
+				.authenticationTimeoutMillis(authenticationTimeoutMillis)
+				.closeTimeoutMillis(closeTimeoutMillis)
+				.idleTimeouts(idleTimeouts)
+				.listenBacklog(listenBacklog)
+				.clientSocketOptions(clientSocketOptions)
+				.upstreamSocketOptions(upstreamSocketOptions);
+	}
+
+	public static final class Builder {
+
+		private int bufferSize = SocksConstants.DEFAULT_BUF_SIZE;
+		private int acceptPollMillis = SocksConstants.LISTEN_TIMEOUT;
+		private int relayPollMillis = SocksConstants.DEFAULT_PROXY_TIMEOUT;
+		private int connectTimeoutMillis = SocksConstants.DEFAULT_CONNECT_TIMEOUT;
+		private int authenticationTimeoutMillis = SocksConstants.DEFAULT_AUTHENTICATION_TIMEOUT;
+		private int closeTimeoutMillis = SocksConstants.DEFAULT_CLOSE_TIMEOUT;
+		private IdleTimeouts idleTimeouts = IdleTimeouts.none();
+		private int listenBacklog = SocksConstants.DEFAULT_LISTEN_BACKLOG;
+		private SocketOptions clientSocketOptions = SocketOptions.defaults();
+		private SocketOptions upstreamSocketOptions = SocketOptions.defaults();
+
+		private Builder() {
+		}
+
+		/**
+		 * Defaults to {@value SocksConstants#DEFAULT_BUF_SIZE} bytes, and to sharing {@link BufferPool#shared()} with other servers.
+		 */
+		@NotNull
+		public Builder bufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		@NotNull
+		public Builder acceptPollMillis(int acceptPollMillis) {
+			this.acceptPollMillis = acceptPollMillis;
+			return this;
+		}
+
+		@NotNull
+		public Builder relayPollMillis(int relayPollMillis) {
+			this.relayPollMillis = relayPollMillis;
+			return this;
+		}
+
+		/**
+		 * @see SocksServer#setConnectTimeout(int)
+		 */
+		@NotNull
+		public Builder connectTimeoutMillis(int connectTimeoutMillis) {
+			this.connectTimeoutMillis = connectTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Bounds how long a SOCKS5 client waits for its credentials to be checked, after which it's refused.
+		 */
+		@NotNull
+		public Builder authenticationTimeoutMillis(int authenticationTimeoutMillis) {
+			this.authenticationTimeoutMillis = authenticationTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * How long connections closed by stopping a server get to finish. Defaults to
+		 * {@value SocksConstants#DEFAULT_CLOSE_TIMEOUT} milliseconds.
+		 *
+		 * @see SocksServer#stop(long)
+		 * @see SyncSocksServer#stop(long)
+		 */
+		@NotNull
+		public Builder closeTimeoutMillis(int closeTimeoutMillis) {
+			this.closeTimeoutMillis = closeTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @see SocksServer#setIdleTimeouts(IdleTimeouts)
+		 */
+		@NotNull
+		public Builder idleTimeouts(@NotNull IdleTimeouts idleTimeouts) {
+			this.idleTimeouts = idleTimeouts;
+			return this;
+		}
+
+		/**
+		 * @see SocksServer#setListenBacklog(int)
+		 */
+		@NotNull
+		public Builder listenBacklog(int listenBacklog) {
+			this.listenBacklog = listenBacklog;
+			return this;
+		}
+
+		@NotNull
+		public Builder clientSocketOptions(@NotNull SocketOptions clientSocketOptions) {
+			this.clientSocketOptions = clientSocketOptions;
+			return this;
+		}
+
+		@NotNull
+		public Builder upstreamSocketOptions(@NotNull SocketOptions upstreamSocketOptions) {
+			this.upstreamSocketOptions = upstreamSocketOptions;
+			return this;
+		}
+
+		@NotNull
+		public ServerConfig build() {
+			if (bufferSize < MIN_BUFFER_SIZE) {
+				throw new IllegalArgumentException("bufferSize must be at least " + MIN_BUFFER_SIZE);
+			}
+			if (acceptPollMillis < 1 || relayPollMillis < 1) {
+				throw new IllegalArgumentException("Poll intervals must be positive");
+			}
+			if (connectTimeoutMillis < 0 || closeTimeoutMillis < 0) {
+				throw new IllegalArgumentException("Timeouts can't be negative");
+			}
+			if (authenticationTimeoutMillis < 1) {
+				throw new IllegalArgumentException("authenticationTimeoutMillis must be positive");
+			}
+			return new ServerConfig(bufferSize, acceptPollMillis, relayPollMillis, connectTimeoutMillis, authenticationTimeoutMillis,
+					closeTimeoutMillis, idleTimeouts, listenBacklog, clientSocketOptions, upstreamSocketOptions);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.bbottema.javasocksproxyserver.auth.Authenticator;
+import org.bbottema.javasocksproxyserver.dns.CachingHostResolver;
+import org.bbottema.javasocksproxyserver.dns.HostResolver;
+import org.bbottema.javasocksproxyserver.dns.SystemHostResolver;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Server-scoped collaborators shared by every {@link ProxyHandler} spawned by one {@link SocksServer} or {@link SyncSocksServer}.
+ */
+final class ServerContext {
+
+	private static final HostResolver DEFAULT_HOST_RESOLVER = new CachingHostResolver(new SystemHostResolver());
+	private static final BindAddressResolver DEFAULT_BIND_ADDRESS_RESOLVER = new BindAddressResolver(null);
+
+	@NotNull
+	final Authenticator authenticator;
+
+	@Nullable
+	NioRelayEngine relayEngine;
+
+	boolean fullDuplexRelay;
+
+	@NotNull
+	ServerConfig config = ServerConfig.defaults();
+
+	@NotNull
+	BufferPool bufferPool = BufferPool.shared();
+
+	@NotNull
+	HostResolver hostResolver = DEFAULT_HOST_RESOLVER;
+
+	@NotNull
+	BindAddressResolver bindAddressResolver = DEFAULT_BIND_ADDRESS_RESOLVER;
+
+	@NotNull
+	SocksMetrics metrics = new SocksMetrics();
+
+	@NotNull
+	AdmissionControl admissionControl = AdmissionControl.UNLIMITED;
+
+	@NotNull
+	BandwidthShaper bandwidthShaper = BandwidthShaper.UNLIMITED;
+
+	@NotNull
+	EgressPool egressPool = EgressPool.NONE;
+
+	@NotNull
+	AccessRules accessRules = AccessRules.allowAll();
+
+	// null without listeners, so connections skip all event bookkeeping
+	@Nullable
+	ConnectionListener connectionListener;
+
+	// live connections, for introspection and for draining them when the server stops
+	@NotNull
+	SessionRegistry sessions = new SessionRegistry();
+
+	@NotNull
+	ThreadFactory clientThreadFactory = ClientThreadFactories.platformThreads();
+
+	ServerContext(@NotNull Authenticator authenticator) {
+		this.authenticator = authenticator;
+	}
+}
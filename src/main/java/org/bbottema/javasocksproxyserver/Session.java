@@ -0,0 +1,53 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+
+/**
+ * Point-in-time copy of one live client connection of a {@link SocksServer} or {@link SyncSocksServer}, see
+ * {@link SocksServer#getSessions()}. What the client hasn't negotiated yet is left {@code null} or 0.
+ */
+@Value
+public class Session {
+
+	/**
+	 * Unique within the server instance, to {@link SocksServer#closeSession(long) close} the connection by.
+	 */
+	long id;
+	@NotNull
+	InetSocketAddress client;
+	/**
+	 * The username the client authenticated with, SOCKS5 only.
+	 */
+	@Nullable
+	String user;
+	/**
+	 * 4 or 5, 0 until the client sent its first byte.
+	 */
+	int socksVersion;
+	/**
+	 * {@code CONNECT}, {@code BIND} or {@code UDP}, once requested.
+	 */
+	@Nullable
+	String command;
+	/**
+	 * The domain name the client asked for, if it didn't ask for an address.
+	 */
+	@Nullable
+	String destinationHost;
+	/**
+	 * The address the tunnel connects to, or for UDP associations the last remote peer.
+	 */
+	@Nullable
+	InetAddress destinationAddress;
+	int destinationPort;
+	@NotNull
+	Instant startTime;
+	long bytesClientToServer;
+	long bytesServerToClient;
+}
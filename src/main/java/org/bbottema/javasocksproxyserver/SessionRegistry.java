@@ -0,0 +1,82 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * The live connections of a server, by session id. Handlers add themselves when accepted and remove themselves once finished,
+ * both in constant time without a global lock, so the registry costs the same at ten connections as at a hundred thousand.
+ * Iteration is weakly consistent: it never blocks registration and may or may not see connections coming and going meanwhile.
+ */
+final class SessionRegistry {
+
+	private final ConcurrentHashMap<Long, ProxyHandler> handlers = new ConcurrentHashMap<>();
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	/**
+	 * @return The handler's session id.
+	 */
+	long add(@NotNull ProxyHandler handler) {
+		final long id = nextId.getAndIncrement();
+		handlers.put(id, handler);
+		return id;
+	}
+
+	void remove(long id) {
+		handlers.remove(id);
+	}
+
+	boolean isEmpty() {
+		return handlers.isEmpty();
+	}
+
+	int size() {
+		return handlers.size();
+	}
+
+	@NotNull
+	Collection<ProxyHandler> handlers() {
+		return handlers.values();
+	}
+
+	@NotNull
+	List<Session> snapshot() {
+		final List<Session> sessions = new ArrayList<>(handlers.size());
+		for (ProxyHandler handler : handlers.values()) {
+			sessions.add(handler.toSession());
+		}
+		return sessions;
+	}
+
+	/**
+	 * @return Whether the session was still live.
+	 */
+	boolean close(long id) {
+		final ProxyHandler handler = handlers.get(id);
+		if (handler == null) {
+			return false;
+		}
+		handler.terminate(ConnectionListener.CloseReason.CLOSED_BY_SERVER);
+		return true;
+	}
+
+	/**
+	 * @return The number of sessions closed.
+	 */
+	int closeMatching(@NotNull Predicate<? super Session> predicate) {
+		int closed = 0;
+		for (ProxyHandler handler : handlers.values()) {
+			if (predicate.test(handler.toSession())) {
+				handler.terminate(ConnectionListener.CloseReason.CLOSED_BY_SERVER);
+				closed++;
+			}
+		}
+		return closed;
+	}
+}
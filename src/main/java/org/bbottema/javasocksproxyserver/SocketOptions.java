@@ -0,0 +1,104 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * TCP options for one side of the tunnels of a server, the client side or the upstream side, see {@link ServerConfig}. Options
+ * left unset keep the operating system's defaults.
+ * <p>
+ * Upstream options are set before connecting, client options right after accepting. For buffer sizes over 64 KiB, some
+ * operating systems only scale the receive window for sockets that had the size before connecting, so large client receive
+ * buffers may need the OS defaults raised instead.
+ */
+@Value
+public class SocketOptions {
+
+	public static final int UNSET = -1;
+
+	private static final SocketOptions DEFAULTS = new SocketOptions(null, null, UNSET, UNSET, UNSET);
+
+	@Nullable
+	Boolean tcpNoDelay;
+	@Nullable
+	Boolean keepAlive;
+	int sendBufferSize;
+	int receiveBufferSize;
+	int lingerSeconds;
+
+	/**
+	 * @return Options that leave everything to the operating system.
+	 */
+	@NotNull
+	public static SocketOptions defaults() {
+		return DEFAULTS;
+	}
+
+	/**
+	 * Disables Nagle's algorithm, for interactive traffic that shouldn't wait for small writes to be coalesced.
+	 */
+	@NotNull
+	public SocketOptions withTcpNoDelay(boolean tcpNoDelay) {
+		return new SocketOptions(tcpNoDelay, keepAlive, sendBufferSize, receiveBufferSize, lingerSeconds);
+	}
+
+	@NotNull
+	public SocketOptions withKeepAlive(boolean keepAlive) {
+		return new SocketOptions(tcpNoDelay, keepAlive, sendBufferSize, receiveBufferSize, lingerSeconds);
+	}
+
+	@NotNull
+	public SocketOptions withSendBufferSize(int sendBufferSize) {
+		return new SocketOptions(tcpNoDelay, keepAlive, requirePositive(sendBufferSize), receiveBufferSize, lingerSeconds);
+	}
+
+	@NotNull
+	public SocketOptions withReceiveBufferSize(int receiveBufferSize) {
+		return new SocketOptions(tcpNoDelay, keepAlive, sendBufferSize, requirePositive(receiveBufferSize), lingerSeconds);
+	}
+
+	/**
+	 * Makes closing block for up to the given time while unsent data drains. 0 discards unsent data and resets the connection
+	 * right away instead of leaving it in TIME_WAIT.
+	 */
+	@NotNull
+	public SocketOptions withLinger(int lingerSeconds) {
+		if (lingerSeconds < 0) {
+			throw new IllegalArgumentException("lingerSeconds can't be negative");
+		}
+		return new SocketOptions(tcpNoDelay, keepAlive, sendBufferSize, receiveBufferSize, lingerSeconds);
+	}
+
+	public boolean isDefaults() {
+		return equals(DEFAULTS);
+	}
+
+	void applyTo(@NotNull Socket socket) throws SocketException {
+		if (tcpNoDelay != null) {
+			socket.setTcpNoDelay(tcpNoDelay);
+		}
+		if (keepAlive != null) {
+			socket.setKeepAlive(keepAlive);
+		}
+		if (sendBufferSize != UNSET) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize != UNSET) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		if (lingerSeconds != UNSET) {
+			socket.setSoLinger(true, lingerSeconds);
+		}
+	}
+
+	private static int requirePositive(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Buffer sizes must be positive");
+		}
+		return size;
+	}
+}
@@ -9,10 +9,7 @@ import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 
-import static java.util.Objects.requireNonNull;
 import static org.bbottema.javasocksproxyserver.Utils.getSocketInfo;
 
 public class Socks4Impl {
@@ -25,8 +22,9 @@ public class Socks4Impl {
 	byte SOCKS_Version = 0;
 	byte socksCommand;
 
-	private InetAddress m_ExtLocalIP = null;
 	InetAddress m_ServerIP = null;
+	// every address the destination resolved to, m_ServerIP being the first
+	InetAddress[] serverAddresses = null;
 	int m_nServerPort = 0;
 	InetAddress m_ClientIP = null;
 	int m_nClientPort = 0;
@@ -59,6 +57,11 @@ public class Socks4Impl {
 
 	@NotNull
 	public String replyName(byte code) {
+		return describeReply(code);
+	}
+
+	@NotNull
+	static String describeReply(byte code) {
 		switch (code) {
 			case 0:
 				return "SUCCESS";
@@ -96,6 +99,7 @@ public class Socks4Impl {
 	public boolean isInvalidAddress() {
 		// IP v4 Address Type
 		m_ServerIP = Utils.calcInetAddress(DST_Addr);
+		serverAddresses = new InetAddress[]{m_ServerIP};
 		m_nServerPort = Utils.calcPort(DST_Port[0], DST_Port[1]);
 
 		m_ClientIP = m_Parent.m_ClientSocket.getInetAddress();
@@ -104,12 +108,8 @@ public class Socks4Impl {
 		return m_ServerIP == null || m_nServerPort < 0;
 	}
 
-	protected byte getByte() {
-		try {
-			return m_Parent.getByteFromClient();
-		} catch (Exception e) {
-			return 0;
-		}
+	protected byte getByte() throws IOException {
+		return m_Parent.getByteFromClient();
 	}
 
 	public void authenticate(byte SOCKS_Ver) throws Exception {
@@ -147,6 +147,11 @@ public class Socks4Impl {
 			throw new Exception("Socks 4 - Unknown Host/IP address '" + m_ServerIP.toString());
 		}
 
+		if (m_Parent.checkAccess(UdpHeaderCodec.ATYP_IPV4, DST_Addr, 0, 4, m_nServerPort) != AccessRules.ALLOWED) {
+			refuseCommand((byte) 91);
+			throw new Exception("Socks 4 - Connection to " + Utils.iP2Str(m_ServerIP) + ":" + m_nServerPort + " not allowed by ruleset");
+		}
+
 		LOGGER.debug("Accepted SOCKS 4 Command: \"" + commName(socksCommand) + "\"");
 	}
 
@@ -166,8 +171,17 @@ public class Socks4Impl {
 		m_Parent.sendToClient(REPLY);
 	}
 
+	/**
+	 * Turns the client away right after its version byte, without reading the rest of its request.
+	 */
+	public void rejectHandshake(byte SOCKS_Ver) {
+		SOCKS_Version = SOCKS_Ver;
+		replyCommand(getFailCode());
+	}
+
 	protected void refuseCommand(byte errorCode) {
 		LOGGER.debug("Socks 4 - Refuse Command: \"" + replyName(errorCode) + "\"");
+		m_Parent.context.metrics.handshakeFailed(errorCode);
 		replyCommand(errorCode);
 	}
 
@@ -175,11 +189,10 @@ public class Socks4Impl {
 		LOGGER.debug("Connecting...");
 		//	Connect to the Remote Host
 		try {
-			m_Parent.connectToServer(m_ServerIP.getHostAddress(), m_nServerPort);
+			m_Parent.connectToServer(serverAddresses, m_nServerPort);
 		} catch (IOException e) {
 			refuseCommand(getFailCode()); // Connection Refused
-			throw new Exception("Socks 4 - Can't connect to " +
-					getSocketInfo(m_Parent.m_ServerSocket));
+			throw new Exception("Socks " + SOCKS_Version + " - Can't connect to " + Utils.iP2Str(m_ServerIP) + ":" + m_nServerPort, e);
 		}
 
 		LOGGER.debug("Connected to " + getSocketInfo(m_Parent.m_ServerSocket));
@@ -189,6 +202,10 @@ public class Socks4Impl {
 	public void bindReply(byte ReplyCode, InetAddress IA, int PT) {
 		LOGGER.debug("Reply to Client : \"{}\"", replyName(ReplyCode));
 
+		if (ReplyCode != getSuccessCode()) {
+			m_Parent.context.metrics.handshakeFailed(ReplyCode);
+		}
+
 		final byte[] REPLY = new byte[8];
 		final byte[] IP = IA.getAddress();
 
@@ -201,50 +218,21 @@ public class Socks4Impl {
 		REPLY[6] = IP[2];
 		REPLY[7] = IP[3];
 
-		if (m_Parent.isActive()) {
+		// the first reply goes out before there is a server connection
+		if (m_Parent.m_ClientSocket != null) {
 			m_Parent.sendToClient(REPLY);
 		} else {
 			LOGGER.debug("Closed BIND Client Connection");
 		}
 	}
 
+	/**
+	 * @return The address to advertise to the client as where the server listens for the BIND connection, worked out once per server.
+	 * @see BindAddressResolver
+	 */
 	@NotNull
 	public InetAddress resolveExternalLocalIP() {
-		InetAddress IP = null;
-
-		if (m_ExtLocalIP != null) {
-			Socket sct;
-			try {
-				sct = new Socket(m_ExtLocalIP, m_Parent.getPort());
-				IP = sct.getLocalAddress();
-				sct.close();
-				return m_ExtLocalIP;
-			} catch (IOException e) {
-				LOGGER.debug("WARNING !!! THE LOCAL IP ADDRESS WAS CHANGED !");
-			}
-		}
-
-		final String[] hosts = {"www.wikipedia.org", "www.google.com", "www.microsoft.com", "www.amazon.com", "www.zombo.com", "www.ebay.com"};
-
-		final List<Exception> bindExceptions = new ArrayList<>();
-		for (String host : hosts) {
-			try (Socket sct = new Socket(InetAddress.getByName(host), 80)) {
-				IP = sct.getLocalAddress();
-				break;
-			} catch (Exception e) {
-				bindExceptions.add(e);
-			}
-		}
-
-		if (IP == null) {
-			LOGGER.error("Error in BIND() - BIND reip Failed on all common hosts to determine external IP's");
-			for (Exception bindException : bindExceptions) {
-				LOGGER.debug(bindException.getMessage(), bindException);
-			}
-		}
-
-		m_ExtLocalIP = IP;
-		return requireNonNull(IP);
+		return m_Parent.context.bindAddressResolver.resolve(m_Parent.m_ClientSocket, SOCKS_Version == SocksConstants.SOCKS4_Version);
 	}
 
 	public void bind() throws IOException {
@@ -256,9 +244,9 @@ public class Socks4Impl {
 
 		LOGGER.debug("Local IP : " + MyIP.toString());
 
-		ServerSocket ssock = new ServerSocket(0);
+		ServerSocket ssock = m_Parent.openBindSocket();
 		try {
-			ssock.setSoTimeout(SocksConstants.DEFAULT_PROXY_TIMEOUT);
+			ssock.setSoTimeout(m_Parent.context.config.getRelayPollMillis());
 			MyPort = ssock.getLocalPort();
 		} catch (IOException e) {  // MyIP == null
 			LOGGER.debug("Error in BIND() - Can't BIND at any Port");
@@ -273,7 +261,8 @@ public class Socks4Impl {
 		Socket socket = null;
 
 		while (socket == null) {
-			if (m_Parent.checkClientData() >= 0) {
+			// buffers anything the client sends early, so it can be forwarded once the connection is in
+			if (m_Parent.readClientData() < 0) {
 				LOGGER.debug("BIND - Client connection closed");
 				ssock.close();
 				return;
@@ -281,7 +270,8 @@ public class Socks4Impl {
 
 			try {
 				socket = ssock.accept();
-				socket.setSoTimeout(SocksConstants.DEFAULT_PROXY_TIMEOUT);
+				socket.setSoTimeout(m_Parent.context.config.getRelayPollMillis());
+				m_Parent.context.config.getUpstreamSocketOptions().applyTo(socket);
 			} catch (InterruptedIOException e) {
 				// ignore
 			}
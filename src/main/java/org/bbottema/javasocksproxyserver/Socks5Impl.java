@@ -6,13 +6,23 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import static java.lang.String.format;
 import static org.bbottema.javasocksproxyserver.Utils.getSocketInfo;
 
 public class Socks5Impl extends Socks4Impl {
@@ -26,15 +36,24 @@ public class Socks5Impl extends Socks4Impl {
 	};
 	private static final Logger LOGGER = LoggerFactory.getLogger(Socks5Impl.class);
 
-	private static final int MAX_ADDR_LEN = 255;
+	// length byte plus the longest domain name
+	private static final int MAX_ADDR_LEN = 256;
 
 	private byte acceptedAuthType = 0x00;
 
 	private byte ADDRESS_TYPE;
-	private DatagramSocket DGSocket = null;
-	private DatagramPacket DGPack = null;
-	private InetAddress UDP_IA = null;
-	private int UDP_port = 0;
+	private DatagramChannel DGChannel = null;
+	private ByteBuffer udpBuffer = null;
+	private volatile boolean udpControlClosed = false;
+	private int clientUdpPort = 0;
+	private InetSocketAddress udpClient = null;
+	// clients tend to send to one destination, so its address is only decoded when it changes
+	private final byte[] udpDestinationKey = new byte[1 + MAX_ADDR_LEN + 2];
+	private int udpDestinationKeyLength = 0;
+	private InetSocketAddress udpDestination = null;
+	// and the reverse, for the header of datagrams sent back to the client
+	private InetSocketAddress lastUdpSender = null;
+	private byte[] lastUdpSenderAddress = null;
 
 	Socks5Impl(ProxyHandler Parent) {
 		super(Parent);
@@ -53,37 +72,60 @@ public class Socks5Impl extends Socks4Impl {
 
 	@Nullable
 	public InetAddress calcInetAddress(byte AType, byte[] addr) {
-		InetAddress IA;
+		final InetAddress[] addresses = resolveAll(AType, addr);
+		return addresses != null ? addresses[0] : null;
+	}
 
+	/**
+	 * @return The destination address, or every address a domain name resolves to. {@code null} if there's none.
+	 */
+	@Nullable
+	InetAddress[] resolveAll(byte AType, byte[] addr) {
 		switch (AType) {
 			// Version IP 4
 			case 0x01:
-				IA = Utils.calcInetAddress(addr);
-				break;
+				final InetAddress ipv4 = Utils.calcInetAddress(addr);
+				return ipv4 != null ? new InetAddress[]{ipv4} : null;
 			// Version IP DOMAIN NAME
 			case 0x03:
-				if (addr[0] <= 0) {
-					LOGGER.error("SOCKS 5 - calcInetAddress() : BAD IP in command - size : " + addr[0]);
+				final int length = addr[0] & 0xFF;
+				if (length == 0) {
+					LOGGER.error("SOCKS 5 - calcInetAddress() : BAD IP in command - size : " + length);
 					return null;
 				}
-				StringBuilder sIA = new StringBuilder();
-				for (int i = 1; i <= addr[0]; i++) {
-					sIA.append((char) addr[i]);
+				final String host = new String(addr, 1, length, StandardCharsets.ISO_8859_1);
+				final CompletableFuture<InetAddress[]> resolving = m_Parent.context.hostResolver.resolve(host);
+				try {
+					// a lookup counts towards connecting, and 0 waits as long as it takes, like it does for the connect
+					final int timeoutMillis = m_Parent.context.config.getConnectTimeoutMillis();
+					final InetAddress[] addresses = timeoutMillis > 0 ? resolving.get(timeoutMillis, TimeUnit.MILLISECONDS) : resolving.get();
+					return addresses.length > 0 ? addresses : null;
+				} catch (ExecutionException e) {
+					LOGGER.debug("SOCKS 5 - calcInetAddress() : can't resolve {}: {}", host, e.getCause().getMessage());
+					return null;
+				} catch (TimeoutException e) {
+					LOGGER.debug("SOCKS 5 - calcInetAddress() : resolving {} timed out", host);
+					resolving.cancel(false);
+					return null;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
 				}
+			// Version IP 6
+			case 0x04:
 				try {
-					IA = InetAddress.getByName(sIA.toString());
+					return new InetAddress[]{InetAddress.getByAddress(Arrays.copyOf(addr, 16))};
 				} catch (UnknownHostException e) {
 					return null;
 				}
-				break;
 			default:
 				return null;
 		}
-		return IA;
 	}
 
 	public boolean isInvalidAddress() {
-		m_ServerIP = calcInetAddress(ADDRESS_TYPE, DST_Addr);
+		serverAddresses = resolveAll(ADDRESS_TYPE, DST_Addr);
+		m_ServerIP = serverAddresses != null ? serverAddresses[0] : null;
 		m_nServerPort = Utils.calcPort(DST_Port[0], DST_Port[1]);
 
 		m_ClientIP = m_Parent.m_ClientSocket.getInetAddress();
@@ -108,6 +150,13 @@ public class Socks5Impl extends Socks4Impl {
 		}
 	}
 
+	@Override
+	public void rejectHandshake(byte SOCKS_Ver) {
+		SOCKS_Version = SOCKS_Ver;
+		LOGGER.debug("Socks 5 - Reject handshake: server busy");
+		sendAuthResponse(AuthConstants.NONE_ACCEPTED);
+	}
+
 	@Override
 	public void clientAuthResponse() throws Exception {
 		if (acceptedAuthType == AuthConstants.TYPE_NO_AUTH) {
@@ -126,11 +175,22 @@ public class Socks5Impl extends Socks4Impl {
     	byte[] username = readByteString();
     	byte[] password = readByteString();
 
-    	boolean credentialsAccepted = m_Parent.authenticator.validate(username, password);
+    	boolean credentialsAccepted;
+		try {
+			credentialsAccepted = m_Parent.authenticator.validateAsync(username, password).toCompletableFuture()
+					.get(m_Parent.context.config.getAuthenticationTimeoutMillis(), TimeUnit.MILLISECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.debug("Socks 5 - Can't validate credentials: {}", e instanceof ExecutionException ? e.getCause() : "timed out");
+			credentialsAccepted = false;
+		}
+    	m_Parent.context.metrics.authenticated(credentialsAccepted);
+		if (credentialsAccepted) {
+			m_Parent.authenticatedUser = new String(username, StandardCharsets.UTF_8);
+		}
     	m_Parent.sendToClient(credentialsAccepted ? AuthConstants.AUTH_USER_PASS_SUCCESS : AuthConstants.AUTH_USER_PASS_FAILED);
     }
 
-	public byte[] readByteString() {
+	public byte[] readByteString() throws IOException {
 		byte length = getByte();
 		byte[] bytes = new byte[length];
 
@@ -140,7 +200,7 @@ public class Socks5Impl extends Socks4Impl {
 		return bytes;
 	}
 
-	private byte[] getAuthenticationModes() {
+	private byte[] getAuthenticationModes() throws IOException {
 		byte numberOfAuthModesAvailable = getByte();
 		byte[] auths = new byte[numberOfAuthModesAvailable];
 		for (byte i = 0; i < numberOfAuthModesAvailable; i++) {
@@ -163,10 +223,16 @@ public class Socks5Impl extends Socks4Impl {
 		/*byte RSV =*/ getByte(); // Reserved. Must be'00'
 		ADDRESS_TYPE = getByte();
 
+		if (ADDRESS_TYPE != 0x01 && ADDRESS_TYPE != 0x03 && ADDRESS_TYPE != 0x04) {
+			LOGGER.error("SOCKS 5 - GetClientCommand() - Unsupported Address Type: " + ADDRESS_TYPE);
+			refuseCommand((byte) 0x08);
+			throw new Exception("SOCKS 5 - Unsupported Address Type: " + ADDRESS_TYPE);
+		}
+
 		int Addr_Len = ADDR_Size[ADDRESS_TYPE];
 		DST_Addr[0] = getByte();
 		if (ADDRESS_TYPE == 0x03) {
-			Addr_Len = DST_Addr[0] + 1;
+			Addr_Len = (DST_Addr[0] & 0xFF) + 1;
 		}
 
 		for (int i = 1; i < Addr_Len; i++) {
@@ -189,16 +255,15 @@ public class Socks5Impl extends Socks4Impl {
 			throw new Exception("SOCKS 5 - Unsupported Command: \"" + socksCommand + "\"");
 		}
 
-		if (ADDRESS_TYPE == 0x04) {
-			LOGGER.error("SOCKS 5 - GetClientCommand() - Unsupported Address Type - IP v6");
-			refuseCommand((byte) 0x08);
-			throw new Exception("Unsupported Address Type - IP v6");
+		if (ADDRESS_TYPE == 0x03 && socksCommand != SocksConstants.SC_UDP) {
+			m_Parent.destinationHost = new String(DST_Addr, 1, DST_Addr[0] & 0xFF, StandardCharsets.ISO_8859_1);
 		}
 
-		if ((ADDRESS_TYPE >= 0x04) || (ADDRESS_TYPE <= 0)) {
-			LOGGER.error("SOCKS 5 - GetClientCommand() - Unsupported Address Type: " + ADDRESS_TYPE);
-			refuseCommand((byte) 0x08);
-			throw new Exception("SOCKS 5 - Unsupported Address Type: " + ADDRESS_TYPE);
+		// UDP ASSOCIATE names the client's address, its datagrams are checked one by one instead
+		final int access = socksCommand == SocksConstants.SC_UDP ? AccessRules.ALLOWED : checkAccess(ADDRESS_TYPE, DST_Addr, Utils.calcPort(DST_Port[0], DST_Port[1]));
+		if (access == AccessRules.DENIED) {
+			refuseCommand((byte) 0x02); // Connection not allowed by ruleset
+			throw new Exception("SOCKS 5 - Destination not allowed by ruleset");
 		}
 
 		if (isInvalidAddress()) {  // Gets the IP Address
@@ -206,43 +271,45 @@ public class Socks5Impl extends Socks4Impl {
 			throw new Exception("SOCKS 5 - Unknown Host/IP address '" + m_ServerIP.toString() + "'");
 		}
 
+		if (access == AccessRules.NEEDS_ADDRESS && !m_Parent.permitsResolved(DST_Addr, 1, DST_Addr[0] & 0xFF, serverAddresses, m_nServerPort)) {
+			refuseCommand((byte) 0x02);
+			throw new Exception("SOCKS 5 - Destination " + Utils.iP2Str(m_ServerIP) + " not allowed by ruleset");
+		}
+
 		LOGGER.debug("SOCKS 5 - Accepted SOCKS5 Command: \"" + commName(socksCommand) + "\"");
 	}
 
+	/**
+	 * @param address As in a SOCKS5 request or UDP header: the address bytes, or for a domain its length followed by the name.
+	 */
+	private int checkAccess(byte addressType, byte[] address, int port) {
+		return addressType == UdpHeaderCodec.ATYP_DOMAIN
+				? m_Parent.checkAccess(addressType, address, 1, address[0] & 0xFF, port)
+				: m_Parent.checkAccess(addressType, address, 0, addressType == UdpHeaderCodec.ATYP_IPV4 ? 4 : 16, port);
+	}
+
 	public void replyCommand(byte replyCode) {
 		LOGGER.debug("SOCKS 5 - Reply to Client \"" + replyName(replyCode) + "\"");
 
-		final int pt;
-
-		byte[] REPLY = new byte[10];
-		byte[] IP = new byte[4];
-
-		if (m_Parent.m_ServerSocket != null) {
-			pt = m_Parent.m_ServerSocket.getLocalPort();
+		final Socket serverSocket = m_Parent.m_ServerSocket;
+		if (serverSocket != null) {
+			m_Parent.sendToClient(formGenericReply(replyCode, serverSocket.getLocalAddress(), serverSocket.getLocalPort()));// BND.PORT
 		} else {
-			IP[0] = 0;
-			IP[1] = 0;
-			IP[2] = 0;
-			IP[3] = 0;
-			pt = 0;
+			m_Parent.sendToClient(formGenericReply(replyCode, null, 0));
 		}
-
-		formGenericReply(replyCode, pt, REPLY, IP);
-
-		m_Parent.sendToClient(REPLY);// BND.PORT
 	}
 
 	public void bindReply(byte replyCode, InetAddress IA, int PT) {
-		byte[] IP = {0, 0, 0, 0};
-
 		LOGGER.debug("BIND Reply to Client \"" + replyName(replyCode) + "\"");
 
-		byte[] REPLY = new byte[10];
-		if (IA != null) IP = IA.getAddress();
-
-		formGenericReply((byte) ((int) replyCode - 90), PT, REPLY, IP);
+		final byte socks5ReplyCode = (byte) ((int) replyCode - 90);
+		if (socks5ReplyCode != getSuccessCode()) {
+			m_Parent.context.metrics.handshakeFailed(socks5ReplyCode);
+		}
+		final byte[] REPLY = formGenericReply(socks5ReplyCode, IA, PT);
 
-		if (m_Parent.isActive()) {
+		// the first reply goes out before there is a server connection
+		if (m_Parent.m_ClientSocket != null) {
 			m_Parent.sendToClient(REPLY);
 		} else {
 			LOGGER.debug("BIND - Closed Client Connection");
@@ -255,219 +322,283 @@ public class Socks5Impl extends Socks4Impl {
 		if (m_Parent.m_ClientSocket == null) {
 			LOGGER.debug("Error in UDP_Reply() - Client socket is NULL");
 		}
-		byte[] IP = IA.getAddress();
-
-		byte[] REPLY = new byte[10];
 
-		formGenericReply(replyCode, pt, REPLY, IP);
-
-		m_Parent.sendToClient(REPLY);// BND.PORT
+		m_Parent.sendToClient(formGenericReply(replyCode, IA, pt));// BND.PORT
 	}
 
-	private void formGenericReply(byte replyCode, int pt, byte[] REPLY, byte[] IP) {
+	/**
+	 * @param address Encoded as IPv4 or IPv6 depending on its type, {@code null} is sent as 0.0.0.0.
+	 */
+	private static byte[] formGenericReply(byte replyCode, @Nullable InetAddress address, int pt) {
+		final byte[] IP = address != null ? address.getAddress() : new byte[4];
+		final byte[] REPLY = new byte[6 + IP.length];
 		REPLY[0] = SocksConstants.SOCKS5_Version;
 		REPLY[1] = replyCode;
 		REPLY[2] = 0x00;        // Reserved	'00'
-		REPLY[3] = 0x01;        // DOMAIN NAME Address Type IP v4
-		REPLY[4] = IP[0];
-		REPLY[5] = IP[1];
-		REPLY[6] = IP[2];
-		REPLY[7] = IP[3];
-		REPLY[8] = (byte) ((pt & 0xFF00) >> 8);// Port High
-		REPLY[9] = (byte) (pt & 0x00FF);      // Port Low
+		REPLY[3] = IP.length == 16 ? (byte) 0x04 : (byte) 0x01;        // Address Type IP v6 or IP v4
+		System.arraycopy(IP, 0, REPLY, 4, IP.length);
+		REPLY[4 + IP.length] = (byte) ((pt & 0xFF00) >> 8);// Port High
+		REPLY[5 + IP.length] = (byte) (pt & 0x00FF);      // Port Low
+		return REPLY;
 	}
 
 	public void udp() throws IOException {
-		//	Connect to the Remote Host
+		udpBuffer = m_Parent.context.bufferPool.acquire();
 		try {
-			DGSocket = new DatagramSocket();
-			initUdpInOut();
-		} catch (IOException e) {
-			refuseCommand((byte) 0x05); // Connection Refused
-			throw new IOException("Connection Refused - FAILED TO INITIALIZE UDP Association.");
-		}
+			//	Connect to the Remote Host
+			try {
+				DGChannel = DatagramChannel.open();
+				m_Parent.egressAddress = m_Parent.context.egressPool.bind(DGChannel, m_Parent.m_ClientSocket.getLocalAddress(), m_Parent.authenticatedUser);
+			} catch (IOException e) {
+				refuseCommand((byte) 0x05); // Connection Refused
+				throw new IOException("Connection Refused - FAILED TO INITIALIZE UDP Association.", e);
+			}
 
-		InetAddress MyIP = m_Parent.m_ClientSocket.getLocalAddress();
-		int MyPort = DGSocket.getLocalPort();
+			// clients send their datagrams to the egress address the association is bound to, if any
+			InetAddress MyIP = m_Parent.egressAddress != null ? m_Parent.egressAddress : m_Parent.m_ClientSocket.getLocalAddress();
+			int MyPort = DGChannel.socket().getLocalPort();
 
-		//	Return response to the Client
-		// Code '00' - Connection Succeeded,
-		// IP/Port where Server will listen
-		udpReply((byte) 0, MyIP, MyPort);
+			//	Return response to the Client
+			// Code '00' - Connection Succeeded,
+			// IP/Port where Server will listen
+			udpReply((byte) 0, MyIP, MyPort);
 
-		LOGGER.debug("UDP Listen at: <" + MyIP.toString() + ":" + MyPort + ">");
+			LOGGER.debug("UDP Listen at: <" + MyIP.toString() + ":" + MyPort + ">");
 
-		while (m_Parent.checkClientData() >= 0) {
-			processUdp();
-			Thread.yield();
+			relayUdp();
+			LOGGER.debug("UDP - Closed TCP Master of UDP Association");
+		} finally {
+			if (DGChannel != null) {
+				DGChannel.close();
+			}
+			m_Parent.context.bufferPool.release(udpBuffer);
+			udpBuffer = null;
 		}
-		LOGGER.debug("UDP - Closed TCP Master of UDP Association");
-	}
-
-	private void initUdpInOut() throws IOException {
-		DGSocket.setSoTimeout(SocksConstants.DEFAULT_PROXY_TIMEOUT);
-		m_Parent.m_Buffer = new byte[SocksConstants.DEFAULT_BUF_SIZE];
-		DGPack = new DatagramPacket(m_Parent.m_Buffer, SocksConstants.DEFAULT_BUF_SIZE);
-	}
-
-	@NotNull
-	private byte[] addDgpHead(byte[] buffer) {
-		byte[] IABuf = DGPack.getAddress().getAddress();
-		int DGport = DGPack.getPort();
-		int HeaderLen = 6 + IABuf.length;
-		int DataLen = DGPack.getLength();
-		int NewPackLen = HeaderLen + DataLen;
-
-		byte[] UB = new byte[NewPackLen];
-
-		UB[0] = (byte) 0x00;    // Reserved 0x00
-		UB[1] = (byte) 0x00;    // Reserved 0x00
-		UB[2] = (byte) 0x00;    // FRAG '00' - Standalone DataGram
-		UB[3] = (byte) 0x01;    // Address Type -->'01'-IP v4
-		System.arraycopy(IABuf, 0, UB, 4, IABuf.length);
-		UB[4 + IABuf.length] = (byte) ((DGport >> 8) & 0xFF);
-		UB[5 + IABuf.length] = (byte) ((DGport) & 0xFF);
-		System.arraycopy(buffer, 0, UB, 6 + IABuf.length, DataLen);
-		System.arraycopy(UB, 0, buffer, 0, NewPackLen);
-		return UB;
 	}
 
-	@Nullable
-	private byte[] clearDgpHead(byte[] buffer) {
-		final int IAlen;
-		//int	bl	= Buffer.length;
-		int p = 4;    // First byte of IP Address
+	/**
+	 * Relays datagrams as they arrive until the TCP control connection closes, sleeping in between. The control connection is
+	 * watched by the same selector if it is channel backed, otherwise by a thread blocking on it.
+	 */
+	private void relayUdp() throws IOException {
+		final SocketChannel control = m_Parent.m_ClientSocket.getChannel();
+		try (Selector selector = Selector.open()) {
+			m_Parent.udpSelector = selector;
+			DGChannel.configureBlocking(false);
+			final SelectionKey datagramKey = DGChannel.register(selector, SelectionKey.OP_READ);
+			final SelectionKey controlKey;
+			if (control != null) {
+				control.configureBlocking(false);
+				controlKey = control.register(selector, SelectionKey.OP_READ);
+			} else {
+				controlKey = null;
+				watchUdpControl(selector);
+			}
 
-		byte AType = buffer[3];    // IP Address Type
-		switch (AType) {
-			case 0x01:
-				IAlen = 4;
-				break;
-			case 0x03:
-				IAlen = buffer[p] + 1;
-				break; // One for Size Byte
-			default:
-				LOGGER.debug("Error in ClearDGPhead() - Invalid Destination IP Addres type " + AType);
-				return null;
+			final ByteBuffer discarded = ByteBuffer.allocate(64);
+			while (!udpControlClosed && (controlKey == null || controlKey.isValid())) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (key == datagramKey) {
+						//noinspection StatementWithEmptyBody
+						while (processUdp()) {
+							// drain everything that arrived
+						}
+					} else if (key.isValid() && readToEnd(control, discarded)) {
+						udpControlClosed = true;
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} finally {
+			m_Parent.udpSelector = null;
+			// the closed selector deregistered the control channel, so it can be made blocking again for closing the handler
+			if (control != null && control.isOpen()) {
+				control.configureBlocking(true);
+			}
 		}
+	}
 
-		byte[] IABuf = new byte[IAlen];
-		System.arraycopy(buffer, p, IABuf, 0, IAlen);
-		p += IAlen;
-
-		UDP_IA = calcInetAddress(AType, IABuf);
-		UDP_port = Utils.calcPort(buffer[p++], buffer[p++]);
-
-		if (UDP_IA == null) {
-			LOGGER.debug("Error in ClearDGPHead() - Invalid UDP dest IP address: NULL");
-			return null;
+	/**
+	 * Discards what the client sent over the control connection.
+	 *
+	 * @return Whether the control connection is closed.
+	 */
+	private static boolean readToEnd(SocketChannel control, ByteBuffer discarded) {
+		try {
+			int count;
+			do {
+				discarded.clear();
+				count = control.read(discarded);
+			} while (count > 0);
+			return count < 0;
+		} catch (IOException e) {
+			return true;
 		}
-
-		int DataLen = DGPack.getLength();
-		DataLen -= p; // <p> is length of UDP Header
-
-		byte[] UB = new byte[DataLen];
-		System.arraycopy(buffer, p, UB, 0, DataLen);
-		System.arraycopy(UB, 0, buffer, 0, DataLen);
-
-		return UB;
 	}
 
-	protected void udpSend(DatagramPacket DGP) {
-		if (DGP != null) {
-			String LogString = DGP.getAddress() + ":" +
-					DGP.getPort() + "> : " +
-					DGP.getLength() + " bytes";
+	private void watchUdpControl(Selector selector) {
+		final Socket clientSocket = m_Parent.m_ClientSocket;
+		m_Parent.context.clientThreadFactory.newThread(() -> {
 			try {
-				DGSocket.send(DGP);
+				clientSocket.setSoTimeout(0);
+				final byte[] discarded = new byte[64];
+				//noinspection StatementWithEmptyBody
+				while (clientSocket.getInputStream().read(discarded) >= 0) {
+					// the control connection carries no data
+				}
 			} catch (IOException e) {
-				LOGGER.debug("Error in ProcessUDPClient() - Failed to Send DGP to " + LogString);
+				// closed
+			} finally {
+				udpControlClosed = true;
+				selector.wakeup();
 			}
+		}).start();
+	}
+
+	private void udpSend(SocketAddress target) {
+		try {
+			DGChannel.send(udpBuffer, target);
+		} catch (IOException e) {
+			LOGGER.debug("Error in ProcessUDP() - Failed to send datagram to {} : {} bytes", target, udpBuffer.remaining());
 		}
 	}
 
-	public void processUdp() {
-		// Trying to Receive DataGram
+	/**
+	 * Relays one datagram, if one is waiting.
+	 *
+	 * @return Whether a datagram was received.
+	 */
+	public boolean processUdp() {
+		final InetSocketAddress sender;
 		try {
-			DGSocket.receive(DGPack);
-		} catch (InterruptedIOException e) {
-			return;    // Time Out
+			udpBuffer.clear();
+			udpBuffer.position(UdpHeaderCodec.HEADER_ROOM);
+			sender = (InetSocketAddress) DGChannel.receive(udpBuffer);
 		} catch (IOException e) {
 			LOGGER.debug("Error in ProcessUDP() - " + e.toString());
-			return;
+			return false;
 		}
-
-		if (m_ClientIP.equals(DGPack.getAddress())) {
-			processUdpClient();
-		} else {
-			processUdpRemote();
+		if (sender == null) {
+			return false;
+		}
+		udpBuffer.flip();
+		udpBuffer.position(UdpHeaderCodec.HEADER_ROOM);
+		if (m_Parent.idleTimeout != null) {
+			m_Parent.idleTimeout.touch();
 		}
 
-		try {
-			initUdpInOut();    // Clean DGPack & Buffer
-		} catch (IOException e) {
-			LOGGER.debug("IOError in Init_UDP_IO() - " + e.toString());
-			m_Parent.close();
+		if (isFromClient(sender)) {
+			processUdpClient(sender);
+		} else {
+			processUdpRemote(sender);
 		}
+		return true;
 	}
 
 	/**
-	 * Processing Client's datagram
-	 * This Method must be called only from {@link #processUdp()}
+	 * The client's UDP port is only known once its first datagram arrives: until then anything from the client's host is taken
+	 * to be the client, after that only datagrams from that port are. Otherwise remote peers on the client's host (think
+	 * loopback) would be mistaken for the client.
 	 */
-	private void processUdpClient() {
-		m_nClientPort = DGPack.getPort();
+	private boolean isFromClient(InetSocketAddress sender) {
+		return m_ClientIP.equals(sender.getAddress()) && (clientUdpPort == 0 || clientUdpPort == sender.getPort());
+	}
 
-		// Also calculates UDP_IA & UDP_port ...
-		byte[] Buf = clearDgpHead(DGPack.getData());
-		if (Buf == null) return;
+	/**
+	 * Strips the header off a client's datagram, which sits between the buffer's position and limit, and sends the payload on to
+	 * its destination. This Method must be called only from {@link #processUdp()}
+	 */
+	private void processUdpClient(InetSocketAddress sender) {
+		if (udpClient == null || !udpClient.equals(sender)) {
+			udpClient = sender;
+			m_nClientPort = sender.getPort();
+			clientUdpPort = m_nClientPort;
+		}
 
-		if (Buf.length <= 0) return;
+		final int offset = udpBuffer.position();
+		final int length = udpBuffer.remaining();
+		final int headerLength = UdpHeaderCodec.headerLength(udpBuffer, offset, length);
+		if (headerLength < 0) {
+			LOGGER.debug("Error in ProcessUDPClient() - Invalid or fragmented UDP request header");
+			return;
+		}
+		if (headerLength == length) return;
 
-		if (UDP_IA == null) {
+		final InetSocketAddress destination = udpDestination(offset, headerLength);
+		if (destination == null) {
 			LOGGER.debug("Error in ProcessUDPClient() - Invalid Destination IP - NULL");
 			return;
 		}
-		if (UDP_port == 0) {
+		if (destination.getPort() == 0) {
 			LOGGER.debug("Error in ProcessUDPClient() - Invalid Destination Port - 0");
 			return;
 		}
+		m_ServerIP = destination.getAddress();
+		m_nServerPort = destination.getPort();
 
-		if (m_ServerIP != UDP_IA || m_nServerPort != UDP_port) {
-			m_ServerIP = UDP_IA;
-			m_nServerPort = UDP_port;
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Datagram : {} bytes : {} >> <{}:{}>", length - headerLength, sender, Utils.iP2Str(m_ServerIP), m_nServerPort);
 		}
 
-		LOGGER.debug("Datagram : " + Buf.length + " bytes : " + getSocketInfo(DGPack) +
-				" >> <" + Utils.iP2Str(m_ServerIP) + ":" + m_nServerPort + ">");
-
-		DatagramPacket DGPSend = new DatagramPacket(Buf, Buf.length,
-				UDP_IA, UDP_port);
-
-		udpSend(DGPSend);
+		udpBuffer.position(offset + headerLength);
+		udpSend(destination);
+		m_Parent.relayedUdpDatagramClientToRemote();
 	}
 
+	@Nullable
+	private InetSocketAddress udpDestination(int offset, int headerLength) {
+		// ATYP, DST.ADDR and DST.PORT
+		final int keyOffset = offset + 3;
+		final int keyLength = headerLength - 3;
+		if (udpDestination != null && keyLength == udpDestinationKeyLength && UdpHeaderCodec.regionMatches(udpBuffer, keyOffset, udpDestinationKey, keyLength)) {
+			return udpDestination;
+		}
+		UdpHeaderCodec.copyRegion(udpBuffer, keyOffset, udpDestinationKey, keyLength);
+		udpDestinationKeyLength = 0;
+		final byte[] destinationAddress = Arrays.copyOfRange(udpDestinationKey, 1, keyLength - 2);
+		final int port = UdpHeaderCodec.port(udpBuffer, offset, headerLength);
+		final int access = checkAccess(udpDestinationKey[0], destinationAddress, port);
+		if (access == AccessRules.DENIED) {
+			LOGGER.debug("UDP datagram to a destination not allowed by ruleset dropped");
+			return null;
+		}
+		final InetAddress address = calcInetAddress(udpDestinationKey[0], destinationAddress);
+		if (address == null) {
+			return null;
+		}
+		if (access == AccessRules.NEEDS_ADDRESS && !m_Parent.permitsResolved(destinationAddress, 1, destinationAddress[0] & 0xFF, new InetAddress[]{address}, port)) {
+			LOGGER.debug("UDP datagram to {} not allowed by ruleset dropped", address);
+			return null;
+		}
+		udpDestination = new InetSocketAddress(address, port);
+		udpDestinationKeyLength = keyLength;
+		return udpDestination;
+	}
 
-	public void processUdpRemote() {
-		LOGGER.debug(format("Datagram : %d bytes : <%s:%d> << %s",
-				DGPack.getLength(), Utils.iP2Str(m_ClientIP), m_nClientPort, getSocketInfo(DGPack)));
-
-		// This Method must be CALL only from <ProcessUDP()>
-		// ProcessUDP() Reads a Datagram packet <DGPack>
-
-		InetAddress DGP_IP = DGPack.getAddress();
-		int DGP_Port = DGPack.getPort();
+	/**
+	 * Prepends the header to a remote peer's datagram, which was received {@link UdpHeaderCodec#HEADER_ROOM} bytes into the
+	 * buffer, and sends it to the client. This Method must be called only from {@link #processUdp()}
+	 */
+	private void processUdpRemote(InetSocketAddress sender) {
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Datagram : {} bytes : <{}:{}> << {}", udpBuffer.remaining(), Utils.iP2Str(m_ClientIP), m_nClientPort, sender);
+		}
 
-		final byte[] Buf = addDgpHead(m_Parent.m_Buffer);
+		if (!sender.equals(lastUdpSender)) {
+			lastUdpSender = sender;
+			lastUdpSenderAddress = sender.getAddress().getAddress();
+		}
+		udpBuffer.position(UdpHeaderCodec.writeHeader(udpBuffer, udpBuffer.position(), lastUdpSenderAddress, sender.getPort()));
 
 		// SendTo Client
-		DatagramPacket DGPSend = new DatagramPacket(Buf, Buf.length,
-				m_ClientIP, m_nClientPort);
-		udpSend(DGPSend);
-
-		if (DGP_IP != UDP_IA || DGP_Port != UDP_port) {
-			m_ServerIP = DGP_IP;
-			m_nServerPort = DGP_Port;
+		if (udpClient == null) {
+			udpClient = new InetSocketAddress(m_ClientIP, m_nClientPort);
 		}
+		udpSend(udpClient);
+		m_Parent.relayedUdpDatagramRemoteToClient();
+
+		m_ServerIP = sender.getAddress();
+		m_nServerPort = sender.getPort();
 	}
-}
\ No newline at end of file
+}
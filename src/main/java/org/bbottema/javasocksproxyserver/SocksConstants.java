@@ -2,12 +2,20 @@ package org.bbottema.javasocksproxyserver;
 
 public interface SocksConstants {
 
-	// refactor
+	// defaults of ServerConfig
 	int LISTEN_TIMEOUT = 200;
+	/**
+	 * @deprecated No longer used, client sockets get the relay poll interval of the {@link ServerConfig} right away.
+	 */
+	@Deprecated
 	int DEFAULT_SERVER_TIMEOUT = 200;
+	int DEFAULT_LISTEN_BACKLOG = 50;
 
 	int DEFAULT_BUF_SIZE = 4096;
 	int DEFAULT_PROXY_TIMEOUT = 10;
+	int DEFAULT_CONNECT_TIMEOUT = 10000;
+	int DEFAULT_AUTHENTICATION_TIMEOUT = 10000;
+	int DEFAULT_CLOSE_TIMEOUT = 5000;
 
 	byte SOCKS5_Version = 0x05;
 	byte SOCKS4_Version = 0x04;
@@ -0,0 +1,298 @@
+package org.bbottema.javasocksproxyserver;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters of a single {@link SocksServer} or {@link SyncSocksServer}, readable through {@link #snapshot()} or over
+ * JMX once {@link #registerMBean(String) registered}.
+ * <p>
+ * Counters accumulate over the lifetime of the server instance, across restarts.
+ */
+public class SocksMetrics implements SocksMetricsMXBean {
+
+	private static final String[] VERSION_NAMES = {"SOCKS4", "SOCKS5"};
+	private static final String[] COMMAND_NAMES = {"CONNECT", "BIND", "UDP"};
+
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectionsActive = new LongAdder();
+	private final LongAdder connectionsRejected = new LongAdder();
+	private final LongAdder handshakesRejected = new LongAdder();
+	// [version][command], see VERSION_NAMES and COMMAND_NAMES
+	private final LongAdder[][] commandsTotal = newAdders(VERSION_NAMES.length, COMMAND_NAMES.length);
+	private final LongAdder[][] commandsActive = newAdders(VERSION_NAMES.length, COMMAND_NAMES.length);
+	private final LongAdder bytesClientToServer = new LongAdder();
+	private final LongAdder bytesServerToClient = new LongAdder();
+	// indexed by unsigned reply code
+	private final LongAdder[] handshakeFailures = newAdders(1, 256)[0];
+	private final LongAdder authSuccesses = new LongAdder();
+	private final LongAdder authFailures = new LongAdder();
+	private final LongAdder udpDatagramsClientToRemote = new LongAdder();
+	private final LongAdder udpDatagramsRemoteToClient = new LongAdder();
+	private final LongAdder handshakesTimedOut = new LongAdder();
+	private final LongAdder tunnelsTimedOut = new LongAdder();
+	private final LongAdder udpAssociationsTimedOut = new LongAdder();
+
+	private ObjectName registeredName;
+
+	/**
+	 * Registers these metrics with the platform MBean server as {@code org.bbottema.javasocksproxyserver:type=SocksMetrics,name=<name>}.
+	 */
+	@NotNull
+	public synchronized ObjectName registerMBean(@NotNull String name) throws JMException {
+		final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName objectName = new ObjectName("org.bbottema.javasocksproxyserver:type=SocksMetrics,name=" + ObjectName.quote(name));
+		if (registeredName != null) {
+			throw new InstanceAlreadyExistsException("Already registered as " + registeredName);
+		}
+		mBeanServer.registerMBean(this, objectName);
+		registeredName = objectName;
+		return objectName;
+	}
+
+	public synchronized void unregisterMBean() throws JMException {
+		if (registeredName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+
+	@NotNull
+	public Snapshot snapshot() {
+		return new Snapshot(
+				connectionsAccepted.sum(),
+				connectionsActive.sum(),
+				connectionsRejected.sum(),
+				handshakesRejected.sum(),
+				getCommandsTotal(),
+				getCommandsActive(),
+				bytesClientToServer.sum(),
+				bytesServerToClient.sum(),
+				getHandshakeFailures(),
+				authSuccesses.sum(),
+				authFailures.sum(),
+				udpDatagramsClientToRemote.sum(),
+				udpDatagramsRemoteToClient.sum(),
+				handshakesTimedOut.sum(),
+				tunnelsTimedOut.sum(),
+				udpAssociationsTimedOut.sum());
+	}
+
+	void connectionOpened() {
+		connectionsAccepted.increment();
+		connectionsActive.increment();
+	}
+
+	void connectionClosed() {
+		connectionsActive.decrement();
+	}
+
+	void connectionRejected() {
+		connectionsRejected.increment();
+	}
+
+	void handshakeRejected() {
+		handshakesRejected.increment();
+	}
+
+	void commandStarted(byte socksVersion, byte command) {
+		if (isKnown(socksVersion, command)) {
+			commandsTotal[socksVersion - SocksConstants.SOCKS4_Version][command - 1].increment();
+			commandsActive[socksVersion - SocksConstants.SOCKS4_Version][command - 1].increment();
+		}
+	}
+
+	void commandEnded(byte socksVersion, byte command) {
+		if (isKnown(socksVersion, command)) {
+			commandsActive[socksVersion - SocksConstants.SOCKS4_Version][command - 1].decrement();
+		}
+	}
+
+	void handshakeFailed(byte replyCode) {
+		handshakeFailures[replyCode & 0xFF].increment();
+	}
+
+	void authenticated(boolean success) {
+		(success ? authSuccesses : authFailures).increment();
+	}
+
+	void bytesClientToServer(int count) {
+		bytesClientToServer.add(count);
+	}
+
+	void bytesServerToClient(int count) {
+		bytesServerToClient.add(count);
+	}
+
+	void udpDatagramClientToRemote() {
+		udpDatagramsClientToRemote.increment();
+	}
+
+	void udpDatagramRemoteToClient() {
+		udpDatagramsRemoteToClient.increment();
+	}
+
+	void handshakeTimedOut() {
+		handshakesTimedOut.increment();
+	}
+
+	void tunnelTimedOut() {
+		tunnelsTimedOut.increment();
+	}
+
+	void udpAssociationTimedOut() {
+		udpAssociationsTimedOut.increment();
+	}
+
+	@Override
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	@Override
+	public long getConnectionsActive() {
+		return connectionsActive.sum();
+	}
+
+	@Override
+	public long getConnectionsRejected() {
+		return connectionsRejected.sum();
+	}
+
+	@Override
+	public long getHandshakesRejected() {
+		return handshakesRejected.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCommandsTotal() {
+		return toMap(commandsTotal);
+	}
+
+	@Override
+	public Map<String, Long> getCommandsActive() {
+		return toMap(commandsActive);
+	}
+
+	@Override
+	public long getBytesClientToServer() {
+		return bytesClientToServer.sum();
+	}
+
+	@Override
+	public long getBytesServerToClient() {
+		return bytesServerToClient.sum();
+	}
+
+	@Override
+	public Map<String, Long> getHandshakeFailures() {
+		final Map<String, Long> result = new LinkedHashMap<>();
+		for (int code = 0; code < handshakeFailures.length; code++) {
+			final long count = handshakeFailures[code].sum();
+			if (count > 0) {
+				result.put(code + " " + Socks4Impl.describeReply((byte) code), count);
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	@Override
+	public long getAuthSuccesses() {
+		return authSuccesses.sum();
+	}
+
+	@Override
+	public long getAuthFailures() {
+		return authFailures.sum();
+	}
+
+	@Override
+	public long getUdpDatagramsClientToRemote() {
+		return udpDatagramsClientToRemote.sum();
+	}
+
+	@Override
+	public long getUdpDatagramsRemoteToClient() {
+		return udpDatagramsRemoteToClient.sum();
+	}
+
+	@Override
+	public long getHandshakesTimedOut() {
+		return handshakesTimedOut.sum();
+	}
+
+	@Override
+	public long getTunnelsTimedOut() {
+		return tunnelsTimedOut.sum();
+	}
+
+	@Override
+	public long getUdpAssociationsTimedOut() {
+		return udpAssociationsTimedOut.sum();
+	}
+
+	/**
+	 * @return The command's name as used in the counters, {@code null} if it's not a known command.
+	 */
+	static String commandName(byte command) {
+		return command >= SocksConstants.SC_CONNECT && command <= SocksConstants.SC_UDP ? COMMAND_NAMES[command - 1] : null;
+	}
+
+	private static boolean isKnown(byte socksVersion, byte command) {
+		return (socksVersion == SocksConstants.SOCKS4_Version || socksVersion == SocksConstants.SOCKS5_Version)
+				&& command >= SocksConstants.SC_CONNECT && command <= SocksConstants.SC_UDP;
+	}
+
+	private static Map<String, Long> toMap(LongAdder[][] adders) {
+		final Map<String, Long> result = new LinkedHashMap<>();
+		for (int version = 0; version < VERSION_NAMES.length; version++) {
+			for (int command = 0; command < COMMAND_NAMES.length; command++) {
+				result.put(VERSION_NAMES[version] + " " + COMMAND_NAMES[command], adders[version][command].sum());
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	private static LongAdder[][] newAdders(int rows, int columns) {
+		final LongAdder[][] adders = new LongAdder[rows][columns];
+		for (LongAdder[] row : adders) {
+			for (int i = 0; i < columns; i++) {
+				row[i] = new LongAdder();
+			}
+		}
+		return adders;
+	}
+
+	/**
+	 * Point-in-time copy of all counters. Maps are keyed like {@code "SOCKS5 CONNECT"} and {@code "4 HOST Unreachable"}.
+	 */
+	@Value
+	public static class Snapshot {
+		long connectionsAccepted;
+		long connectionsActive;
+		long connectionsRejected;
+		long handshakesRejected;
+		Map<String, Long> commandsTotal;
+		Map<String, Long> commandsActive;
+		long bytesClientToServer;
+		long bytesServerToClient;
+		Map<String, Long> handshakeFailures;
+		long authSuccesses;
+		long authFailures;
+		long udpDatagramsClientToRemote;
+		long udpDatagramsRemoteToClient;
+		long handshakesTimedOut;
+		long tunnelsTimedOut;
+		long udpAssociationsTimedOut;
+	}
+}
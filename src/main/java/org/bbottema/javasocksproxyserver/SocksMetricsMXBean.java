@@ -0,0 +1,62 @@
+package org.bbottema.javasocksproxyserver;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SocksMetrics}.
+ */
+public interface SocksMetricsMXBean {
+
+	long getConnectionsAccepted();
+
+	long getConnectionsActive();
+
+	/**
+	 * @return Connections closed right after accepting them, because of {@link ConnectionLimits}.
+	 */
+	long getConnectionsRejected();
+
+	/**
+	 * @return Connections turned away before their handshake, because of {@link ConnectionLimits}.
+	 */
+	long getHandshakesRejected();
+
+	/**
+	 * @return Commands accepted since the start, keyed by SOCKS version and command, for example {@code "SOCKS5 CONNECT"}.
+	 */
+	Map<String, Long> getCommandsTotal();
+
+	Map<String, Long> getCommandsActive();
+
+	long getBytesClientToServer();
+
+	long getBytesServerToClient();
+
+	/**
+	 * @return Refused handshakes, keyed by the reply code sent to the client and its name.
+	 */
+	Map<String, Long> getHandshakeFailures();
+
+	long getAuthSuccesses();
+
+	long getAuthFailures();
+
+	long getUdpDatagramsClientToRemote();
+
+	long getUdpDatagramsRemoteToClient();
+
+	/**
+	 * @return Connections closed because their handshake took longer than the {@link IdleTimeouts} allow.
+	 */
+	long getHandshakesTimedOut();
+
+	/**
+	 * @return CONNECT and BIND tunnels closed because they were idle for longer than the {@link IdleTimeouts} allow.
+	 */
+	long getTunnelsTimedOut();
+
+	/**
+	 * @return UDP associations closed because they were idle for longer than the {@link IdleTimeouts} allow.
+	 */
+	long getUdpAssociationsTimedOut();
+}
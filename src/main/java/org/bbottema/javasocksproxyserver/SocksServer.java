@@ -1,24 +1,53 @@
 package org.bbottema.javasocksproxyserver;
 
 import org.bbottema.javasocksproxyserver.auth.Authenticator;
+import org.bbottema.javasocksproxyserver.dns.CachingHostResolver;
+import org.bbottema.javasocksproxyserver.dns.HostResolver;
+import org.bbottema.javasocksproxyserver.auth.DefaultAuthenticator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ServerSocketFactory;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 public class SocksServer {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(SocksServer.class);
+	private static final long THREAD_START_FAILURE_BACKOFF_MILLIS = 100;
 	
 	private volatile boolean stopped = false;
 	private int listenPort;
 
 	private ServerSocketFactory factory;
 	private Authenticator authenticator = null;
+	private NioRelayEngine relayEngine = null;
+	private ThreadFactory clientThreadFactory = ClientThreadFactories.platformThreads();
+	private boolean fullDuplexRelay = false;
+	private HostResolver hostResolver = null;
+	private ConnectionLimits connectionLimits = ConnectionLimits.unlimited();
+	private BandwidthLimits bandwidthLimits = BandwidthLimits.unlimited();
+	private InetAddress bindAddress = null;
+	private EgressAddresses egressAddresses = EgressAddresses.none();
+	private AccessRules accessRules = AccessRules.allowAll();
+	private final List<ConnectionListener> connectionListeners = new ArrayList<>();
+	private ServerConfig config = ServerConfig.defaults();
+	private int acceptorThreads = 1;
+	private boolean reusePort = false;
+	private final SocksMetrics metrics = new SocksMetrics();
+	private final SessionRegistry sessions = new SessionRegistry();
+	private final Set<ServerSocket> listenSockets = ConcurrentHashMap.newKeySet();
+	private final List<Thread> acceptors = new ArrayList<>();
 
 	public SocksServer() {
 		listenPort = 1080;
@@ -35,11 +64,203 @@ public class SocksServer {
 		this.factory = factory;
 	}
 
+	public SocksServer(int listenPort, ServerSocketFactory factory, ServerConfig config) {
+		this.listenPort = listenPort;
+		this.factory = factory;
+		this.config = config;
+	}
+
+	/**
+	 * Replaces all tunables at once: buffer sizes, timeouts, socket options and the listen backlog. The setters for single
+	 * tunables, such as {@link #setConnectTimeout(int)}, change the current configuration.
+	 */
+	public synchronized SocksServer setConfig(ServerConfig config) {
+		this.config = config;
+		return this;
+	}
+
+	public synchronized ServerConfig getConfig() {
+		return config;
+	}
+
 	public synchronized SocksServer setAuthenticator(Authenticator authenticator) {
 		this.authenticator = authenticator;
 		return this;
 	}
 
+	/**
+	 * Relays established CONNECT and BIND tunnels on the given event-driven engine instead of a polling thread per tunnel.
+	 * Has no effect on tunnels accepted through a custom {@link ServerSocketFactory}, unless it produces channel backed sockets.
+	 */
+	public synchronized SocksServer setRelayEngine(NioRelayEngine relayEngine) {
+		this.relayEngine = relayEngine;
+		return this;
+	}
+
+	/**
+	 * Determines the threads client connections run on, for example {@link ClientThreadFactories#virtualThreads()} to handle far
+	 * more concurrent tunnels than platform threads allow. Defaults to a new platform thread per connection.
+	 */
+	public synchronized SocksServer setClientThreadFactory(ThreadFactory clientThreadFactory) {
+		this.clientThreadFactory = clientThreadFactory;
+		return this;
+	}
+
+	/**
+	 * Relays tunnels that aren't handled by a {@link NioRelayEngine} with one thread and buffer per direction, instead of polling
+	 * both directions from a single thread. Costs one extra thread per tunnel, taken from the client thread factory.
+	 */
+	public synchronized SocksServer setFullDuplexRelay(boolean fullDuplexRelay) {
+		this.fullDuplexRelay = fullDuplexRelay;
+		return this;
+	}
+
+	/**
+	 * Replaces the resolver for domain names requested by SOCKS5 clients. By default, lookups go through a JVM-wide
+	 * {@link CachingHostResolver} on top of the system resolver.
+	 */
+	public synchronized SocksServer setHostResolver(HostResolver hostResolver) {
+		this.hostResolver = hostResolver;
+		return this;
+	}
+
+	/**
+	 * Bounds the time spent connecting to a CONNECT destination, over all of its addresses. Defaults to
+	 * {@value SocksConstants#DEFAULT_CONNECT_TIMEOUT} ms, 0 waits for as long as the operating system does.
+	 */
+	public synchronized SocksServer setConnectTimeout(int connectTimeoutMillis) {
+		this.config = config.toBuilder().connectTimeoutMillis(connectTimeoutMillis).build();
+		return this;
+	}
+
+	/**
+	 * Caps concurrent connections and handshakes, globally and per client IP address, so a flood of clients is shed cheaply
+	 * instead of exhausting threads and file descriptors. Unlimited by default.
+	 */
+	public synchronized SocksServer setConnectionLimits(ConnectionLimits connectionLimits) {
+		this.connectionLimits = connectionLimits;
+		return this;
+	}
+
+	/**
+	 * Rate limits relayed tunnels per connection, per authenticated user and globally, so one bulk transfer can't starve every
+	 * other client of the proxy. Unlimited by default.
+	 */
+	public synchronized SocksServer setBandwidthLimits(BandwidthLimits bandwidthLimits) {
+		this.bandwidthLimits = bandwidthLimits;
+		return this;
+	}
+
+	/**
+	 * Closes connections whose handshake takes too long, and tunnels and UDP associations that have been idle for too long, so
+	 * they don't leak file descriptors. Disabled by default.
+	 */
+	public synchronized SocksServer setIdleTimeouts(IdleTimeouts idleTimeouts) {
+		this.config = config.toBuilder().idleTimeouts(idleTimeouts).build();
+		return this;
+	}
+
+	/**
+	 * Allows or refuses CONNECT and BIND requests and UDP datagrams by client network, destination network or domain, destination
+	 * port and authenticated user, before resolving or connecting anything. Allows everything by default.
+	 */
+	public synchronized SocksServer setAccessRules(AccessRules accessRules) {
+		this.accessRules = accessRules;
+		return this;
+	}
+
+	/**
+	 * Adds a listener to the lifecycle events of the connections of servers started after this call, such as for billing or
+	 * tracing. Without listeners, connections don't produce any events.
+	 */
+	public synchronized SocksServer addConnectionListener(ConnectionListener listener) {
+		connectionListeners.add(listener);
+		return this;
+	}
+
+	/**
+	 * Sets the local addresses outbound connections and UDP associations are made from, spread over them by the given strategy,
+	 * so the host's outbound connection capacity grows with its number of addresses. By default the operating system picks one.
+	 */
+	public synchronized SocksServer setEgressAddresses(EgressAddresses egressAddresses) {
+		this.egressAddresses = egressAddresses;
+		return this;
+	}
+
+	/**
+	 * Sets the address advertised to BIND clients as where to connect to. By default it's worked out once per server, from the
+	 * listening interface or otherwise the interface of the default route, without contacting any external host.
+	 */
+	public synchronized SocksServer setBindAddress(InetAddress bindAddress) {
+		this.bindAddress = bindAddress;
+		return this;
+	}
+
+	/**
+	 * Sets the number of pending connections the operating system queues for the listening socket before refusing new ones.
+	 * Defaults to {@value SocksConstants#DEFAULT_LISTEN_BACKLOG}.
+	 */
+	public synchronized SocksServer setListenBacklog(int listenBacklog) {
+		this.config = config.toBuilder().listenBacklog(listenBacklog).build();
+		return this;
+	}
+
+	/**
+	 * Accepts connections on several threads, for hosts with a very high connection setup rate. By default all acceptors share
+	 * one listening socket, see {@link #setReusePort(boolean)} for one socket per acceptor. Defaults to a single acceptor.
+	 */
+	public synchronized SocksServer setAcceptorThreads(int acceptorThreads) {
+		if (acceptorThreads < 1) {
+			throw new IllegalArgumentException("acceptorThreads must be positive");
+		}
+		this.acceptorThreads = acceptorThreads;
+		return this;
+	}
+
+	/**
+	 * Gives every acceptor thread its own listening socket with {@code SO_REUSEPORT}, so the kernel balances new connections over
+	 * them instead of all acceptors contending for one socket. Requires Java 9+ on an OS that supports the option, such as Linux,
+	 * and a fixed listen port; otherwise the acceptors fall back to sharing a single socket.
+	 */
+	public synchronized SocksServer setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+		return this;
+	}
+
+	/**
+	 * @return Counters of this server, accumulated across restarts. Use {@link SocksMetrics#registerMBean(String)} to expose them over JMX.
+	 */
+	public SocksMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return A snapshot of every live client connection, in no particular order. Cheap enough to poll, but it does copy the
+	 * state of every connection.
+	 */
+	public List<Session> getSessions() {
+		return sessions.snapshot();
+	}
+
+	/**
+	 * Closes a live connection on both sides, such as an abusive tunnel found through {@link #getSessions()}.
+	 *
+	 * @return Whether the connection was still live.
+	 */
+	public boolean closeSession(long sessionId) {
+		return sessions.close(sessionId);
+	}
+
+	/**
+	 * Closes every live connection the predicate accepts, for example all tunnels of one user:
+	 * {@code closeSessions(session -> "mallory".equals(session.getUser()))}.
+	 *
+	 * @return The number of connections closed.
+	 */
+	public int closeSessions(Predicate<? super Session> predicate) {
+		return sessions.closeMatching(predicate);
+	}
+
 	@Deprecated
 	public synchronized void start(int port) {
 		start(port, ServerSocketFactory.getDefault());
@@ -54,25 +275,105 @@ public class SocksServer {
 
 	public synchronized SocksServer start() {
 		stopped = false;
-		new Thread(new ServerProcess(listenPort, factory, authenticator)).start();
+		final ServerContext context = new ServerContext(authenticator != null ? authenticator : new DefaultAuthenticator());
+		context.relayEngine = relayEngine;
+		context.clientThreadFactory = clientThreadFactory;
+		context.fullDuplexRelay = fullDuplexRelay;
+		context.config = config;
+		if (config.getBufferSize() != SocksConstants.DEFAULT_BUF_SIZE) {
+			context.bufferPool = new BufferPool(config.getBufferSize(), BufferPool.DEFAULT_MAX_POOLED_BUFFERS, false);
+		}
+		context.metrics = metrics;
+		context.admissionControl = new AdmissionControl(connectionLimits);
+		context.bandwidthShaper = new BandwidthShaper(bandwidthLimits);
+		context.sessions = sessions;
+		context.bindAddressResolver = new BindAddressResolver(bindAddress);
+		context.egressPool = egressAddresses.isNone() ? EgressPool.NONE : new EgressPool(egressAddresses);
+		context.accessRules = accessRules;
+		context.connectionListener = ConnectionListeners.of(connectionListeners);
+		if (hostResolver != null) {
+			context.hostResolver = hostResolver;
+		}
+		final ServerSocketFactory serverSocketFactory = ChannelServerSocketFactory.forEngine(factory, relayEngine);
+		if (acceptorThreads > 1 && reusePort && listenPort != 0 && ReusePort.isSupported()) {
+			for (int i = 0; i < acceptorThreads; i++) {
+				startAcceptor(new ServerProcess(listenPort, config.getListenBacklog(), serverSocketFactory, context, 1, true), i);
+			}
+		} else {
+			if (reusePort && acceptorThreads > 1) {
+				LOGGER.warn("SO_REUSEPORT not available, {} acceptors will share one listening socket", acceptorThreads);
+			}
+			startAcceptor(new ServerProcess(listenPort, config.getListenBacklog(), serverSocketFactory, context, acceptorThreads, false), 0);
+		}
 		return this;
 	}
 
+	private void startAcceptor(ServerProcess serverProcess, int index) {
+		final Thread acceptor = new Thread(serverProcess, "socks-acceptor-" + listenPort + "-" + index);
+		acceptors.removeIf(previous -> !previous.isAlive());
+		acceptors.add(acceptor);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops accepting new connections, leaving the ones in flight alone.
+	 */
 	public synchronized SocksServer stop() {
 		stopped = true;
+		for (ServerSocket listenSocket : listenSockets) {
+			try {
+				listenSocket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
 		return this;
 	}
+
+	/**
+	 * Stops accepting new connections and drains the ones in flight: they get up to the drain timeout, in total, to end by
+	 * themselves, after which all remaining connections are closed at once. Blocks until every connection is gone, or for at
+	 * most the configured close timeout more, {@value SocksConstants#DEFAULT_CLOSE_TIMEOUT} ms by default.
+	 *
+	 * @param drainTimeoutMillis How long connections may take to end by themselves, 0 to close them right away.
+	 * @return Whether all connections ended in time.
+	 */
+	public synchronized boolean stop(long drainTimeoutMillis) {
+		stop();
+		// once the acceptors are done, no new connections can slip past the drain
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getCloseTimeoutMillis());
+		for (Thread acceptor : acceptors) {
+			try {
+				acceptor.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		acceptors.clear();
+		return ConnectionDrain.drain(sessions, drainTimeoutMillis, config.getCloseTimeoutMillis());
+	}
 	
 	private class ServerProcess implements Runnable {
 		
 		protected final int port;
+		private final int backlog;
 		private final ServerSocketFactory serverSocketFactory;
-		private final Authenticator authenticator;
+		private final ServerContext context;
+		private final int acceptors;
+		private final boolean reusePort;
 		
-		public ServerProcess(int port, ServerSocketFactory serverSocketFactory, Authenticator authenticator) {
+		/**
+		 * @param acceptors Number of threads accepting on the listening socket, including this one.
+		 * @param reusePort Whether to open the listening socket with {@code SO_REUSEPORT}, so other processes can share the port.
+		 */
+		public ServerProcess(int port, int backlog, ServerSocketFactory serverSocketFactory, ServerContext context, int acceptors, boolean reusePort) {
 			this.port = port;
+			this.backlog = backlog;
 			this.serverSocketFactory = serverSocketFactory;
-			this.authenticator = authenticator;
+			this.context = context;
+			this.acceptors = acceptors;
+			this.reusePort = reusePort;
 		}
 		
 		@Override
@@ -88,18 +389,31 @@ public class SocksServer {
 		}
 
 		protected void handleClients(int port) throws IOException {
-			final ServerSocket listenSocket = serverSocketFactory.createServerSocket(port);
-			listenSocket.setSoTimeout(SocksConstants.LISTEN_TIMEOUT);
+			final ServerSocket listenSocket = reusePort
+					? ReusePort.bind(serverSocketFactory, port, backlog)
+					: serverSocketFactory.createServerSocket(port, backlog);
+			listenSocket.setSoTimeout(context.config.getAcceptPollMillis());
+			listenSockets.add(listenSocket);
+			context.bindAddressResolver.listeningOn(listenSocket.getInetAddress());
+			if (stopped) {
+				// stopped while opening the socket, too late for stop() to close it
+				listenSocket.close();
+			}
 
             LOGGER.debug("SOCKS server listening at port: {}", listenSocket.getLocalPort());
 
-			while (true) {
-				synchronized (SocksServer.this) {
-					if (stopped) {
-						break;
-					}
+			final Thread[] extraAcceptors = new Thread[acceptors - 1];
+			for (int i = 0; i < extraAcceptors.length; i++) {
+				extraAcceptors[i] = new Thread(() -> acceptClients(listenSocket), "socks-acceptor-" + port + "-" + (i + 1));
+				extraAcceptors[i].start();
+			}
+			acceptClients(listenSocket);
+			for (Thread acceptor : extraAcceptors) {
+				try {
+					acceptor.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
-				handleNextClient(listenSocket);
 			}
 
 			try {
@@ -107,18 +421,55 @@ public class SocksServer {
 			} catch (IOException e) {
 				// ignore
 			}
+			listenSockets.remove(listenSocket);
+		}
+
+		private void acceptClients(ServerSocket listenSocket) {
+			// a closed socket means this server was stopped, even if it was restarted right after
+			while (!stopped && !listenSocket.isClosed()) {
+				handleNextClient(listenSocket);
+			}
 		}
 
 		private void handleNextClient(ServerSocket listenSocket) {
 			try {
 				final Socket clientSocket = listenSocket.accept();
-				clientSocket.setSoTimeout(SocksConstants.DEFAULT_SERVER_TIMEOUT);
+				if (!context.admissionControl.admit(clientSocket, context.metrics)) {
+					return;
+				}
+				context.config.getClientSocketOptions().applyTo(clientSocket);
                 LOGGER.debug("Connection from : {}", Utils.getSocketInfo(clientSocket));
-				new Thread(new ProxyHandler(clientSocket, authenticator)).start();
+				final ProxyHandler handler = new ProxyHandler(clientSocket, context);
+				try {
+					context.clientThreadFactory.newThread(handler).start();
+				} catch (RuntimeException e) {
+					handler.close();
+					handler.finish();
+					throw e;
+				} catch (OutOfMemoryError e) {
+					// most likely no more native threads: drop this client, but keep accepting for when connections end
+					handler.close();
+					handler.finish();
+					LOGGER.error("Can't start a thread for connection from {}, closed it", Utils.getSocketInfo(clientSocket), e);
+					backOffAfterThreadStartFailure();
+				}
 			} catch (InterruptedIOException e) {
 				//	This exception is thrown when accept timeout is expired
 			} catch (Exception e) {
-				LOGGER.error(e.getMessage(), e);
+				if (!stopped) {
+					LOGGER.error(e.getMessage(), e);
+				}
+			}
+		}
+
+		/**
+		 * Gives ending connections a moment to free up threads, rather than failing every client in the accept backlog right away.
+		 */
+		private void backOffAfterThreadStartFailure() {
+			try {
+				Thread.sleep(THREAD_START_FAILURE_BACKOFF_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
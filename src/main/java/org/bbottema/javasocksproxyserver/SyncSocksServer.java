@@ -1,19 +1,23 @@
 package org.bbottema.javasocksproxyserver;
 
-import lombok.Value;
 import org.bbottema.javasocksproxyserver.auth.Authenticator;
 import org.bbottema.javasocksproxyserver.auth.DefaultAuthenticator;
+import org.bbottema.javasocksproxyserver.dns.HostResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ServerSocketFactory;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * This implementation has some additional properties vs SocksServer
@@ -30,15 +34,29 @@ public class SyncSocksServer {
     private static final long DEFAULT_SERVER_SOCKET_OPEN_TIMEOUT_MILLIS = 5000;
     private static final long DEFAULT_SERVER_SOCKET_OPEN_RETRY_INTERVAL_MILLIS = 200;
     private static final long DEFAULT_CLOSE_CONNECTION_TIMEOUT_MILLIS = 5000;
+    private static final long THREAD_START_FAILURE_BACKOFF_MILLIS = 100;
 
 
     private final long serverSocketOpenTimeoutMillis;
     private final long serverSocketOpenRetryIntervalMillis;
-    private final long closeConnectionTimeoutMillis;
 
     protected volatile boolean stopping = false;
+    private NioRelayEngine relayEngine = null;
+    private ThreadFactory clientThreadFactory = ClientThreadFactories.platformThreads();
+    private boolean fullDuplexRelay = false;
+    private HostResolver hostResolver = null;
+    private ConnectionLimits connectionLimits = ConnectionLimits.unlimited();
+    private BandwidthLimits bandwidthLimits = BandwidthLimits.unlimited();
+    private InetAddress bindAddress = null;
+    private EgressAddresses egressAddresses = EgressAddresses.none();
+    private AccessRules accessRules = AccessRules.allowAll();
+    private final List<ConnectionListener> connectionListeners = new ArrayList<>();
+    private ServerConfig config = ServerConfig.defaults();
+    private final SocksMetrics metrics = new SocksMetrics();
 
     protected final Map<Integer, Thread> servers = new HashMap<>(); // port -> thread map
+    private final List<ServerProcess> serverProcesses = new ArrayList<>();
+    private final SessionRegistry sessions = new SessionRegistry();
 
     public SyncSocksServer() {
         this(DEFAULT_SERVER_SOCKET_OPEN_TIMEOUT_MILLIS, DEFAULT_SERVER_SOCKET_OPEN_RETRY_INTERVAL_MILLIS, DEFAULT_CLOSE_CONNECTION_TIMEOUT_MILLIS);
@@ -47,7 +65,161 @@ public class SyncSocksServer {
     public SyncSocksServer(long serverSocketOpenTimeoutMillis, long serverSocketOpenRetryIntervalMillis, long closeConnectionTimeoutMillis) {
         this.serverSocketOpenTimeoutMillis = serverSocketOpenTimeoutMillis;
         this.serverSocketOpenRetryIntervalMillis = serverSocketOpenRetryIntervalMillis;
-        this.closeConnectionTimeoutMillis = closeConnectionTimeoutMillis;
+        // kept for compatibility, it's the close timeout of the ServerConfig now
+        this.config = ServerConfig.defaults().toBuilder()
+                .closeTimeoutMillis((int) Math.min(Integer.MAX_VALUE, closeConnectionTimeoutMillis))
+                .build();
+    }
+
+    /**
+     * Sets the tunables of servers started after this call, and the close timeout used when stopping. This replaces the close
+     * connection timeout given to the constructor.
+     *
+     * @see SocksServer#setConfig(ServerConfig)
+     */
+    public synchronized SyncSocksServer setConfig(ServerConfig config) {
+        this.config = config;
+        return this;
+    }
+
+    public synchronized ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Relays established CONNECT and BIND tunnels of servers started after this call on the given event-driven engine.
+     *
+     * @see SocksServer#setRelayEngine(NioRelayEngine)
+     */
+    public synchronized SyncSocksServer setRelayEngine(NioRelayEngine relayEngine) {
+        this.relayEngine = relayEngine;
+        return this;
+    }
+
+    /**
+     * Determines the threads client connections of servers started after this call run on.
+     *
+     * @see SocksServer#setClientThreadFactory(ThreadFactory)
+     */
+    public synchronized SyncSocksServer setClientThreadFactory(ThreadFactory clientThreadFactory) {
+        this.clientThreadFactory = clientThreadFactory;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setFullDuplexRelay(boolean)
+     */
+    public synchronized SyncSocksServer setFullDuplexRelay(boolean fullDuplexRelay) {
+        this.fullDuplexRelay = fullDuplexRelay;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setHostResolver(HostResolver)
+     */
+    public synchronized SyncSocksServer setHostResolver(HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setConnectTimeout(int)
+     */
+    public synchronized SyncSocksServer setConnectTimeout(int connectTimeoutMillis) {
+        this.config = config.toBuilder().connectTimeoutMillis(connectTimeoutMillis).build();
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setConnectionLimits(ConnectionLimits)
+     */
+    public synchronized SyncSocksServer setConnectionLimits(ConnectionLimits connectionLimits) {
+        this.connectionLimits = connectionLimits;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setBandwidthLimits(BandwidthLimits)
+     */
+    public synchronized SyncSocksServer setBandwidthLimits(BandwidthLimits bandwidthLimits) {
+        this.bandwidthLimits = bandwidthLimits;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setIdleTimeouts(IdleTimeouts)
+     */
+    public synchronized SyncSocksServer setIdleTimeouts(IdleTimeouts idleTimeouts) {
+        this.config = config.toBuilder().idleTimeouts(idleTimeouts).build();
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setAccessRules(AccessRules)
+     */
+    public synchronized SyncSocksServer setAccessRules(AccessRules accessRules) {
+        this.accessRules = accessRules;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#addConnectionListener(ConnectionListener)
+     */
+    public synchronized SyncSocksServer addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setEgressAddresses(EgressAddresses)
+     */
+    public synchronized SyncSocksServer setEgressAddresses(EgressAddresses egressAddresses) {
+        this.egressAddresses = egressAddresses;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setBindAddress(InetAddress)
+     */
+    public synchronized SyncSocksServer setBindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress;
+        return this;
+    }
+
+    /**
+     * @see SocksServer#setListenBacklog(int)
+     */
+    public synchronized SyncSocksServer setListenBacklog(int listenBacklog) {
+        this.config = config.toBuilder().listenBacklog(listenBacklog).build();
+        return this;
+    }
+
+    /**
+     * @see SocksServer#getMetrics()
+     */
+    public SocksMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @see SocksServer#getSessions()
+     */
+    public List<Session> getSessions() {
+        return sessions.snapshot();
+    }
+
+    /**
+     * @see SocksServer#closeSession(long)
+     */
+    public boolean closeSession(long sessionId) {
+        return sessions.close(sessionId);
+    }
+
+    /**
+     * @see SocksServer#closeSessions(Predicate)
+     */
+    public int closeSessions(Predicate<? super Session> predicate) {
+        return sessions.closeMatching(predicate);
     }
 
     public synchronized void start(int listenPort) {
@@ -64,33 +236,85 @@ public class SyncSocksServer {
             LOGGER.error("SOCKS server already started on port {}", listenPort);
             return;
         }
-        ServerProcess serverProcess = new ServerProcess(listenPort, serverSocketFactory, authenticator);
+        ServerContext context = new ServerContext(authenticator);
+        context.relayEngine = relayEngine;
+        context.clientThreadFactory = clientThreadFactory;
+        context.fullDuplexRelay = fullDuplexRelay;
+        context.config = config;
+        if (config.getBufferSize() != SocksConstants.DEFAULT_BUF_SIZE) {
+            context.bufferPool = new BufferPool(config.getBufferSize(), BufferPool.DEFAULT_MAX_POOLED_BUFFERS, false);
+        }
+        context.metrics = metrics;
+        context.admissionControl = new AdmissionControl(connectionLimits);
+        context.bandwidthShaper = new BandwidthShaper(bandwidthLimits);
+        context.sessions = sessions;
+        context.bindAddressResolver = new BindAddressResolver(bindAddress);
+        context.egressPool = egressAddresses.isNone() ? EgressPool.NONE : new EgressPool(egressAddresses);
+        context.accessRules = accessRules;
+        context.connectionListener = ConnectionListeners.of(connectionListeners);
+        if (hostResolver != null) {
+            context.hostResolver = hostResolver;
+        }
+        ServerProcess serverProcess = new ServerProcess(listenPort, config.getListenBacklog(), ChannelServerSocketFactory.forEngine(serverSocketFactory, relayEngine), context);
         Thread thread = new Thread(serverProcess);
         servers.put(listenPort, thread);
+        serverProcesses.add(serverProcess);
         thread.start();
         if (!serverProcess.waitServerSocketOpened(serverSocketOpenTimeoutMillis)) {
             throw new RuntimeException("Timeout waiting socket to be opened");
         }
     }
 
+    /**
+     * Stops all servers and closes all their connections at once, waiting at most the close timeout of the {@link ServerConfig}
+     * for them.
+     */
     public synchronized void stop() {
+        stop(0);
+    }
+
+    /**
+     * Stops all servers and drains their connections: they get up to the drain timeout, in total, to end by themselves, after
+     * which all remaining connections are closed at once and get up to the close timeout of the {@link ServerConfig} to finish.
+     *
+     * @param drainTimeoutMillis How long connections may take to end by themselves, 0 to close them right away.
+     * @return Whether all connections ended in time.
+     * @see SocksServer#stop(long)
+     */
+    public synchronized boolean stop(long drainTimeoutMillis) {
         stopping = true;
-        waitAllServersToJoin();
+        for (ServerProcess serverProcess : serverProcesses) {
+            serverProcess.closeListenSocket();
+        }
+        final long closeTimeoutMillis = config.getCloseTimeoutMillis();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis + closeTimeoutMillis);
+        waitAllServersToJoin(deadline);
+        ConnectionDrain.drain(sessions, drainTimeoutMillis, closeTimeoutMillis);
+        boolean allClosed = true;
+        for (ServerProcess serverProcess : serverProcesses) {
+            allClosed &= serverProcess.waitAllClientsToJoin(deadline);
+        }
+        serverProcesses.clear();
+        return allClosed;
     }
 
     private class ServerProcess implements Runnable {
 
         protected final int port;
+        private final int backlog;
         private final ServerSocketFactory serverSocketFactory;
-        private final List<ProxyClient> clients = new ArrayList<>();
+        // client threads still running, each removing itself when done
+        private final Set<ProxyClient> clients = ConcurrentHashMap.newKeySet();
         private final CountDownLatch serverSocketOpenLatch = new CountDownLatch(1);
+        private volatile ServerSocket listenSocket;
 
-        private final Authenticator authenticator;
+        private final ServerContext context;
 
-        public ServerProcess(int port, ServerSocketFactory serverSocketFactory, Authenticator authenticator) {
+        public ServerProcess(int port, int backlog, ServerSocketFactory serverSocketFactory, ServerContext context) {
             this.port = port;
+            this.backlog = backlog;
             this.serverSocketFactory = serverSocketFactory;
-            this.authenticator = authenticator;
+            this.context = context;
         }
 
         @Override
@@ -102,25 +326,29 @@ public class SyncSocksServer {
             } catch (IOException | InterruptedException e) {
                 LOGGER.debug("SOCKS server crashed...");
                 Thread.currentThread().interrupt();
-            } finally {
-                waitAllClientsToJoinOrTimeout();
             }
         }
 
         protected void handleClients(int port) throws IOException, InterruptedException {
             while (!stopping) {
-                try (ServerSocket listenSocket = serverSocketFactory.createServerSocket(port)) {
-                    listenSocket.setSoTimeout(SocksConstants.LISTEN_TIMEOUT);
+                try (ServerSocket listenSocket = serverSocketFactory.createServerSocket(port, backlog)) {
+                    listenSocket.setSoTimeout(context.config.getAcceptPollMillis());
+                    this.listenSocket = listenSocket;
+                    context.bindAddressResolver.listeningOn(listenSocket.getInetAddress());
+                    if (stopping) {
+                        break;
+                    }
 
                     LOGGER.debug("SOCKS server listening at port: " + listenSocket.getLocalPort());
                     serverSocketOpenLatch.countDown();
 
                     while (!stopping) {
                         handleNextClient(listenSocket);
-                        removeDisconnectedClients();
                     }
                 } catch (Exception e) {
                     LOGGER.debug("Can't handle clients on port {} ", port, e);
+                } finally {
+                    this.listenSocket = null;
                 }
                 if (!stopping) {
                     Thread.sleep(serverSocketOpenRetryIntervalMillis);
@@ -141,45 +369,115 @@ public class SyncSocksServer {
         private void handleNextClient(ServerSocket listenSocket) {
             try {
                 final Socket clientSocket = listenSocket.accept();
-                clientSocket.setSoTimeout(SocksConstants.DEFAULT_SERVER_TIMEOUT);
+                if (!context.admissionControl.admit(clientSocket, context.metrics)) {
+                    return;
+                }
+                context.config.getClientSocketOptions().applyTo(clientSocket);
                 LOGGER.debug("Connection from : " + Utils.getSocketInfo(clientSocket));
-                ProxyHandler handler = new ProxyHandler(clientSocket, authenticator);
-                Thread thread = new Thread(handler);
-                clients.add(ProxyClient.of(clientSocket, handler, thread));
-                thread.start();
+                ProxyHandler handler = new ProxyHandler(clientSocket, context);
+                ProxyClient client = new ProxyClient(clientSocket, handler);
+                try {
+                    Thread thread = context.clientThreadFactory.newThread(client);
+                    client.thread = thread;
+                    clients.add(client);
+                    thread.start();
+                } catch (RuntimeException e) {
+                    clients.remove(client);
+                    handler.close();
+                    handler.finish();
+                    throw e;
+                } catch (OutOfMemoryError e) {
+                    // most likely no more native threads: drop this client, but keep accepting for when connections end
+                    clients.remove(client);
+                    handler.close();
+                    handler.finish();
+                    LOGGER.error("Can't start a thread for connection from {}, closed it", Utils.getSocketInfo(clientSocket), e);
+                    backOffAfterThreadStartFailure();
+                }
             } catch (InterruptedIOException e) {
                 //	This exception is thrown when accept timeout is expired
             } catch (Exception e) {
-                LOGGER.error(e.getMessage(), e);
+                if (!stopping) {
+                    LOGGER.error(e.getMessage(), e);
+                }
             }
         }
 
-        private void waitAllClientsToJoinOrTimeout() {
+        /**
+         * Gives ending connections a moment to free up threads, rather than failing every client in the accept backlog right away.
+         */
+        private void backOffAfterThreadStartFailure() {
+            try {
+                Thread.sleep(THREAD_START_FAILURE_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Stops accepting right away, instead of after the accept timeout.
+         */
+        private void closeListenSocket() {
+            final ServerSocket socket = listenSocket;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /**
+         * The client threads were closed all at once by draining, this only waits for them to end, up to one deadline for all.
+         */
+        private boolean waitAllClientsToJoin(long deadlineNanos) {
+            boolean allJoined = true;
             for (ProxyClient client : clients) {
                 LOGGER.debug("Waiting client connection {} to close", Utils.getSocketInfo(client.socket));
-                client.handler.close();
                 try {
-                    client.thread.join(closeConnectionTimeoutMillis);
+                    client.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
                 if (client.thread.isAlive()) {
                     LOGGER.error("Can't stop client connection {} to close", Utils.getSocketInfo(client.socket));
+                    allJoined = false;
                 }
             }
             clients.clear();
+            return allJoined;
         }
 
-        private void removeDisconnectedClients() {
-            clients.removeIf(client -> !client.thread.isAlive());
+        /**
+         * Runs a client connection on its thread, and forgets it once the thread is done.
+         */
+        private class ProxyClient implements Runnable {
+            private final Socket socket;
+            private final ProxyHandler handler;
+            private volatile Thread thread;
+
+            private ProxyClient(Socket socket, ProxyHandler handler) {
+                this.socket = socket;
+                this.handler = handler;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    handler.run();
+                } finally {
+                    clients.remove(this);
+                }
+            }
         }
     }
 
-    private void waitAllServersToJoin() {
+    private void waitAllServersToJoin(long deadlineNanos) {
         servers.forEach((port, thread) -> {
             LOGGER.debug("Waiting server on port {} to close", port);
             try {
-                thread.join(closeConnectionTimeoutMillis);
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
@@ -189,13 +487,4 @@ public class SyncSocksServer {
         });
         servers.clear();
     }
-
-
-    @Value(staticConstructor = "of")
-    static class ProxyClient {
-        Socket socket;
-        ProxyHandler handler;
-        Thread thread;
-    }
-
-}
\ No newline at end of file
+}
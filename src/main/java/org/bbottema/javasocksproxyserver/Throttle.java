@@ -0,0 +1,69 @@
+package org.bbottema.javasocksproxyserver;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The token buckets one tunnel's relayed bytes are taken from: its own, its user's and the server's, whichever are limited.
+ * Tunnels without any limits don't get a throttle at all, so the relays only pay for a null check.
+ *
+ * @see BandwidthShaper
+ */
+final class Throttle {
+
+	private final TokenBucket[] buckets;
+
+	Throttle(TokenBucket... buckets) {
+		this.buckets = buckets;
+	}
+
+	/**
+	 * @return How many of the wanted bytes may be read right now, possibly 0.
+	 */
+	int permitted(int wanted) {
+		final long now = System.nanoTime();
+		int permitted = wanted;
+		for (TokenBucket bucket : buckets) {
+			permitted = bucket.available(permitted, now);
+		}
+		return permitted;
+	}
+
+	/**
+	 * @return How long to pause reading before some of the wanted bytes may be read.
+	 */
+	long nanosUntilPermitted(int wanted) {
+		final long now = System.nanoTime();
+		long nanos = 0;
+		for (TokenBucket bucket : buckets) {
+			nanos = Math.max(nanos, bucket.nanosUntilAvailable(wanted, now));
+		}
+		// the bucket that is waited on may refill just below the wanted bytes due to rounding, so always pause a little
+		return Math.max(nanos, 1_000_000);
+	}
+
+	/**
+	 * Blocks the calling relay thread until some of the wanted bytes may be read. An interrupted thread may read a single byte
+	 * right away, so it finds out soon enough whether its tunnel is being closed.
+	 *
+	 * @return How many of them may be read, at least 1.
+	 */
+	int awaitPermitted(int wanted) {
+		int permitted;
+		while ((permitted = permitted(wanted)) == 0) {
+			if (Thread.currentThread().isInterrupted()) {
+				return 1;
+			}
+			LockSupport.parkNanos(nanosUntilPermitted(wanted));
+		}
+		return permitted;
+	}
+
+	void consumed(int bytes) {
+		if (bytes > 0) {
+			final long now = System.nanoTime();
+			for (TokenBucket bucket : buckets) {
+				bucket.consume(bytes, now);
+			}
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: timeouts hash into one of a fixed number of slots by their deadline's tick, so scheduling, cancelling and
+ * expiring each cost O(1), however many timeouts there are. Timeouts fire up to one tick late, which is fine for the idle
+ * timeouts it is meant for.
+ * <p>
+ * Timeouts are objects embedded in whatever they time out, and are rescheduled instead of replaced, so there are no scheduler
+ * tasks per timeout. The slots are only touched by the wheel's own thread; other threads hand over timeouts through a queue.
+ */
+final class TimerWheel {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+
+	private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int DEFAULT_SLOTS = 512;
+
+	private static volatile TimerWheel shared;
+
+	private final long tickNanos;
+	private final Timeout[] slots;
+	private final int mask;
+	private final long startNanos = System.nanoTime();
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+	// ticks processed so far, only touched by the wheel's thread
+	private long tick = 0;
+
+	/**
+	 * A timeout that can be scheduled on one wheel at a time, any number of times.
+	 */
+	abstract static class Timeout {
+		private volatile long deadlineNanos;
+		private volatile boolean cancelled = true;
+		// owned by the wheel's thread
+		private Timeout previous;
+		private Timeout next;
+		private int slot = -1;
+		private long rounds;
+
+		/**
+		 * Called on the wheel's thread once the deadline has passed, so must not block.
+		 */
+		abstract void expired(long nowNanos);
+
+		/**
+		 * Only stops the timeout from firing; the wheel drops it when it comes across it.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	@NotNull
+	static TimerWheel shared() {
+		TimerWheel wheel = shared;
+		if (wheel == null) {
+			synchronized (TimerWheel.class) {
+				wheel = shared;
+				if (wheel == null) {
+					shared = wheel = new TimerWheel(DEFAULT_TICK_NANOS, DEFAULT_SLOTS, "socks-idle-reaper");
+				}
+			}
+		}
+		return wheel;
+	}
+
+	TimerWheel(long tickNanos, int slots, String threadName) {
+		if (Integer.bitCount(slots) != 1) {
+			throw new IllegalArgumentException("slots must be a power of two");
+		}
+		this.tickNanos = tickNanos;
+		this.slots = new Timeout[slots];
+		this.mask = slots - 1;
+		final Thread thread = new Thread(this::run, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * (Re)schedules the timeout, replacing its previous deadline if it had one. Can be called from any thread.
+	 */
+	void schedule(@NotNull Timeout timeout, long deadlineNanos) {
+		timeout.deadlineNanos = deadlineNanos;
+		timeout.cancelled = false;
+		scheduled.add(timeout);
+	}
+
+	private void run() {
+		//noinspection InfiniteLoopStatement
+		while (true) {
+			final long nextTickNanos = startNanos + (tick + 1) * tickNanos;
+			long sleepNanos;
+			while ((sleepNanos = nextTickNanos - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(sleepNanos);
+			}
+			tick++;
+			try {
+				insertScheduled();
+				expire(slots[(int) (tick & mask)]);
+			} catch (RuntimeException e) {
+				LOGGER.error("Expiring timeouts failed", e);
+			}
+		}
+	}
+
+	private void insertScheduled() {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			unlink(timeout);
+			if (!timeout.cancelled) {
+				// the current tick is being processed right now, so anything due by now fires with it
+				final long deadlineTick = Math.max(tick, ceilDiv(timeout.deadlineNanos - startNanos, tickNanos));
+				timeout.rounds = (deadlineTick - tick) / slots.length;
+				link(timeout, (int) (deadlineTick & mask));
+			}
+		}
+	}
+
+	private void expire(Timeout head) {
+		final long now = System.nanoTime();
+		Timeout timeout = head;
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.cancelled) {
+				unlink(timeout);
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				unlink(timeout);
+				timeout.cancelled = true;
+				try {
+					timeout.expired(now);
+				} catch (RuntimeException e) {
+					// the other timeouts in the slot still have to fire
+					LOGGER.error("Expiring a timeout failed", e);
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	private void link(Timeout timeout, int slot) {
+		timeout.slot = slot;
+		timeout.previous = null;
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		slots[slot] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.slot < 0) {
+			return;
+		}
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.slot = -1;
+	}
+
+	private static long ceilDiv(long dividend, long divisor) {
+		return dividend <= 0 ? 0 : (dividend + divisor - 1) / divisor;
+	}
+}
@@ -0,0 +1,52 @@
+package org.bbottema.javasocksproxyserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket of bytes, in the form of the generic cell rate algorithm: instead of a token count that needs
+ * refilling, it keeps a single timestamp up to which the bytes consumed so far are paid for. The bucket is full when that time
+ * lies in the past and empty when it lies {@code burst} worth of time in the future.
+ */
+final class TokenBucket {
+
+	private final double nanosPerByte;
+	private final long burstNanos;
+	private final AtomicLong paidUntilNanos;
+
+	TokenBucket(long bytesPerSecond, long burstBytes, long nowNanos) {
+		this.nanosPerByte = (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+		this.burstNanos = (long) Math.min(burstBytes * nanosPerByte, Long.MAX_VALUE / 4);
+		this.paidUntilNanos = new AtomicLong(nowNanos);
+	}
+
+	/**
+	 * @return How many of the wanted bytes may be relayed right now, possibly 0.
+	 */
+	int available(int wanted, long nowNanos) {
+		final long debtNanos = Math.max(0, paidUntilNanos.get() - nowNanos);
+		final double available = (burstNanos - debtNanos) / nanosPerByte;
+		return available <= 0 ? 0 : (int) Math.min(wanted, available);
+	}
+
+	/**
+	 * @return How long until the given number of bytes may be relayed, provided nobody else consumes any first.
+	 */
+	long nanosUntilAvailable(int bytes, long nowNanos) {
+		final long debtNanos = Math.max(0, paidUntilNanos.get() - nowNanos);
+		final long costNanos = Math.min((long) (bytes * nanosPerByte), burstNanos);
+		return Math.max(0, debtNanos + costNanos - burstNanos);
+	}
+
+	/**
+	 * Takes the relayed bytes from the bucket. Concurrent relays may overdraw it by the bytes they read at the same time, which
+	 * the bucket recovers from by staying empty for a little longer.
+	 */
+	void consume(int bytes, long nowNanos) {
+		final long costNanos = (long) (bytes * nanosPerByte);
+		long current;
+		do {
+			current = paidUntilNanos.get();
+		} while (!paidUntilNanos.compareAndSet(current, Math.max(current, nowNanos) + costNanos));
+	}
+}
@@ -0,0 +1,100 @@
+package org.bbottema.javasocksproxyserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the SOCKS5 UDP request header (RFC 1928, section 7) in place, in the buffer a datagram is received in,
+ * using absolute offsets so heap and direct buffers both work:
+ * <pre>
+ * +-----+------+------+----------+----------+----------+
+ * | RSV | FRAG | ATYP | DST.ADDR | DST.PORT |   DATA   |
+ * +-----+------+------+----------+----------+----------+
+ * |  2  |  1   |  1   | Variable |    2     | Variable |
+ * </pre>
+ * Datagrams from remote peers are received {@link #HEADER_ROOM} bytes into the buffer, so their header can be written in front of
+ * the payload instead of moving the payload to make room.
+ */
+final class UdpHeaderCodec {
+
+	static final byte ATYP_IPV4 = 0x01;
+	static final byte ATYP_DOMAIN = 0x03;
+	static final byte ATYP_IPV6 = 0x04;
+
+	/**
+	 * Room for the longest header the relay writes, which is one with an IPv6 address.
+	 */
+	static final int HEADER_ROOM = 4 + 16 + 2;
+
+	private UdpHeaderCodec() {
+	}
+
+	/**
+	 * @return The length of the header at the start of the datagram, or -1 if it is malformed, truncated or part of a fragmented
+	 * datagram, which the relay doesn't reassemble.
+	 */
+	static int headerLength(ByteBuffer buffer, int offset, int length) {
+		if (length < 4 || buffer.get(offset + 2) != 0) {
+			return -1;
+		}
+		final int addressLength;
+		switch (buffer.get(offset + 3)) {
+			case ATYP_IPV4:
+				addressLength = 4;
+				break;
+			case ATYP_IPV6:
+				addressLength = 16;
+				break;
+			case ATYP_DOMAIN:
+				if (length < 5) {
+					return -1;
+				}
+				addressLength = 1 + (buffer.get(offset + 4) & 0xFF);
+				break;
+			default:
+				return -1;
+		}
+		final int headerLength = 4 + addressLength + 2;
+		return headerLength <= length ? headerLength : -1;
+	}
+
+	static int port(ByteBuffer buffer, int offset, int headerLength) {
+		return Utils.calcPort(buffer.get(offset + headerLength - 2), buffer.get(offset + headerLength - 1));
+	}
+
+	/**
+	 * @return Whether the given bytes equal those in the buffer at the given offset.
+	 */
+	static boolean regionMatches(ByteBuffer buffer, int offset, byte[] bytes, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(offset + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void copyRegion(ByteBuffer buffer, int offset, byte[] bytes, int length) {
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+	}
+
+	/**
+	 * Writes the header of a datagram from the given IPv4 or IPv6 address right in front of its payload.
+	 *
+	 * @return The offset of the header, which is where the datagram to send now starts.
+	 */
+	static int writeHeader(ByteBuffer buffer, int payloadOffset, byte[] address, int port) {
+		final int offset = payloadOffset - (6 + address.length);
+		buffer.put(offset, (byte) 0x00);        // Reserved 0x00
+		buffer.put(offset + 1, (byte) 0x00);    // Reserved 0x00
+		buffer.put(offset + 2, (byte) 0x00);    // FRAG '00' - Standalone DataGram
+		buffer.put(offset + 3, address.length == 16 ? ATYP_IPV6 : ATYP_IPV4);
+		for (int i = 0; i < address.length; i++) {
+			buffer.put(offset + 4 + i, address[i]);
+		}
+		buffer.put(payloadOffset - 2, (byte) ((port >> 8) & 0xFF));
+		buffer.put(payloadOffset - 1, (byte) (port & 0xFF));
+		return offset;
+	}
+}
@@ -47,11 +47,17 @@ public final class Utils {
 		return ((byte2int(Hi) << 8) | byte2int(Lo));
 	}
 
+	/**
+	 * @return "hostname/address", where the host name is only included if already known: this is used for diagnostics only and
+	 * should never cost a reverse DNS lookup.
+	 */
 	@NotNull
 	public static String iP2Str(InetAddress IP) {
-		return IP == null
-				? "NA/NA"
-				: format("%s/%s", IP.getHostName(), IP.getHostAddress());
+		if (IP == null) {
+			return "NA/NA";
+		}
+		final String ip = IP.toString();
+		return ip.charAt(0) == '/' ? "NA" + ip : ip;
 	}
 
 	@NotNull
@@ -0,0 +1,32 @@
+package org.bbottema.javasocksproxyserver.auth;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletionStage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A {@link UsernamePasswordAuthenticator} for credential checks that complete asynchronously, such as a call to a remote
+ * credential service.
+ */
+public abstract class AsyncUsernamePasswordAuthenticator extends UsernamePasswordAuthenticator {
+
+    public AsyncUsernamePasswordAuthenticator(boolean acceptNoAuthMode) {
+        super(acceptNoAuthMode);
+    }
+
+    @NotNull
+    @Override
+    public CompletionStage<Boolean> validateAsync(byte[] username, byte[] password) {
+        return validateAsync(new String(username, UTF_8), new String(password, UTF_8));
+    }
+
+    @Override
+    public boolean validate(String username, String password) {
+        return validateAsync(username, password).toCompletableFuture().join();
+    }
+
+    @NotNull
+    public abstract CompletionStage<Boolean> validateAsync(String username, String password);
+}
@@ -1,6 +1,27 @@
 package org.bbottema.javasocksproxyserver.auth;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 public abstract class Authenticator {
   public abstract byte accept(byte[] authTypes);
   public abstract boolean validate(byte[] username, byte[] password);
+
+  /**
+   * The server validates credentials through this method, waiting at most
+   * {@link org.bbottema.javasocksproxyserver.ServerConfig.Builder#authenticationTimeoutMillis(int)} for the outcome. Override it
+   * when validation involves a remote credential service or slow password hashing. Defaults to {@link #validate(byte[], byte[])}.
+   */
+  @NotNull
+  public CompletionStage<Boolean> validateAsync(byte[] username, byte[] password) {
+    final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    try {
+      result.complete(validate(username, password));
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
 }
@@ -0,0 +1,174 @@
+package org.bbottema.javasocksproxyserver.auth;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Remembers which credentials another {@link Authenticator} accepted, so clients that reconnect often skip the expensive check.
+ * <p>
+ * Only successful verifications are cached, keyed on a salted SHA-256 hash of the username and password so the cache holds no
+ * passwords. Entries expire after a TTL, the cache is bounded and evicts the least recently used credentials first, and a
+ * user's entries can be invalidated explicitly, for example when their password changes.
+ */
+public class CachingAuthenticator extends Authenticator {
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Authenticator delegate;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final byte[] salt = new byte[16];
+    private final Map<ByteBuffer, CacheEntry> cache;
+    // bumped by every invalidation, so verifications that were already running by then aren't cached afterwards
+    private long generation;
+
+    public CachingAuthenticator(@NotNull Authenticator delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    public CachingAuthenticator(@NotNull Authenticator delegate, int maxEntries, long ttlMillis) {
+        this(delegate, maxEntries, ttlMillis, System::nanoTime);
+    }
+
+    CachingAuthenticator(Authenticator delegate, int maxEntries, long ttlMillis, LongSupplier nanoClock) {
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.nanoClock = nanoClock;
+        new SecureRandom().nextBytes(salt);
+        this.cache = new LinkedHashMap<ByteBuffer, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public byte accept(byte[] authTypes) {
+        return delegate.accept(authTypes);
+    }
+
+    @Override
+    public boolean validate(byte[] username, byte[] password) {
+        final ByteBuffer key = hash(username, password);
+        if (isCached(key)) {
+            return true;
+        }
+        final long startGeneration = generation();
+        final boolean valid = delegate.validate(username, password);
+        if (valid) {
+            cache(key, username, startGeneration);
+        }
+        return valid;
+    }
+
+    @NotNull
+    @Override
+    public CompletionStage<Boolean> validateAsync(byte[] username, byte[] password) {
+        final ByteBuffer key = hash(username, password);
+        if (isCached(key)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        final long startGeneration = generation();
+        return delegate.validateAsync(username, password).thenApply(valid -> {
+            if (valid) {
+                cache(key, username, startGeneration);
+            }
+            return valid;
+        });
+    }
+
+    /**
+     * Forgets every cached verification of the user, so their next login is checked by the delegate again.
+     */
+    public void invalidate(@NotNull String username) {
+        final byte[] name = username.getBytes(UTF_8);
+        synchronized (cache) {
+            generation++;
+            cache.values().removeIf(entry -> Arrays.equals(entry.username, name));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            generation++;
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private boolean isCached(ByteBuffer key) {
+        synchronized (cache) {
+            final CacheEntry cached = cache.get(key);
+            if (cached == null) {
+                return false;
+            }
+            if (nanoClock.getAsLong() - cached.expiresAtNanos < 0) {
+                return true;
+            }
+            cache.remove(key);
+            return false;
+        }
+    }
+
+    private long generation() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches the verification, unless something was invalidated since it started: it may have checked the old password.
+     */
+    private void cache(ByteBuffer key, byte[] username, long startGeneration) {
+        final CacheEntry entry = new CacheEntry(username.clone(), nanoClock.getAsLong() + ttlNanos);
+        synchronized (cache) {
+            if (generation == startGeneration) {
+                cache.put(key, entry);
+            }
+        }
+    }
+
+    private ByteBuffer hash(byte[] username, byte[] password) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            // length prefixed, so moving bytes between username and password changes the hash
+            digest.update((byte) username.length);
+            digest.update(username);
+            digest.update(password);
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every JVM", e);
+        }
+    }
+
+    private static final class CacheEntry {
+        private final byte[] username;
+        private final long expiresAtNanos;
+
+        CacheEntry(byte[] username, long expiresAtNanos) {
+            this.username = username;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
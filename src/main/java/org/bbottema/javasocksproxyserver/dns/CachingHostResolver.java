@@ -0,0 +1,130 @@
+package org.bbottema.javasocksproxyserver.dns;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the outcome of another {@link HostResolver}, successful or not, and coalesces concurrent lookups of the same host
+ * into a single query.
+ * <p>
+ * The cache is bounded and evicts the least recently used hosts first. Since the JDK resolver doesn't expose the TTLs of DNS
+ * records, the default TTLs follow the JDK's own {@code networkaddress.cache.ttl} and {@code networkaddress.cache.negative.ttl}
+ * security properties (30 and 10 seconds if unset).
+ */
+public class CachingHostResolver implements HostResolver {
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final HostResolver delegate;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    private final LongSupplier nanoClock;
+    private final Map<String, CacheEntry> cache;
+
+    public CachingHostResolver(@NotNull HostResolver delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES,
+                TimeUnit.SECONDS.toMillis(securityTtlSeconds("networkaddress.cache.ttl", 30)),
+                TimeUnit.SECONDS.toMillis(securityTtlSeconds("networkaddress.cache.negative.ttl", 10)));
+    }
+
+    public CachingHostResolver(@NotNull HostResolver delegate, int maxEntries, long positiveTtlMillis, long negativeTtlMillis) {
+        this(delegate, maxEntries, positiveTtlMillis, negativeTtlMillis, System::nanoTime);
+    }
+
+    CachingHostResolver(HostResolver delegate, int maxEntries, long positiveTtlMillis, long negativeTtlMillis, LongSupplier nanoClock) {
+        this.delegate = delegate;
+        this.positiveTtlNanos = TimeUnit.MILLISECONDS.toNanos(positiveTtlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.nanoClock = nanoClock;
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<InetAddress[]> resolve(@NotNull String host) {
+        final String key = host.toLowerCase();
+        final CacheEntry entry;
+        synchronized (cache) {
+            CacheEntry cached = cache.get(key);
+            if (cached != null && (cached.inFlight() || nanoClock.getAsLong() - cached.expiresAtNanos < 0)) {
+                return copyOf(cached.addresses);
+            }
+            entry = new CacheEntry();
+            cache.put(key, entry);
+        }
+        // query outside of the lock, the delegate might well block
+        CompletableFuture<InetAddress[]> lookup;
+        try {
+            lookup = delegate.resolve(host);
+        } catch (RuntimeException e) {
+            // cache the failure like any other, rather than leaving the entry in flight forever
+            lookup = new CompletableFuture<>();
+            lookup.completeExceptionally(e);
+        }
+        lookup.whenComplete((addresses, error) -> {
+            synchronized (cache) {
+                entry.expiresAtNanos = nanoClock.getAsLong() + (error == null ? positiveTtlNanos : negativeTtlNanos);
+                entry.completed = true;
+            }
+            if (error == null) {
+                entry.addresses.complete(addresses);
+            } else {
+                entry.addresses.completeExceptionally(error);
+            }
+        });
+        return copyOf(entry.addresses);
+    }
+
+    /**
+     * @return A future of its own for every caller, so one cancelling or completing it can't affect the cached outcome.
+     */
+    private static CompletableFuture<InetAddress[]> copyOf(CompletableFuture<InetAddress[]> addresses) {
+        return addresses.thenApply(InetAddress[]::clone);
+    }
+
+    /**
+     * Forgets everything that was cached for the host, so the next lookup queries the delegate again.
+     */
+    public void invalidate(@NotNull String host) {
+        synchronized (cache) {
+            cache.remove(host.toLowerCase());
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static int securityTtlSeconds(String property, int defaultValue) {
+        try {
+            String value = Security.getProperty(property);
+            return value != null ? Math.max(0, Integer.parseInt(value.trim())) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static final class CacheEntry {
+        private final CompletableFuture<InetAddress[]> addresses = new CompletableFuture<>();
+        private boolean completed;
+        private long expiresAtNanos;
+
+        boolean inFlight() {
+            return !completed;
+        }
+    }
+}
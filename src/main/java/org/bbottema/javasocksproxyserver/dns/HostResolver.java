@@ -0,0 +1,21 @@
+package org.bbottema.javasocksproxyserver.dns;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves the domain names SOCKS5 clients ask to connect or send datagrams to (address type {@code 0x03}).
+ * <p>
+ * Implement this to plug in your own DNS client, or a local stub in tests.
+ */
+public interface HostResolver {
+
+    /**
+     * @return A future completing with all addresses of the host (never empty), or exceptionally with an
+     * {@link java.net.UnknownHostException} if the host can't be resolved.
+     */
+    @NotNull
+    CompletableFuture<InetAddress[]> resolve(@NotNull String host);
+}
@@ -0,0 +1,45 @@
+package org.bbottema.javasocksproxyserver.dns;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolves hosts with the JVM's own resolver ({@link InetAddress#getAllByName(String)}), off the calling thread.
+ */
+public class SystemHostResolver implements HostResolver {
+
+    private static final Executor DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "socks-dns");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Executor executor;
+
+    public SystemHostResolver() {
+        this(DEFAULT_EXECUTOR);
+    }
+
+    public SystemHostResolver(@NotNull Executor executor) {
+        this.executor = executor;
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<InetAddress[]> resolve(@NotNull String host) {
+        CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(InetAddress.getAllByName(host));
+            } catch (UnknownHostException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+}
@@ -1,5 +1,6 @@
 package org.bbottema.javasocksproxyserver.junit;
 
+import org.bbottema.javasocksproxyserver.ServerConfig;
 import org.bbottema.javasocksproxyserver.SocksServer;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.extension.AfterAllCallback;
@@ -24,7 +25,15 @@ public class SockServerExtension implements BeforeAllCallback, AfterAllCallback
     }
 
     public SockServerExtension(@NotNull Integer port, @NotNull ServerSocketFactory serverSocketFactory) {
-        this.socksServer = new SocksServer(port, serverSocketFactory);
+        this(port, serverSocketFactory, ServerConfig.defaults());
+    }
+
+    public SockServerExtension(@NotNull Integer port, @NotNull ServerConfig config) {
+        this(port, ServerSocketFactory.getDefault(), config);
+    }
+
+    public SockServerExtension(@NotNull Integer port, @NotNull ServerSocketFactory serverSocketFactory, @NotNull ServerConfig config) {
+        this.socksServer = new SocksServer(port, serverSocketFactory, config);
         this.port = port;
         this.serverSocketFactory = serverSocketFactory;
     }
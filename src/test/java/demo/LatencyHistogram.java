@@ -0,0 +1,84 @@
+package demo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of latencies in nanoseconds, in the spirit of HdrHistogram: values below 128 are exact, larger
+ * ones fall in one of 64 buckets per power of two, so every recorded value is off by less than 1.6%, up to any latency.
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 64;
+	private static final int BUCKETS = (64 - 6) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+
+	/**
+	 * Records how long an operation took from when it was meant to start, rather than from when it actually started: a load
+	 * generator that falls behind its schedule because the server stalled would otherwise leave out exactly the waiting that
+	 * every real client would have seen (coordinated omission).
+	 *
+	 * @param intendedStartNanos The {@link System#nanoTime()} the operation was scheduled for.
+	 */
+	void recordSince(long intendedStartNanos) {
+		record(System.nanoTime() - intendedStartNanos);
+	}
+
+	void record(long nanos) {
+		counts.incrementAndGet(index(Math.max(0, nanos)));
+		total.increment();
+	}
+
+	long count() {
+		return total.sum();
+	}
+
+	/**
+	 * @param percentile Such as 99.9.
+	 * @return The highest value equivalent to the given percentile, 0 if nothing was recorded.
+	 */
+	long valueAt(double percentile) {
+		final long count = total.sum();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			seen += counts.get(index);
+			if (seen >= rank) {
+				return highestValue(index);
+			}
+		}
+		return highestValue(BUCKETS - 1);
+	}
+
+	long max() {
+		for (int index = BUCKETS - 1; index >= 0; index--) {
+			if (counts.get(index) > 0) {
+				return highestValue(index);
+			}
+		}
+		return 0;
+	}
+
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		// value = mantissa << exponent, with the mantissa in [64, 128)
+		final int exponent = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+	}
+
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		final int exponent = index / SUB_BUCKETS - 1;
+		final long mantissa = index - (long) exponent * SUB_BUCKETS;
+		return ((mantissa + 1) << exponent) - 1;
+	}
+}
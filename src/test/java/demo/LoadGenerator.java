@@ -0,0 +1,751 @@
+package demo;
+
+import org.bbottema.javasocksproxyserver.ClientThreadFactories;
+import org.bbottema.javasocksproxyserver.LoopbackEcho;
+import org.bbottema.javasocksproxyserver.NioRelayEngine;
+import org.bbottema.javasocksproxyserver.ServerConfig;
+import org.bbottema.javasocksproxyserver.SocksMetrics;
+import org.bbottema.javasocksproxyserver.SocksServer;
+import org.bbottema.javasocksproxyserver.SyncSocksServer;
+import org.bbottema.javasocksproxyserver.Utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Macro load generator, next to the JMH micro benchmarks in {@code src/jmh}: drives thousands of concurrent SOCKS clients
+ * through a {@link SocksServer} or {@link SyncSocksServer} started in this JVM, or through any proxy given with
+ * {@code proxy=host:port}, against local echo servers, all on loopback. Scenarios:
+ * <ul>
+ *     <li>{@code connect-storm}: every operation sets up a new tunnel, echoes a byte through it and tears it down again;</li>
+ *     <li>{@code bulk}: long-lived tunnels, each echoing payloads back and forth;</li>
+ *     <li>{@code idle}: many tunnels held open, each pinged once per {@code idle-interval};</li>
+ *     <li>{@code udp}: SOCKS5 UDP associations, each sending bursts of datagrams to an echo server.</li>
+ * </ul>
+ * Given a {@code rate}, every client keeps to a fixed schedule. An operation that runs late doesn't push back the ones after
+ * it, they start right away, and latency is counted from when each operation was due rather than from when it got to start.
+ * Stalls thus show up in the percentiles the way real clients would see them, instead of being hidden by the generator
+ * waiting along (coordinated omission). Without a rate, clients run operations back to back, for maximum throughput and plain
+ * service times.
+ * <p>
+ * Proxy CPU is the CPU time of the whole process minus that of the load generator's own threads, so it includes the JVM's
+ * GC and JIT threads. Heap and GC figures are for the whole process too; for isolated figures, run the proxy elsewhere.
+ * <p>
+ * Run with for example:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=demo.LoadGenerator -Dexec.args="scenario=connect-storm clients=2000 rate=5000"
+ * </pre>
+ * Options, see {@link Options#DEFAULTS} for their defaults:
+ * <ul>
+ *     <li>{@code scenario}: one of the above, or {@code all};</li>
+ *     <li>{@code server}: {@code async} for {@link SocksServer}, {@code sync} for {@link SyncSocksServer};</li>
+ *     <li>{@code relay}: {@code polling}, {@code full-duplex} or {@code nio};</li>
+ *     <li>{@code virtual-threads}: whether the server runs connections on virtual threads (Java 21+);</li>
+ *     <li>{@code proxy}: {@code host:port} of a proxy to use instead of starting one, which should reach this host's loopback;</li>
+ *     <li>{@code socks}: 4 or 5, for TCP scenarios;</li>
+ *     <li>{@code clients}, {@code duration} and {@code warmup} (seconds), and {@code rate} (operations per second, 0 for none);</li>
+ *     <li>{@code payload}: bytes per bulk operation; {@code datagram} and {@code burst}: bytes per datagram, at most what the
+ *     proxy relays whole, and datagrams per UDP operation; {@code idle-interval}: milliseconds between pings of idle tunnels;</li>
+ *     <li>{@code backlog} of the listening socket, and {@code timeout} in milliseconds for every socket operation.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final long SAMPLE_INTERVAL_MILLIS = 100;
+	// the proxy started here receives each datagram into one buffer, after room for the longest SOCKS5 UDP header (IPv6)
+	private static final int RELAY_HEADER_ROOM = 4 + 16 + 2;
+	// the largest payload of a UDP datagram over IPv4
+	private static final int MAX_UDP_PAYLOAD = 65535 - 20 - 8;
+
+	private final Options options;
+	private final LoadThreads loadThreads = new LoadThreads();
+	private InetSocketAddress proxy;
+	private Supplier<SocksMetrics> serverMetrics = () -> null;
+	private Runnable stopServer = () -> {
+	};
+	private ServerSocket echoServer;
+	private DatagramSocket udpEchoServer;
+	private NioRelayEngine relayEngine;
+
+	private LoadGenerator(Options options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadGenerator(Options.parse(args)).run(System.out);
+		// connection threads of the server may linger until their sockets time out
+		System.exit(0);
+	}
+
+	private void run(PrintStream out) throws Exception {
+		startTargets();
+		startProxy();
+		try {
+			out.println(describeSetup());
+			for (String scenario : options.scenarios()) {
+				runScenario(scenario).print(out);
+			}
+		} finally {
+			stopServer.run();
+			if (relayEngine != null) {
+				relayEngine.close();
+			}
+			echoServer.close();
+			udpEchoServer.close();
+		}
+	}
+
+	private void startTargets() throws IOException {
+		echoServer = new ServerSocket(0, options.integer("backlog"), LOOPBACK);
+		loadThreads.start("tcp-echo", () -> {
+			while (!echoServer.isClosed()) {
+				final Socket socket;
+				try {
+					socket = echoServer.accept();
+				} catch (IOException e) {
+					return;
+				}
+				loadThreads.start("tcp-echo-connection", () -> echo(socket));
+			}
+		});
+		udpEchoServer = new DatagramSocket(0, LOOPBACK);
+		loadThreads.start("udp-echo", () -> {
+			final DatagramPacket packet = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+			while (!udpEchoServer.isClosed()) {
+				try {
+					packet.setLength(packet.getData().length);
+					udpEchoServer.receive(packet);
+					udpEchoServer.send(packet);
+				} catch (IOException e) {
+					// closed, or the association went away
+				}
+			}
+		});
+	}
+
+	private static void echo(Socket socket) {
+		try (Socket s = socket) {
+			final InputStream in = s.getInputStream();
+			final OutputStream out = s.getOutputStream();
+			final byte[] buffer = new byte[16 * 1024];
+			int count;
+			while ((count = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	private void startProxy() throws Exception {
+		final String external = options.string("proxy");
+		if (!external.isEmpty()) {
+			final int colon = external.lastIndexOf(':');
+			proxy = new InetSocketAddress(external.substring(0, colon), Integer.parseInt(external.substring(colon + 1)));
+			return;
+		}
+		final int port = Utils.getFreePort();
+		proxy = new InetSocketAddress(LOOPBACK, port);
+		final String relay = options.string("relay");
+		if (relay.equals("nio")) {
+			relayEngine = new NioRelayEngine();
+		}
+		if (options.string("server").equals("sync")) {
+			final SyncSocksServer server = new SyncSocksServer()
+					.setListenBacklog(options.integer("backlog"))
+					.setFullDuplexRelay(relay.equals("full-duplex"))
+					.setRelayEngine(relayEngine);
+			if (options.bool("virtual-threads")) {
+				server.setClientThreadFactory(ClientThreadFactories.virtualThreads());
+			}
+			server.start(port);
+			serverMetrics = server::getMetrics;
+			stopServer = server::stop;
+		} else {
+			final SocksServer server = new SocksServer(port)
+					.setListenBacklog(options.integer("backlog"))
+					.setFullDuplexRelay(relay.equals("full-duplex"))
+					.setRelayEngine(relayEngine);
+			if (options.bool("virtual-threads")) {
+				server.setClientThreadFactory(ClientThreadFactories.virtualThreads());
+			}
+			server.start();
+			LoopbackEcho.awaitListening(port);
+			serverMetrics = server::getMetrics;
+			stopServer = () -> server.stop(0);
+		}
+	}
+
+	private String describeSetup() {
+		return String.format(Locale.ROOT, "Proxy %s: %s, %d clients, %d s warmup, %d s measured, rate %s, Java %s, %d cores",
+				proxy, options.string("proxy").isEmpty()
+						? options.string("server") + " server, " + options.string("relay") + " relay" + (options.bool("virtual-threads") ? ", virtual threads" : "")
+						: "external",
+				options.integer("clients"), options.integer("warmup"), options.integer("duration"),
+				options.integer("rate") > 0 ? options.integer("rate") + "/s" : "unlimited",
+				System.getProperty("java.version"), Runtime.getRuntime().availableProcessors());
+	}
+
+	private Result runScenario(String scenario) throws InterruptedException {
+		final int clients = options.integer("clients");
+		final long rate = scenario.equals("idle")
+				? Math.max(1, clients * 1000L / options.integer("idle-interval"))
+				: options.integer("rate");
+		final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		final long measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(options.integer("warmup"));
+		final Result result = new Result(scenario, measureFromNanos, measureFromNanos + TimeUnit.SECONDS.toNanos(options.integer("duration")));
+		final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(clients) / rate : 0;
+
+		final CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			final Client client = newClient(scenario, result);
+			final long firstNanos = startNanos + intervalNanos * i / clients;
+			loadThreads.start("load-" + scenario + "-" + i, () -> {
+				try {
+					client.run(firstNanos, intervalNanos);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		new Sampler(result).sampleUntil(done);
+		return result;
+	}
+
+	private Client newClient(String scenario, Result result) {
+		switch (scenario) {
+			case "connect-storm":
+				return new ConnectStormClient(result);
+			case "bulk":
+				return new BulkClient(result);
+			case "idle":
+				return new IdleClient(result);
+			case "udp":
+				return new UdpClient(result);
+			default:
+				throw new IllegalArgumentException("Unknown scenario " + scenario);
+		}
+	}
+
+	/**
+	 * One simulated client, running operations on its own thread until the measurement ends.
+	 */
+	private abstract class Client {
+
+		final Result result;
+		final int timeoutMillis = options.integer("timeout");
+
+		Client(Result result) {
+			this.result = result;
+		}
+
+		void run(long firstNanos, long intervalNanos) {
+			// long-lived tunnels all go up at once, then operations spread out over the interval
+			open();
+			long dueNanos = firstNanos;
+			while (dueNanos < result.measureUntilNanos) {
+				waitUntil(dueNanos);
+				final long startNanos = intervalNanos > 0 ? dueNanos : System.nanoTime();
+				try {
+					operate(startNanos);
+					result.completed(startNanos);
+				} catch (IOException | RuntimeException e) {
+					result.failed(startNanos);
+					close();
+					open();
+				}
+				dueNanos = intervalNanos > 0 ? dueNanos + intervalNanos : System.nanoTime();
+			}
+			// keep tunnels up for the whole window even if they are due next after it
+			waitUntil(result.measureUntilNanos);
+			close();
+		}
+
+		/**
+		 * Sets up the client's long-lived tunnel or association, if it has one, retrying on the next operation if it fails.
+		 */
+		void open() {
+		}
+
+		/**
+		 * Runs one operation and records its latency and relayed bytes.
+		 */
+		abstract void operate(long startNanos) throws IOException;
+
+		void close() {
+		}
+
+		Socket openTunnel() throws IOException {
+			final Socket socket = SocksLoadClient.connect(proxy, options.integer("socks"), (InetSocketAddress) echoServer.getLocalSocketAddress(), timeoutMillis);
+			result.setups.increment();
+			result.established();
+			return socket;
+		}
+
+		private void waitUntil(long nanos) {
+			for (long remaining = nanos - System.nanoTime(); remaining > 0; remaining = nanos - System.nanoTime()) {
+				LockSupport.parkNanos(remaining);
+			}
+		}
+	}
+
+	private class ConnectStormClient extends Client {
+
+		ConnectStormClient(Result result) {
+			super(result);
+		}
+
+		@Override
+		void operate(long startNanos) throws IOException {
+			try (Socket socket = openTunnel()) {
+				socket.getOutputStream().write(42);
+				if (socket.getInputStream().read() != 42) {
+					throw new IOException("Echo failed");
+				}
+				// no TIME_WAIT, or a storm runs out of ephemeral ports within a minute
+				socket.setSoLinger(true, 0);
+			}
+			result.recordLatency(startNanos);
+			result.relayed(startNanos, 2);
+		}
+	}
+
+	/**
+	 * Keeps one tunnel open, reopening it if it fails.
+	 */
+	private abstract class TunnelClient extends Client {
+
+		Socket socket;
+		final byte[] payload;
+
+		TunnelClient(Result result, int payloadSize) {
+			super(result);
+			payload = new byte[payloadSize];
+		}
+
+		@Override
+		void open() {
+			try {
+				socket = openTunnel();
+			} catch (IOException e) {
+				socket = null;
+			}
+		}
+
+		@Override
+		void operate(long startNanos) throws IOException {
+			if (socket == null) {
+				throw new IOException("No tunnel");
+			}
+			socket.getOutputStream().write(payload);
+			new DataInputStream(socket.getInputStream()).readFully(payload);
+			result.recordLatency(startNanos);
+			result.relayed(startNanos, 2L * payload.length);
+		}
+
+		@Override
+		void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				socket = null;
+			}
+		}
+	}
+
+	private class BulkClient extends TunnelClient {
+		BulkClient(Result result) {
+			super(result, options.integer("payload"));
+		}
+	}
+
+	private class IdleClient extends TunnelClient {
+		IdleClient(Result result) {
+			super(result, 1);
+		}
+	}
+
+	private class UdpClient extends Client {
+
+		private final int datagramSize = options.integer("datagram");
+		private final int burst = options.integer("burst");
+		private SocksLoadClient.UdpAssociation association;
+
+		UdpClient(Result result) {
+			super(result);
+		}
+
+		@Override
+		void open() {
+			try {
+				association = new SocksLoadClient.UdpAssociation(proxy, datagramSize, timeoutMillis);
+				result.setups.increment();
+				result.established();
+			} catch (IOException e) {
+				association = null;
+			}
+		}
+
+		@Override
+		void operate(long startNanos) throws IOException {
+			if (association == null) {
+				throw new IOException("No association");
+			}
+			final InetSocketAddress destination = (InetSocketAddress) udpEchoServer.getLocalSocketAddress();
+			for (int i = 0; i < burst; i++) {
+				association.send(destination, datagramSize, startNanos);
+			}
+			result.datagramsSent(startNanos, burst);
+			for (int i = 0; i < burst; i++) {
+				final long stamp;
+				try {
+					stamp = association.receive();
+				} catch (SocketTimeoutException e) {
+					// the rest of the burst got lost
+					return;
+				}
+				// late datagrams of earlier bursts count towards their own burst
+				result.recordLatency(stamp);
+				result.datagramReceived(stamp);
+				result.relayed(stamp, 2L * datagramSize);
+			}
+		}
+
+		@Override
+		void close() {
+			if (association != null) {
+				try {
+					association.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				association = null;
+			}
+		}
+	}
+
+	/**
+	 * What happened during the measurement window of one scenario. Operations count if they were due within the window.
+	 */
+	private static final class Result {
+
+		final String scenario;
+		final long measureFromNanos;
+		final long measureUntilNanos;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder operations = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder datagramsSent = new LongAdder();
+		final LongAdder datagramsReceived = new LongAdder();
+		// all tunnels and associations set up, including during warmup, and when the first and last one was
+		final LongAdder setups = new LongAdder();
+		final AtomicLong firstSetupNanos = new AtomicLong(Long.MAX_VALUE);
+		final AtomicLong lastSetupNanos = new AtomicLong(Long.MIN_VALUE);
+		final LongAdder setupsMeasured = new LongAdder();
+		// filled in by the sampler
+		long cpuNanos;
+		long heapPeakBytes;
+		long gcCount;
+		long gcMillis;
+		long connectionsPeak = -1;
+
+		Result(String scenario, long measureFromNanos, long measureUntilNanos) {
+			this.scenario = scenario;
+			this.measureFromNanos = measureFromNanos;
+			this.measureUntilNanos = measureUntilNanos;
+		}
+
+		boolean measuring(long startNanos) {
+			return startNanos >= measureFromNanos && startNanos < measureUntilNanos;
+		}
+
+		void completed(long startNanos) {
+			if (measuring(startNanos)) {
+				operations.increment();
+			}
+		}
+
+		void failed(long startNanos) {
+			if (measuring(startNanos)) {
+				errors.increment();
+			}
+		}
+
+		void recordLatency(long startNanos) {
+			if (measuring(startNanos)) {
+				latency.recordSince(startNanos);
+			}
+		}
+
+		void relayed(long startNanos, long count) {
+			if (measuring(startNanos)) {
+				bytes.add(count);
+			}
+		}
+
+		void datagramsSent(long startNanos, int count) {
+			if (measuring(startNanos)) {
+				datagramsSent.add(count);
+			}
+		}
+
+		void datagramReceived(long startNanos) {
+			if (measuring(startNanos)) {
+				datagramsReceived.increment();
+			}
+		}
+
+		void established() {
+			final long now = System.nanoTime();
+			firstSetupNanos.accumulateAndGet(now, Math::min);
+			lastSetupNanos.accumulateAndGet(now, Math::max);
+			if (measuring(now)) {
+				setupsMeasured.increment();
+			}
+		}
+
+		void print(PrintStream out) {
+			final double seconds = (measureUntilNanos - measureFromNanos) / 1e9;
+			out.println();
+			out.println(scenario);
+			out.printf(Locale.ROOT, "  operations   %,d (%,.1f/s), %,d errors%n", operations.sum(), operations.sum() / seconds, errors.sum());
+			out.printf(Locale.ROOT, "  setups       %,d (%,.1f/s)%n", setupsMeasured.sum(), setupsMeasured.sum() / seconds);
+			if (!scenario.equals("connect-storm") && setups.sum() > 1) {
+				out.printf(Locale.ROOT, "  established  %,d in %,.0f ms (%,.1f/s)%n", setups.sum(),
+						(lastSetupNanos.get() - firstSetupNanos.get()) / 1e6, setups.sum() / ((lastSetupNanos.get() - firstSetupNanos.get()) / 1e9));
+			}
+			out.printf(Locale.ROOT, "  throughput   %,.2f MB/s%n", bytes.sum() / seconds / (1024 * 1024));
+			if (datagramsSent.sum() > 0) {
+				out.printf(Locale.ROOT, "  datagrams    %,d sent, %.3f%% lost%n", datagramsSent.sum(),
+						100.0 * Math.max(0, datagramsSent.sum() - datagramsReceived.sum()) / datagramsSent.sum());
+			}
+			final StringBuilder percentiles = new StringBuilder();
+			for (double percentile : PERCENTILES) {
+				percentiles.append(String.format(Locale.ROOT, "p%s %.3f  ", new DecimalFormat("0.#").format(percentile), latency.valueAt(percentile) / 1e6));
+			}
+			out.printf(Locale.ROOT, "  latency ms   %smax %.3f%n", percentiles, latency.max() / 1e6);
+			out.printf(Locale.ROOT, "  proxy CPU    %.2f cores%n", cpuNanos / 1e9 / seconds);
+			out.printf(Locale.ROOT, "  heap         %,d MB peak, %,d GCs taking %,d ms%n", heapPeakBytes / (1024 * 1024), gcCount, gcMillis);
+			if (connectionsPeak >= 0) {
+				out.printf(Locale.ROOT, "  connections  %,d peak%n", connectionsPeak);
+			}
+		}
+	}
+
+	/**
+	 * Samples CPU, heap and GC of the process over the measurement window of a scenario.
+	 */
+	private final class Sampler {
+
+		private final Result result;
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+		Sampler(Result result) {
+			this.result = result;
+		}
+
+		void sampleUntil(CountDownLatch done) throws InterruptedException {
+			sleepUntil(result.measureFromNanos);
+			final long startCpu = os.getProcessCpuTime() - loadThreads.cpuNanos();
+			final long startGcCount = gcCount();
+			final long startGcMillis = gcMillis();
+			while (System.nanoTime() < result.measureUntilNanos) {
+				result.heapPeakBytes = Math.max(result.heapPeakBytes, memory.getHeapMemoryUsage().getUsed());
+				final SocksMetrics metrics = serverMetrics.get();
+				if (metrics != null) {
+					result.connectionsPeak = Math.max(result.connectionsPeak, metrics.getConnectionsActive());
+				}
+				Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+			}
+			result.cpuNanos = os.getProcessCpuTime() - loadThreads.cpuNanos() - startCpu;
+			result.gcCount = gcCount() - startGcCount;
+			result.gcMillis = gcMillis() - startGcMillis;
+			if (!done.await(options.integer("timeout") + 5000L, TimeUnit.MILLISECONDS)) {
+				System.err.println("Some " + result.scenario + " clients are still busy");
+			}
+		}
+
+		private void sleepUntil(long nanos) throws InterruptedException {
+			final long remaining = nanos - System.nanoTime();
+			if (remaining > 0) {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			}
+		}
+
+		private long gcCount() {
+			long count = 0;
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(0, collector.getCollectionCount());
+			}
+			return count;
+		}
+
+		private long gcMillis() {
+			long millis = 0;
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				millis += Math.max(0, collector.getCollectionTime());
+			}
+			return millis;
+		}
+	}
+
+	/**
+	 * The load generator's own threads, clients and echo servers alike, with small stacks so thousands of them fit, and keeping
+	 * track of their CPU time to tell it apart from the proxy's.
+	 */
+	private static final class LoadThreads {
+
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private final Set<Thread> live = ConcurrentHashMap.newKeySet();
+		private final LongAdder finishedCpuNanos = new LongAdder();
+
+		void start(String name, Runnable runnable) {
+			final Thread thread = new Thread(null, () -> {
+				try {
+					runnable.run();
+				} finally {
+					finishedCpuNanos.add(Math.max(0, threads.getCurrentThreadCpuTime()));
+					live.remove(Thread.currentThread());
+				}
+			}, name, 256 * 1024);
+			thread.setDaemon(true);
+			live.add(thread);
+			thread.start();
+		}
+
+		long cpuNanos() {
+			long total = finishedCpuNanos.sum();
+			for (Thread thread : live) {
+				total += Math.max(0, threads.getThreadCpuTime(thread.getId()));
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Command line options as {@code name=value} pairs.
+	 */
+	static final class Options {
+
+		static final Map<String, String> DEFAULTS;
+
+		static {
+			final Map<String, String> defaults = new HashMap<>();
+			defaults.put("scenario", "all");
+			defaults.put("server", "async");
+			defaults.put("relay", "polling");
+			defaults.put("virtual-threads", "false");
+			defaults.put("proxy", "");
+			defaults.put("socks", "5");
+			defaults.put("clients", "1000");
+			defaults.put("duration", "30");
+			defaults.put("warmup", "5");
+			defaults.put("rate", "0");
+			defaults.put("payload", "16384");
+			defaults.put("datagram", "512");
+			defaults.put("burst", "16");
+			defaults.put("idle-interval", "5000");
+			defaults.put("backlog", "4096");
+			defaults.put("timeout", "10000");
+			DEFAULTS = Collections.unmodifiableMap(defaults);
+		}
+
+		private static final List<String> SCENARIOS = Arrays.asList("connect-storm", "bulk", "idle", "udp");
+
+		private final Map<String, String> values;
+
+		private Options(Map<String, String> values) {
+			this.values = values;
+		}
+
+		static Options parse(String[] args) {
+			final Map<String, String> values = new HashMap<>(DEFAULTS);
+			for (String arg : args) {
+				final int equals = arg.indexOf('=');
+				final String name = equals < 0 ? arg : arg.substring(0, equals);
+				if (equals < 0 || !DEFAULTS.containsKey(name)) {
+					throw new IllegalArgumentException("Expected name=value with one of " + DEFAULTS.keySet() + ", got " + arg);
+				}
+				values.put(name, arg.substring(equals + 1));
+			}
+			final Options options = new Options(values);
+			options.require("server", "async", "sync");
+			options.require("relay", "polling", "full-duplex", "nio");
+			options.require("socks", "4", "5");
+			if (!options.string("scenario").equals("all")) {
+				options.require("scenario", SCENARIOS.toArray(new String[0]));
+			}
+			// the client writes a payload entirely before reading the echo, which mustn't fill up both socket buffers
+			if (options.integer("payload") < 1 || options.integer("payload") > 256 * 1024) {
+				throw new IllegalArgumentException("payload must be between 1 and 262144 bytes");
+			}
+			// larger datagrams get truncated by the relay, which would look like 100% loss; for an external proxy only UDP's own
+			// limit is known
+			final int maxDatagram = (options.string("proxy").isEmpty()
+					? ServerConfig.defaults().getBufferSize() - RELAY_HEADER_ROOM
+					: MAX_UDP_PAYLOAD) - SocksLoadClient.UdpAssociation.HEADER_LENGTH;
+			if (options.integer("datagram") < 8 || options.integer("datagram") > maxDatagram) {
+				throw new IllegalArgumentException("datagram must be between 8 and " + maxDatagram + " bytes");
+			}
+			return options;
+		}
+
+		List<String> scenarios() {
+			return string("scenario").equals("all") ? SCENARIOS : Collections.singletonList(string("scenario"));
+		}
+
+		String string(String name) {
+			return values.get(name);
+		}
+
+		int integer(String name) {
+			return Integer.parseInt(values.get(name));
+		}
+
+		boolean bool(String name) {
+			return Boolean.parseBoolean(values.get(name));
+		}
+
+		private void require(String name, String... allowed) {
+			if (!Arrays.asList(allowed).contains(values.get(name))) {
+				throw new IllegalArgumentException(name + " must be one of " + Arrays.toString(allowed) + ", got " + values.get(name));
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package demo;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Bare-bones blocking SOCKS client for the load generator: no authentication, IPv4 destinations only, and every handshake
+ * step waits for the server's answer like common clients do.
+ */
+final class SocksLoadClient {
+
+	private SocksLoadClient() {
+	}
+
+	/**
+	 * @return A socket tunneled to the destination.
+	 */
+	static Socket connect(InetSocketAddress proxy, int socksVersion, InetSocketAddress destination, int timeoutMillis) throws IOException {
+		final Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeoutMillis);
+			socket.connect(proxy, timeoutMillis);
+			if (socksVersion == 4) {
+				socks4Connect(socket, destination);
+			} else {
+				socks5Command(socket, (byte) 1, destination);
+			}
+			return socket;
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static void socks4Connect(Socket socket, InetSocketAddress destination) throws IOException {
+		final byte[] address = destination.getAddress().getAddress();
+		final int port = destination.getPort();
+		socket.getOutputStream().write(new byte[]{4, 1, (byte) (port >> 8), (byte) port, address[0], address[1], address[2], address[3], 0});
+		final byte[] reply = new byte[8];
+		new DataInputStream(socket.getInputStream()).readFully(reply);
+		if (reply[1] != 90) {
+			throw new IOException("SOCKS4 request refused with " + reply[1]);
+		}
+	}
+
+	/**
+	 * @return The address the server bound for the command.
+	 */
+	private static InetSocketAddress socks5Command(Socket socket, byte command, InetSocketAddress destination) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		out.write(new byte[]{5, 1, 0});
+		final byte[] method = new byte[2];
+		in.readFully(method);
+		if (method[1] != 0) {
+			throw new IOException("SOCKS5 server refused to go without authentication");
+		}
+		final byte[] address = destination.getAddress().getAddress();
+		final int port = destination.getPort();
+		out.write(new byte[]{5, command, 0, 1, address[0], address[1], address[2], address[3], (byte) (port >> 8), (byte) port});
+		final byte[] reply = new byte[4];
+		in.readFully(reply);
+		if (reply[1] != 0) {
+			throw new IOException("SOCKS5 request refused with " + reply[1]);
+		}
+		final byte[] bound = new byte[reply[3] == 4 ? 16 : reply[3] == 1 ? 4 : in.readUnsignedByte()];
+		in.readFully(bound);
+		final int boundPort = in.readUnsignedShort();
+		return new InetSocketAddress(reply[3] == 3 ? InetAddress.getByName(new String(bound, "ISO-8859-1")) : InetAddress.getByAddress(bound), boundPort);
+	}
+
+	/**
+	 * A SOCKS5 UDP association, relaying datagrams as long as its control connection is open.
+	 */
+	static final class UdpAssociation implements Closeable {
+
+		// requests always carry an IPv4 destination
+		static final int HEADER_LENGTH = 10;
+
+		private final Socket control;
+		private final DatagramSocket socket;
+		private final InetSocketAddress relay;
+		private final byte[] sendBuffer;
+		private final DatagramPacket sendPacket;
+		private final DatagramPacket receivePacket;
+
+		UdpAssociation(InetSocketAddress proxy, int maxPayload, int timeoutMillis) throws IOException {
+			control = new Socket();
+			try {
+				control.setSoTimeout(timeoutMillis);
+				control.connect(proxy, timeoutMillis);
+				socket = new DatagramSocket(0, proxy.getAddress());
+				socket.setSoTimeout(timeoutMillis);
+				final InetSocketAddress bound = socks5Command(control, (byte) 3, new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort()));
+				relay = bound.getAddress().isAnyLocalAddress() ? new InetSocketAddress(proxy.getAddress(), bound.getPort()) : bound;
+			} catch (IOException | RuntimeException e) {
+				control.close();
+				throw e;
+			}
+			sendBuffer = new byte[HEADER_LENGTH + maxPayload];
+			sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length, relay);
+			receivePacket = new DatagramPacket(new byte[HEADER_LENGTH + 16 + 2 + maxPayload], HEADER_LENGTH + 16 + 2 + maxPayload);
+		}
+
+		/**
+		 * Sends the payload, stamped with the given value in its first 8 bytes, to the destination through the proxy.
+		 */
+		void send(InetSocketAddress destination, int payloadLength, long stamp) throws IOException {
+			final byte[] address = destination.getAddress().getAddress();
+			sendBuffer[3] = 1;
+			System.arraycopy(address, 0, sendBuffer, 4, 4);
+			sendBuffer[8] = (byte) (destination.getPort() >> 8);
+			sendBuffer[9] = (byte) destination.getPort();
+			for (int i = 0; i < 8; i++) {
+				sendBuffer[HEADER_LENGTH + i] = (byte) (stamp >>> (56 - 8 * i));
+			}
+			sendPacket.setLength(HEADER_LENGTH + Math.max(8, payloadLength));
+			socket.send(sendPacket);
+		}
+
+		/**
+		 * @return The stamp of the next datagram coming back through the proxy.
+		 */
+		long receive() throws IOException {
+			receivePacket.setLength(receivePacket.getData().length);
+			socket.receive(receivePacket);
+			final byte[] data = receivePacket.getData();
+			final int headerLength = data[3] == 1 ? HEADER_LENGTH : data[3] == 4 ? HEADER_LENGTH + 12 : 7 + (data[4] & 0xFF);
+			if (receivePacket.getLength() < headerLength + 8) {
+				throw new EOFException("Truncated datagram");
+			}
+			long stamp = 0;
+			for (int i = 0; i < 8; i++) {
+				stamp = (stamp << 8) | (data[headerLength + i] & 0xFF);
+			}
+			return stamp;
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+			control.close();
+		}
+	}
+}
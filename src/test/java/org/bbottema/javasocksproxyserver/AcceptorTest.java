@@ -0,0 +1,72 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AcceptorTest {
+
+    private static final int CONNECTIONS = 64;
+
+    @Test
+    public void several_acceptors_share_one_listening_socket() throws Exception {
+        assertAcceptsConcurrentClients(false);
+    }
+
+    @Test
+    public void several_acceptors_listen_with_reuse_port() throws Exception {
+        assertAcceptsConcurrentClients(true);
+    }
+
+    private static void assertAcceptsConcurrentClients(boolean reusePort) throws Exception {
+        int port = Utils.getFreePort();
+        SocksServer server = new SocksServer(port).setAcceptorThreads(4).setReusePort(reusePort).start();
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        try (ServerSocket target = new ServerSocket(0, CONNECTIONS, InetAddress.getLoopbackAddress())) {
+            LoopbackEcho.awaitListening(port);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    for (int i = 0; i < CONNECTIONS; i++) {
+                        try (Socket accepted = target.accept()) {
+                            accepted.getOutputStream().write(1);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            acceptor.start();
+
+            Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                results.add(clients.submit(() -> {
+                    try (Socket socket = new Socket(proxy)) {
+                        socket.connect(target.getLocalSocketAddress());
+                        return socket.getInputStream().read();
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(1, (int) result.get());
+            }
+            acceptor.join();
+            assertEquals((long) CONNECTIONS, server.getMetrics().snapshot().getCommandsTotal().get("SOCKS5 CONNECT"));
+        } finally {
+            clients.shutdownNow();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AccessRulesTest {
+
+    private static final InetAddress CLIENT = address("192.168.1.10");
+
+    @Test
+    public void first_applying_rule_decides() {
+        AccessRules rules = AccessRules.builder()
+                .allow(AccessRule.any().withDestinationNetwork("10.1.0.0/16"))
+                .deny(AccessRule.any().withDestinationNetwork("10.0.0.0/8"))
+                .allowByDefault(true)
+                .build();
+        assertTrue(rules.permits(CLIENT, null, address("10.1.2.3"), 80));
+        assertFalse(rules.permits(CLIENT, null, address("10.2.2.3"), 80));
+        assertTrue(rules.permits(CLIENT, null, address("11.0.0.1"), 80));
+        assertFalse(AccessRules.builder().allowByDefault(false).build().permits(CLIENT, null, address("11.0.0.1"), 80));
+    }
+
+    @Test
+    public void rules_apply_only_if_all_their_conditions_are_met() {
+        AccessRules rules = AccessRules.builder()
+                .allow(AccessRule.any().withClientNetwork("192.168.1.0/24").withDestinationPorts(80, 443).withUser("alice"))
+                .allow(AccessRule.any().withDestinationNetwork("2001:db8::/32").withDestinationPort(22))
+                .allowByDefault(false)
+                .build();
+        assertTrue(rules.permits(CLIENT, "alice", address("8.8.8.8"), 443));
+        assertFalse(rules.permits(CLIENT, "alice", address("8.8.8.8"), 444));
+        assertFalse(rules.permits(CLIENT, "bob", address("8.8.8.8"), 443));
+        assertFalse(rules.permits(CLIENT, null, address("8.8.8.8"), 443));
+        assertFalse(rules.permits(address("192.168.2.10"), "alice", address("8.8.8.8"), 443));
+        assertTrue(rules.permits(CLIENT, null, address("2001:db8::1"), 22));
+        assertFalse(rules.permits(CLIENT, null, address("2001:db9::1"), 22));
+    }
+
+    @Test
+    public void domains_match_themselves_and_their_subdomains_ignoring_case() {
+        AccessRules rules = AccessRules.builder()
+                .deny(AccessRule.any().withDestinationDomain("Example.com"))
+                .build();
+        assertEquals(AccessRules.DENIED, evaluateDomain(rules, "example.com"));
+        assertEquals(AccessRules.DENIED, evaluateDomain(rules, "WWW.example.COM."));
+        assertEquals(AccessRules.ALLOWED, evaluateDomain(rules, "notexample.com"));
+        assertEquals(AccessRules.ALLOWED, evaluateDomain(rules, "example.com.evil.org"));
+    }
+
+    @Test
+    public void domains_are_resolved_only_when_a_network_rule_comes_first() {
+        AccessRules rules = AccessRules.builder()
+                .allow(AccessRule.any().withDestinationDomain("trusted.org"))
+                .deny(AccessRule.any().withDestinationNetwork("10.0.0.0/8"))
+                .build();
+        assertEquals(AccessRules.ALLOWED, evaluateDomain(rules, "intranet.trusted.org"));
+        assertEquals(AccessRules.NEEDS_ADDRESS, evaluateDomain(rules, "example.com"));
+        assertFalse(rules.permits(CLIENT, null, "example.com", new InetAddress[]{address("8.8.8.8"), address("10.0.0.1")}, 80));
+        assertTrue(rules.permits(CLIENT, null, "example.com", new InetAddress[]{address("8.8.8.8")}, 80));
+    }
+
+    @Test
+    public void thousands_of_rules_are_checked_without_allocating() {
+        AccessRules.Builder builder = AccessRules.builder();
+        for (int i = 0; i < 5000; i++) {
+            builder.deny(AccessRule.any().withDestinationDomain("blocked" + i + ".example"));
+        }
+        for (int i = 0; i < 5000; i++) {
+            builder.deny(AccessRule.any().withDestinationNetwork("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"));
+        }
+        AccessRules rules = builder.allow(AccessRule.any().withDestinationPorts(1, 1024)).allowByDefault(false).build();
+        byte[] client = CLIENT.getAddress();
+        byte[] blocked = address("10.19.135.7").getAddress();
+        byte[] allowed = address("10.200.0.1").getAddress();
+        byte[] domain = "www.blocked4999.example".getBytes(ISO_8859_1);
+        assertEquals(AccessRules.DENIED, rules.evaluate(client, null, UdpHeaderCodec.ATYP_IPV4, blocked, 0, 4, 80));
+        assertEquals(AccessRules.ALLOWED, rules.evaluate(client, null, UdpHeaderCodec.ATYP_IPV4, allowed, 0, 4, 80));
+        assertEquals(AccessRules.DENIED, rules.evaluate(client, null, UdpHeaderCodec.ATYP_IPV4, allowed, 0, 4, 8080));
+        assertEquals(AccessRules.DENIED, rules.evaluate(client, null, UdpHeaderCodec.ATYP_DOMAIN, domain, 0, domain.length, 80));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        int decisions = 0;
+        for (int i = 0; i < 100_000; i++) {
+            decisions += rules.evaluate(client, "user", UdpHeaderCodec.ATYP_IPV4, blocked, 0, 4, 80);
+            decisions += rules.evaluate(client, null, UdpHeaderCodec.ATYP_DOMAIN, domain, 0, domain.length, 443);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertEquals(200_000 * AccessRules.DENIED, decisions);
+        assertTrue(allocated < 64 * 1024, "allocated " + allocated + " bytes");
+    }
+
+    @Test
+    public void invalid_rules_are_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> AccessRule.any().withClientNetwork("example.com"));
+        assertThrows(IllegalArgumentException.class, () -> AccessRule.any().withDestinationNetwork("10.0.0.0/33"));
+        assertThrows(IllegalArgumentException.class, () -> AccessRule.any().withDestinationPorts(443, 80));
+        assertThrows(IllegalArgumentException.class, () -> AccessRule.any().withDestinationDomain("a..b"));
+    }
+
+    @Test
+    public void refused_requests_get_the_ruleset_reply() throws Exception {
+        SyncSocksServer server = new SyncSocksServer().setAccessRules(AccessRules.builder()
+                .deny(AccessRule.any().withDestinationDomain("blocked.example"))
+                .deny(AccessRule.any().withDestinationNetwork("127.0.0.0/8").withDestinationPort(9))
+                .build());
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (ServerSocket target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                byte[] name = "www.blocked.example".getBytes(ISO_8859_1);
+                byte[] request = new byte[3 + 5 + name.length + 2];
+                System.arraycopy(new byte[]{5, 1, 0, 5, SocksConstants.SC_CONNECT, 0, UdpHeaderCodec.ATYP_DOMAIN, (byte) name.length}, 0, request, 0, 8);
+                System.arraycopy(name, 0, request, 8, name.length);
+                request[request.length - 1] = 80;
+                client.getOutputStream().write(request);
+                InputStream in = client.getInputStream();
+                readFully(in, 2);
+                assertEquals(0x02, readFully(in, 4)[1]);
+            }
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                client.getOutputStream().write(new byte[]{4, SocksConstants.SC_CONNECT, 0, 9, 127, 0, 0, 1, 0});
+                assertEquals(91, readFully(client.getInputStream(), 8)[1]);
+            }
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                client.getOutputStream().write(new byte[]{4, SocksConstants.SC_CONNECT, (byte) (target.getLocalPort() >> 8), (byte) target.getLocalPort(), 127, 0, 0, 1, 0});
+                assertEquals(90, readFully(client.getInputStream(), 8)[1]);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static int evaluateDomain(AccessRules rules, String domain) {
+        byte[] name = domain.getBytes(ISO_8859_1);
+        return rules.evaluate(CLIENT.getAddress(), null, UdpHeaderCodec.ATYP_DOMAIN, name, 0, name.length, 80);
+    }
+
+    private static InetAddress address(String literal) {
+        try {
+            return InetAddress.getByName(literal);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,134 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdmissionControlTest {
+
+    private static final byte[] SOCKS5_GREETING = {SocksConstants.SOCKS5_Version, 1, 0};
+
+    @Test
+    public void enforces_global_and_per_client_limits() throws Exception {
+        InetAddress first = InetAddress.getByName("10.0.0.1");
+        InetAddress second = InetAddress.getByName("10.0.0.2");
+        AdmissionControl control = new AdmissionControl(ConnectionLimits.unlimited().withMaxHandshakes(3).withMaxHandshakesPerClient(2));
+
+        assertTrue(control.tryStartHandshake(first));
+        assertTrue(control.tryStartHandshake(first));
+        assertFalse(control.tryStartHandshake(first));
+        assertTrue(control.tryStartHandshake(second));
+        assertFalse(control.tryStartHandshake(second));
+
+        control.handshakeEnded(first);
+        assertTrue(control.tryStartHandshake(second));
+        assertFalse(control.tryStartHandshake(second));
+        assertFalse(control.tryStartHandshake(first));
+    }
+
+    @Test
+    public void rejects_invalid_limits() {
+        assertThrows(IllegalArgumentException.class, () -> ConnectionLimits.unlimited().withMaxConnections(0));
+    }
+
+    @Test
+    public void closes_connections_over_the_limit() throws Exception {
+        SyncSocksServer server = new SyncSocksServer().setConnectionLimits(ConnectionLimits.unlimited().withMaxConnectionsPerClient(1));
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (Socket admitted = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            admitted.getOutputStream().write(SOCKS5_GREETING);
+            assertArrayEquals(new byte[]{SocksConstants.SOCKS5_Version, 0}, readFully(admitted.getInputStream(), 2));
+
+            try (Socket rejected = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                assertEquals(-1, rejected.getInputStream().read());
+            }
+            assertEquals(1, server.getMetrics().getConnectionsRejected());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void refuses_handshakes_over_the_limit() throws Exception {
+        SyncSocksServer server = new SyncSocksServer().setConnectionLimits(ConnectionLimits.unlimited().withMaxHandshakes(1));
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (Socket stalled = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            stalled.getOutputStream().write(SocksConstants.SOCKS5_Version);
+            awaitHandshakeInProgress(server, port);
+
+            try (Socket rejected = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                rejected.getOutputStream().write(SOCKS5_GREETING);
+                assertArrayEquals(new byte[]{SocksConstants.SOCKS5_Version, (byte) 0xFF}, readFully(rejected.getInputStream(), 2));
+            }
+            try (Socket rejected = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                rejected.getOutputStream().write(new byte[]{SocksConstants.SOCKS4_Version, SocksConstants.SC_CONNECT, 0, 80, 127, 0, 0, 1, 0});
+                assertEquals(91, readFully(rejected.getInputStream(), 8)[1]);
+            }
+            assertEquals(3, server.getMetrics().getHandshakesRejected());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void keeps_accepting_when_threads_run_out() throws Exception {
+        AtomicBoolean outOfThreads = new AtomicBoolean(true);
+        SyncSocksServer server = new SyncSocksServer().setClientThreadFactory(runnable -> {
+            if (outOfThreads.getAndSet(false)) {
+                throw new OutOfMemoryError("unable to create native thread");
+            }
+            return new Thread(runnable);
+        });
+        int port = Utils.getFreePort();
+        server.start(port);
+        try {
+            try (Socket dropped = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                assertEquals(-1, dropped.getInputStream().read());
+            }
+            try (Socket served = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                served.getOutputStream().write(SOCKS5_GREETING);
+                assertArrayEquals(new byte[]{SocksConstants.SOCKS5_Version, 0}, readFully(served.getInputStream(), 2));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Handshakes start on the handler thread, so wait until a probe connection gets turned away.
+     */
+    private static void awaitHandshakeInProgress(SyncSocksServer server, int port) throws Exception {
+        for (int i = 0; i < 100 && server.getMetrics().getHandshakesRejected() == 0; i++) {
+            Thread.sleep(20);
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                probe.getOutputStream().write(SOCKS5_GREETING);
+                readFully(probe.getInputStream(), 2);
+            }
+        }
+        assertEquals(1, server.getMetrics().getHandshakesRejected());
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
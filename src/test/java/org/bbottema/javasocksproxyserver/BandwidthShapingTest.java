@@ -0,0 +1,99 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BandwidthShapingTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    @Test
+    public void token_bucket_allows_a_burst_then_the_sustained_rate() {
+        TokenBucket bucket = new TokenBucket(1000, 500, 0);
+
+        assertEquals(500, bucket.available(4096, 0));
+        bucket.consume(500, 0);
+        assertEquals(0, bucket.available(4096, 0));
+        assertEquals(SECOND / 10, bucket.nanosUntilAvailable(100, 0));
+
+        assertEquals(100, bucket.available(4096, SECOND / 10));
+        assertEquals(500, bucket.available(4096, 10 * SECOND));
+
+        // overdrawn by concurrent readers: stays empty for longer
+        bucket.consume(1000, 10 * SECOND);
+        assertEquals(0, bucket.available(4096, 10 * SECOND + SECOND / 2));
+        assertEquals(500, bucket.available(4096, 12 * SECOND));
+    }
+
+    @Test
+    public void tunnels_of_one_user_share_a_bucket() {
+        BandwidthShaper shaper = new BandwidthShaper(BandwidthLimits.unlimited().withPerUser(1000, 1000));
+        assertNull(shaper.throttle(null));
+
+        shaper.throttle("alice").consumed(1000);
+        assertEquals(0, shaper.throttle("alice").permitted(4096));
+        assertEquals(1000, shaper.throttle("bob").permitted(4096));
+    }
+
+    @Test
+    public void polling_relay_is_throttled() throws Exception {
+        assertThrottled(new SyncSocksServer().setBandwidthLimits(BandwidthLimits.unlimited().withPerConnection(256 * 1024, 16 * 1024)));
+    }
+
+    @Test
+    public void full_duplex_relay_is_throttled() throws Exception {
+        assertThrottled(new SyncSocksServer().setFullDuplexRelay(true).setBandwidthLimits(BandwidthLimits.unlimited().withGlobal(256 * 1024, 16 * 1024)));
+    }
+
+    @Test
+    public void nio_engine_is_throttled() throws Exception {
+        try (NioRelayEngine engine = new NioRelayEngine(1)) {
+            assertThrottled(new SyncSocksServer().setRelayEngine(engine).setBandwidthLimits(BandwidthLimits.unlimited().withPerConnection(256 * 1024, 16 * 1024)));
+        }
+    }
+
+    /**
+     * Echoes the payload through the proxy: twice the payload at 256KiB/s takes about half a second beyond the burst.
+     */
+    private static void assertThrottled(SyncSocksServer server) throws Exception {
+        try (LoopbackEcho echo = new LoopbackEcho()) {
+            int port = Utils.getFreePort();
+            server.start(port);
+            try {
+                Socket socket = echo.openTunnel(port);
+                long start = System.nanoTime();
+                Thread writer = new Thread(() -> {
+                    try {
+                        socket.getOutputStream().write(new byte[PAYLOAD_SIZE]);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                writer.start();
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[8192];
+                int received = 0;
+                int len;
+                while (received < PAYLOAD_SIZE && (len = in.read(buffer)) >= 0) {
+                    received += len;
+                }
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                writer.join();
+
+                assertEquals(PAYLOAD_SIZE, received);
+                assertTrue(elapsedMillis >= 350, "relayed too fast: " + elapsedMillis + " ms");
+                assertTrue(elapsedMillis < 3000, "relayed too slow: " + elapsedMillis + " ms");
+            } finally {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BindTest {
+
+    private static final byte[] GREETING = "220 ready\r\n".getBytes(UTF_8);
+
+    @Test
+    public void configured_bind_address_is_advertised_and_the_incoming_connection_is_relayed() throws Exception {
+        SyncSocksServer server = new SyncSocksServer().setBindAddress(InetAddress.getLoopbackAddress());
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            client.getOutputStream().write(new byte[]{4, SocksConstants.SC_BIND, 0, 21, 127, 0, 0, 1, 'i', 'd', 0});
+            InputStream in = client.getInputStream();
+
+            byte[] first = readFully(in, 8);
+            assertEquals(90, first[1]);
+            assertArrayEquals(InetAddress.getLoopbackAddress().getAddress(), Arrays.copyOfRange(first, 4, 8));
+            int advertisedPort = ((first[2] & 0xFF) << 8) | (first[3] & 0xFF);
+
+            try (Socket incoming = new Socket(InetAddress.getLoopbackAddress(), advertisedPort)) {
+                byte[] second = readFully(in, 8);
+                assertEquals(90, second[1]);
+                assertEquals(incoming.getLocalPort(), ((second[2] & 0xFF) << 8) | (second[3] & 0xFF));
+
+                incoming.getOutputStream().write(GREETING);
+                assertArrayEquals(GREETING, readFully(in, GREETING.length));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void resolver_prefers_configured_then_listen_address() throws Exception {
+        InetAddress configured = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+        InetAddress listening = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+        try (Socket socket = new Socket()) {
+            BindAddressResolver withConfigured = new BindAddressResolver(configured);
+            withConfigured.listeningOn(listening);
+            assertEquals(configured, withConfigured.resolve(socket));
+
+            BindAddressResolver withoutConfigured = new BindAddressResolver(null);
+            withoutConfigured.listeningOn(listening);
+            assertEquals(listening, withoutConfigured.resolve(socket));
+
+            withoutConfigured.listeningOn(InetAddress.getByAddress(new byte[4]));
+            assertNotNull(withoutConfigured.resolve(socket));
+        }
+    }
+
+    @Test
+    public void resolver_only_advertises_ipv4_addresses_to_socks4_clients() throws Exception {
+        InetAddress configured = InetAddress.getByName("2001:db8::1");
+        try (Socket socket = new Socket()) {
+            BindAddressResolver resolver = new BindAddressResolver(configured);
+            resolver.listeningOn(InetAddress.getByName("2001:db8::2"));
+            assertEquals(configured, resolver.resolve(socket, false));
+            assertTrue(resolver.resolve(socket, true) instanceof Inet4Address);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,39 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reuses_released_buffers_and_tracks_stats() {
+        BufferPool pool = new BufferPool(16, 1, false);
+
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertEquals(new BufferPool.Stats(0, 2, 2, 0), pool.getStats());
+
+        first.put((byte) 1);
+        pool.release(first);
+        pool.release(second); // pool is full, left to the GC
+        assertEquals(new BufferPool.Stats(0, 2, 0, 1), pool.getStats());
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+        assertEquals(new BufferPool.Stats(1, 2, 1, 0), pool.getStats());
+    }
+
+    @Test
+    public void ignores_foreign_buffers() {
+        BufferPool pool = new BufferPool(16, 4, false);
+        pool.release(pool.acquire());
+        pool.release(ByteBuffer.allocate(8));
+        pool.release(ByteBuffer.allocateDirect(16));
+        assertEquals(new BufferPool.Stats(0, 1, 0, 1), pool.getStats());
+    }
+}
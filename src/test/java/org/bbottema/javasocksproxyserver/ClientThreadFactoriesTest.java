@@ -0,0 +1,50 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClientThreadFactoriesTest {
+
+    @Test
+    public void platform_threads_run_their_task() throws Exception {
+        assertFalse(isVirtual(assertRuns(ClientThreadFactories.platformThreads())));
+    }
+
+    @Test
+    public void virtual_threads_run_their_task_or_are_unsupported() throws Exception {
+        if (ClientThreadFactories.virtualThreadsSupported()) {
+            Thread thread = assertRuns(ClientThreadFactories.virtualThreads());
+            assertTrue(isVirtual(thread));
+            assertTrue(thread.getName().startsWith("socks-client-"), thread.getName());
+        } else {
+            assertThrows(UnsupportedOperationException.class, ClientThreadFactories::virtualThreads);
+        }
+    }
+
+    private static Thread assertRuns(ThreadFactory factory) throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        Thread thread = factory.newThread(ran::countDown);
+        thread.start();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        thread.join(5000);
+        return thread;
+    }
+
+    /**
+     * {@code Thread.isVirtual()} only exists since Java 21, the project builds for Java 8.
+     */
+    private static boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
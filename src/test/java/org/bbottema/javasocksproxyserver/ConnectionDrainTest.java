@@ -0,0 +1,61 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.bbottema.javasocksproxyserver.auth.DefaultAuthenticator;
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConnectionDrainTest {
+
+    @Test
+    public void closes_remaining_connections_in_parallel() {
+        ServerContext context = new ServerContext(new DefaultAuthenticator());
+        for (int i = 0; i < 10; i++) {
+            new SlowClosingHandler(context, 300);
+        }
+
+        long start = System.nanoTime();
+        assertTrue(ConnectionDrain.drain(context.sessions, 0, 2000));
+        long elapsed = System.nanoTime() - start;
+        // closed one after another, they would take 3 seconds
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1500), "took " + elapsed);
+        assertTrue(context.sessions.isEmpty());
+    }
+
+    @Test
+    public void gives_up_on_closes_blocking_past_the_close_timeout() {
+        ServerContext context = new ServerContext(new DefaultAuthenticator());
+        new SlowClosingHandler(context, 2000);
+
+        long start = System.nanoTime();
+        assertFalse(ConnectionDrain.drain(context.sessions, 0, 200));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+    }
+
+    /**
+     * Stands in for a connection whose socket lingers on close.
+     */
+    private static final class SlowClosingHandler extends ProxyHandler {
+
+        private final long closeMillis;
+
+        SlowClosingHandler(ServerContext context, long closeMillis) {
+            super(new Socket(), context);
+            this.closeMillis = closeMillis;
+        }
+
+        @Override
+        void terminate(ConnectionListener.CloseReason reason) {
+            try {
+                Thread.sleep(closeMillis);
+                context.sessions.remove(sessionId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConnectionListenerTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final int PAYLOAD = 200 * 1024;
+
+    private LoopbackEcho echo;
+
+    @BeforeEach
+    public void startEchoServer() throws IOException {
+        echo = new LoopbackEcho();
+    }
+
+    @AfterEach
+    public void closeEchoServer() throws IOException {
+        echo.close();
+    }
+
+    @Test
+    public void reports_the_lifecycle_of_a_tunnel() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        SyncSocksServer server = new SyncSocksServer().addConnectionListener(listener);
+        int port = Utils.getFreePort();
+        server.start(port);
+        try {
+            Socket socket = echo.openTunnel(port);
+            Thread writer = new Thread(() -> {
+                try {
+                    socket.getOutputStream().write(new byte[PAYLOAD]);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[8192];
+            for (int received = 0; received < PAYLOAD; ) {
+                received += in.read(buffer);
+            }
+            writer.join();
+            socket.close();
+
+            Session closed = listener.awaitClosed();
+            assertEquals(ConnectionListener.CloseReason.ENDED, listener.reasons.get(0));
+            assertEquals(PAYLOAD, closed.getBytesClientToServer());
+            assertEquals(PAYLOAD, closed.getBytesServerToClient());
+            assertEquals(PAYLOAD, listener.clientToServer.get());
+            assertEquals(PAYLOAD, listener.serverToClient.get());
+            // batched, not per read, yet reported while the tunnel is running
+            assertTrue(listener.byteReports.get() >= 2 * (PAYLOAD / ConnectionListener.BYTES_BATCH - 1), "reports: " + listener.byteReports);
+            assertTrue(listener.byteReports.get() <= 2 * (PAYLOAD / ConnectionListener.BYTES_BATCH) + 1, "reports: " + listener.byteReports);
+
+            assertEquals(closed.getId(), listener.acceptedSession.get());
+            Session handshake = listener.handshakes.get(0);
+            assertEquals(5, handshake.getSocksVersion());
+            assertEquals("CONNECT", handshake.getCommand());
+            assertEquals(echo.port(), handshake.getDestinationPort());
+            assertEquals(echo.address(), listener.upstream);
+            assertTrue(listener.latencyNanos.get() > 0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void reports_why_connections_closed() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        SyncSocksServer server = new SyncSocksServer().addConnectionListener(listener);
+        int port = Utils.getFreePort();
+        server.start(port);
+        try {
+            try (Socket garbage = new Socket(LOOPBACK, port)) {
+                garbage.getOutputStream().write(new byte[]{1, 2, 3});
+                listener.awaitClosed();
+                assertEquals(ConnectionListener.CloseReason.HANDSHAKE_FAILED, listener.reasons.get(0));
+            }
+
+            int closedPort;
+            try (ServerSocket unused = new ServerSocket(0, 1, LOOPBACK)) {
+                closedPort = unused.getLocalPort();
+            }
+            assertThrows(IOException.class, () -> echo.openTunnel(port, new InetSocketAddress(LOOPBACK, closedPort)));
+            listener.awaitClosed();
+            assertEquals(ConnectionListener.CloseReason.COMMAND_FAILED, listener.reasons.get(1));
+
+            echo.openTunnel(port);
+            assertEquals(1, server.closeSessions(session -> session.getCommand() != null));
+            listener.awaitClosed();
+            assertEquals(ConnectionListener.CloseReason.CLOSED_BY_SERVER, listener.reasons.get(2));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void failing_listeners_do_not_affect_connections() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        SyncSocksServer server = new SyncSocksServer()
+                .addConnectionListener(new ConnectionListener() {
+                    @Override
+                    public void accepted(long sessionId, @NotNull InetSocketAddress client) {
+                        throw new IllegalStateException("failing on purpose");
+                    }
+                })
+                .addConnectionListener(listener);
+        int port = Utils.getFreePort();
+        server.start(port);
+        try {
+            Socket socket = echo.openTunnel(port);
+            socket.getOutputStream().write(42);
+            assertEquals(42, socket.getInputStream().read());
+            socket.close();
+            assertEquals(1, listener.awaitClosed().getBytesServerToClient());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static class RecordingListener implements ConnectionListener {
+        final AtomicLong acceptedSession = new AtomicLong(-1);
+        final List<Session> handshakes = new CopyOnWriteArrayList<>();
+        volatile InetSocketAddress upstream;
+        final AtomicLong latencyNanos = new AtomicLong();
+        final AtomicLong clientToServer = new AtomicLong();
+        final AtomicLong serverToClient = new AtomicLong();
+        final AtomicLong byteReports = new AtomicLong();
+        final List<CloseReason> reasons = new CopyOnWriteArrayList<>();
+        final BlockingQueue<Session> closed = new LinkedBlockingQueue<>();
+
+        @Override
+        public void accepted(long sessionId, @NotNull InetSocketAddress client) {
+            acceptedSession.set(sessionId);
+        }
+
+        @Override
+        public void handshakeCompleted(@NotNull Session session) {
+            handshakes.add(session);
+        }
+
+        @Override
+        public void upstreamConnected(long sessionId, @NotNull InetSocketAddress upstream, long latencyNanos) {
+            this.upstream = upstream;
+            this.latencyNanos.set(latencyNanos);
+        }
+
+        @Override
+        public void bytesRelayed(long sessionId, long clientToServer, long serverToClient) {
+            this.clientToServer.addAndGet(clientToServer);
+            this.serverToClient.addAndGet(serverToClient);
+            byteReports.incrementAndGet();
+        }
+
+        @Override
+        public void closed(@NotNull Session session, @NotNull CloseReason reason) {
+            reasons.add(reason);
+            closed.add(session);
+        }
+
+        Session awaitClosed() throws InterruptedException {
+            Session session = closed.poll(5, TimeUnit.SECONDS);
+            assertTrue(session != null, "no connection closed");
+            return session;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class EgressTest {
+
+    private static final InetAddress LOOPBACK_1 = address(127, 0, 0, 1);
+    private static final InetAddress LOOPBACK_2 = address(127, 0, 0, 2);
+    // TEST-NET-1, not assigned to any interface, so binding to it fails like an address without free ports
+    private static final InetAddress UNASSIGNABLE = address(192, 0, 2, 55);
+
+    @Test
+    public void tunnels_are_striped_over_the_egress_addresses() throws Exception {
+        SyncSocksServer server = new SyncSocksServer()
+                .setEgressAddresses(EgressAddresses.of(EgressAddresses.Strategy.ROUND_ROBIN, LOOPBACK_1, LOOPBACK_2));
+        int port = Utils.getFreePort();
+        server.start(port);
+        List<Socket> clients = new ArrayList<>();
+        Set<InetAddress> sources = new HashSet<>();
+        try (ServerSocket target = new ServerSocket(0, 50, LOOPBACK_1)) {
+            for (int i = 0; i < 4; i++) {
+                Socket client = new Socket(LOOPBACK_1, port);
+                clients.add(client);
+                client.getOutputStream().write(new byte[]{4, SocksConstants.SC_CONNECT, (byte) (target.getLocalPort() >> 8), (byte) target.getLocalPort(), 127, 0, 0, 1, 0});
+                assertEquals(90, readFully(client.getInputStream(), 8)[1]);
+                try (Socket accepted = target.accept()) {
+                    sources.add(accepted.getInetAddress());
+                }
+            }
+        } finally {
+            for (Socket client : clients) {
+                client.close();
+            }
+            server.stop();
+        }
+        assertEquals(new HashSet<>(Arrays.asList(LOOPBACK_1, LOOPBACK_2)), sources);
+    }
+
+    @Test
+    public void exhausted_addresses_are_skipped() throws Exception {
+        EgressPool pool = new EgressPool(EgressAddresses.of(EgressAddresses.Strategy.ROUND_ROBIN, UNASSIGNABLE, LOOPBACK_1));
+        try (Socket first = new Socket(); Socket second = new Socket()) {
+            assertEquals(LOOPBACK_1, pool.bind(first, LOOPBACK_1, null));
+            assertEquals(LOOPBACK_1, pool.bind(second, LOOPBACK_1, null));
+            assertEquals(0, pool.inUse(UNASSIGNABLE));
+            assertEquals(2, pool.inUse(LOOPBACK_1));
+            pool.release(LOOPBACK_1);
+            assertEquals(1, pool.inUse(LOOPBACK_1));
+        }
+    }
+
+    @Test
+    public void least_used_and_sticky_per_user() throws Exception {
+        EgressPool leastUsed = new EgressPool(EgressAddresses.of(EgressAddresses.Strategy.LEAST_USED, LOOPBACK_1, LOOPBACK_2));
+        try (Socket first = new Socket(); Socket second = new Socket(); Socket third = new Socket()) {
+            InetAddress firstAddress = leastUsed.bind(first, LOOPBACK_1, null);
+            InetAddress secondAddress = leastUsed.bind(second, LOOPBACK_1, null);
+            assertNotEquals(firstAddress, secondAddress);
+            leastUsed.release(firstAddress);
+            assertEquals(firstAddress, leastUsed.bind(third, LOOPBACK_1, null));
+        }
+
+        EgressPool sticky = new EgressPool(EgressAddresses.of(EgressAddresses.Strategy.STICKY_PER_USER, LOOPBACK_1, LOOPBACK_2));
+        try (Socket first = new Socket(); Socket second = new Socket()) {
+            assertEquals(sticky.bind(first, LOOPBACK_1, "alice"), sticky.bind(second, LOOPBACK_1, "alice"));
+        }
+    }
+
+    @Test
+    public void destinations_of_another_family_are_left_to_the_os() throws Exception {
+        EgressPool pool = new EgressPool(EgressAddresses.of(EgressAddresses.Strategy.ROUND_ROBIN, LOOPBACK_1));
+        try (Socket socket = new Socket()) {
+            assertNull(pool.bind(socket, InetAddress.getByName("::1"), null));
+            assertFalse(socket.isBound());
+        }
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
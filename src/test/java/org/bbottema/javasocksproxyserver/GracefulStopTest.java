@@ -0,0 +1,93 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GracefulStopTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private LoopbackEcho echo;
+
+    @BeforeEach
+    public void startEchoServer() throws IOException {
+        echo = new LoopbackEcho();
+    }
+
+    @AfterEach
+    public void closeEchoServer() throws IOException {
+        echo.close();
+    }
+
+    @Test
+    public void closes_all_tunnels_at_once() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        for (int i = 0; i < 20; i++) {
+            echo.openTunnel(port);
+        }
+
+        long start = System.nanoTime();
+        assertTrue(server.stop(0));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        for (Socket socket : echo.tunnels()) {
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        assertEquals(0, server.getMetrics().getConnectionsActive());
+    }
+
+    @Test
+    public void lets_tunnels_finish_within_the_drain_timeout() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        Socket finishing = echo.openTunnel(port);
+        int[] echoed = {0};
+        Thread client = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                finishing.getOutputStream().write(42);
+                echoed[0] = finishing.getInputStream().read();
+                finishing.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        client.start();
+
+        long start = System.nanoTime();
+        assertTrue(server.stop(5000));
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(150) && elapsed < TimeUnit.SECONDS.toNanos(3), "took " + elapsed);
+        client.join();
+        assertEquals(42, echoed[0]);
+        assertEquals(1, server.getMetrics().getBytesServerToClient());
+    }
+
+    @Test
+    public void closes_remaining_tunnels_at_the_drain_deadline() throws Exception {
+        int port = Utils.getFreePort();
+        SocksServer server = new SocksServer(port).start();
+        LoopbackEcho.awaitListening(port);
+        Socket idle = echo.openTunnel(port);
+
+        long start = System.nanoTime();
+        assertTrue(server.stop(300));
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(300) && elapsed < TimeUnit.SECONDS.toNanos(3), "took " + elapsed);
+        assertEquals(-1, idle.getInputStream().read());
+        assertThrows(ConnectException.class, () -> new Socket(LOOPBACK, port).close());
+    }
+}
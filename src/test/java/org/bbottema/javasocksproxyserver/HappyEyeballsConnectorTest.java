@@ -0,0 +1,98 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HappyEyeballsConnectorTest {
+
+    @Test
+    public void interleaves_address_families_starting_with_ipv6() throws Exception {
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        InetAddress v6b = InetAddress.getByName("2001:db8::2");
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b), HappyEyeballsConnector.interleaveFamilies(new InetAddress[]{v4a, v4b, v6a, v6b}));
+    }
+
+    @Test
+    public void races_past_a_blackholed_address() throws Exception {
+        List<Socket> backlog = new ArrayList<>();
+        try (ServerSocket blackhole = blackhole(InetAddress.getByName("127.0.0.2"), backlog);
+             ServerSocket reachable = new ServerSocket(blackhole.getLocalPort(), 50, InetAddress.getByName("127.0.0.1"))) {
+            long start = System.nanoTime();
+            InetAddress[] addresses = {blackhole.getInetAddress(), reachable.getInetAddress()};
+            try (Socket socket = HappyEyeballsConnector.connect(addresses, blackhole.getLocalPort(), 5000, false, SocketOptions.defaults(), EgressPool.NONE, null)) {
+                assertEquals(reachable.getInetAddress(), socket.getInetAddress());
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        } finally {
+            for (Socket socket : backlog) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void gives_up_at_the_deadline() throws Exception {
+        List<Socket> backlog = new ArrayList<>();
+        try (ServerSocket blackhole = blackhole(InetAddress.getByName("127.0.0.2"), backlog)) {
+            InetAddress[] addresses = {blackhole.getInetAddress(), blackhole.getInetAddress()};
+            long start = System.nanoTime();
+            assertThrows(SocketTimeoutException.class, () -> HappyEyeballsConnector.connect(addresses, blackhole.getLocalPort(), 400, false, SocketOptions.defaults(), EgressPool.NONE, null));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        } finally {
+            for (Socket socket : backlog) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void connects_to_ipv6_destinations() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (ServerSocket target = new ServerSocket(0, 50, InetAddress.getByName("::1"));
+             Socket socket = new Socket(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(InetAddress.getLoopbackAddress(), port)))) {
+            socket.connect(target.getLocalSocketAddress());
+            try (Socket accepted = target.accept()) {
+                accepted.getOutputStream().write(42);
+                assertEquals(42, socket.getInputStream().read());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return A listening socket that silently drops new connection attempts, because its accept queue is full.
+     */
+    private static ServerSocket blackhole(InetAddress address, List<Socket> backlog) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 1, address);
+        for (int i = 0; i < 4; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(serverSocket.getLocalSocketAddress(), 200);
+                backlog.add(socket);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                return serverSocket;
+            }
+        }
+        throw new IllegalStateException("Accept queue doesn't fill up");
+    }
+}
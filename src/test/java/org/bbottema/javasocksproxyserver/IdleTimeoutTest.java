@@ -0,0 +1,187 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IdleTimeoutTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void timer_wheel_fires_after_the_deadline_also_beyond_one_round() throws Exception {
+        TimerWheel wheel = new TimerWheel(TICK, 8, "test-wheel");
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicInteger firings = new AtomicInteger();
+        long start = System.nanoTime();
+        TimerWheel.Timeout timeout = new TimerWheel.Timeout() {
+            @Override
+            void expired(long nowNanos) {
+                firings.incrementAndGet();
+                fired.countDown();
+            }
+        };
+
+        wheel.schedule(timeout, start + TimeUnit.MILLISECONDS.toNanos(250)); // more than three rounds of 80 ms
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+
+        wheel.schedule(timeout, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        timeout.cancel();
+        wheel.schedule(new TimerWheel.Timeout() {
+            @Override
+            void expired(long nowNanos) {
+            }
+        }, System.nanoTime());
+        Thread.sleep(200);
+        assertEquals(1, firings.get());
+    }
+
+    @Test
+    public void timer_wheel_fires_the_rest_of_a_slot_after_a_timeout_fails() throws Exception {
+        TimerWheel wheel = new TimerWheel(TICK, 512, "test-wheel"); // a round takes over 5 seconds
+        CountDownLatch fired = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        wheel.schedule(new TimerWheel.Timeout() {
+            @Override
+            void expired(long nowNanos) {
+                fired.countDown();
+            }
+        }, deadline);
+        // expires first, being linked last
+        wheel.schedule(new TimerWheel.Timeout() {
+            @Override
+            void expired(long nowNanos) {
+                throw new IllegalStateException("failing timeout");
+            }
+        }, deadline);
+
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closes_stalled_handshakes() throws Exception {
+        SyncSocksServer server = new SyncSocksServer().setIdleTimeouts(IdleTimeouts.none().withHandshake(200));
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(3000);
+            socket.getOutputStream().write(new byte[]{5, 1}); // trickle part of the greeting, then stall
+            assertEquals(-1, socket.getInputStream().read());
+            awaitNoActiveConnections(server.getMetrics());
+            assertEquals(1, server.getMetrics().getHandshakesTimedOut());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void handshake_timeout_does_not_cover_waiting_for_the_bind_peer() throws Exception {
+        SyncSocksServer server = new SyncSocksServer()
+                .setBindAddress(InetAddress.getLoopbackAddress())
+                .setIdleTimeouts(IdleTimeouts.none().withHandshake(200));
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            client.setSoTimeout(3000);
+            client.getOutputStream().write(new byte[]{4, SocksConstants.SC_BIND, 0, 21, 127, 0, 0, 1, 'i', 'd', 0});
+            InputStream in = client.getInputStream();
+            byte[] first = new byte[8];
+            for (int i = 0; i < first.length; i++) {
+                first[i] = (byte) in.read();
+            }
+            assertEquals(90, first[1]);
+
+            // the peer takes well over the handshake timeout to connect back
+            Thread.sleep(500);
+            try (Socket incoming = new Socket(InetAddress.getLoopbackAddress(), ((first[2] & 0xFF) << 8) | (first[3] & 0xFF))) {
+                assertEquals(0, in.read());
+                assertEquals(90, in.read());
+                assertEquals(incoming.getLocalPort() >> 8, in.read());
+            }
+            assertEquals(0, server.getMetrics().getHandshakesTimedOut());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void closes_idle_tunnels_relayed_by_polling() throws Exception {
+        assertIdleTunnelClosed(new SyncSocksServer());
+    }
+
+    @Test
+    public void closes_idle_tunnels_relayed_by_nio_engine() throws Exception {
+        try (NioRelayEngine engine = new NioRelayEngine(1)) {
+            assertIdleTunnelClosed(new SyncSocksServer().setRelayEngine(engine));
+        }
+    }
+
+    @Test
+    public void closes_idle_udp_associations() throws Exception {
+        SyncSocksServer server = new SyncSocksServer().setIdleTimeouts(IdleTimeouts.none().withUdpAssociation(300));
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (Socket control = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            control.setSoTimeout(3000);
+            control.getOutputStream().write(new byte[]{5, 1, 0, 5, SocksConstants.SC_UDP, 0, 1, 0, 0, 0, 0, 0, 0});
+            InputStream in = control.getInputStream();
+            for (int i = 0; i < 12; i++) {
+                assertTrue(in.read() >= 0);
+            }
+            assertEquals(-1, in.read());
+            awaitNoActiveConnections(server.getMetrics());
+            assertEquals(1, server.getMetrics().getUdpAssociationsTimedOut());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void assertIdleTunnelClosed(SyncSocksServer server) throws Exception {
+        server.setIdleTimeouts(IdleTimeouts.none().withTunnel(300));
+        try (LoopbackEcho echo = new LoopbackEcho()) {
+            int port = Utils.getFreePort();
+            server.start(port);
+            try {
+                Socket socket = echo.openTunnel(port);
+                socket.setSoTimeout(3000);
+                // traffic keeps the tunnel alive well past the timeout
+                for (int i = 0; i < 6; i++) {
+                    socket.getOutputStream().write(i);
+                    assertEquals(i, socket.getInputStream().read());
+                    Thread.sleep(100);
+                }
+                assertEquals(0, server.getMetrics().getTunnelsTimedOut());
+
+                // the last traffic was a sleep ago
+                long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(100);
+                assertEquals(-1, socket.getInputStream().read());
+                assertTrue(System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(250));
+                awaitNoActiveConnections(server.getMetrics());
+                assertEquals(1, server.getMetrics().getTunnelsTimedOut());
+                // the destination side was closed as well
+                for (int i = 0; i < 100 && echo.connections() > 0; i++) {
+                    Thread.sleep(20);
+                }
+                assertEquals(0, echo.connections());
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private static void awaitNoActiveConnections(SocksMetrics metrics) throws InterruptedException {
+        for (int i = 0; i < 100 && metrics.getConnectionsActive() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, metrics.getConnectionsActive());
+    }
+}
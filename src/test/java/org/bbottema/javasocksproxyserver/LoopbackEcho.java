@@ -0,0 +1,129 @@
+package org.bbottema.javasocksproxyserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP echo server on loopback for tests, keeping track of the SOCKS tunnels opened through a proxy so {@link #close()} closes
+ * them along with the server.
+ */
+public final class LoopbackEcho implements Closeable {
+
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> tunnels = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    LoopbackEcho() throws IOException {
+        serverSocket = new ServerSocket(0, 100, LOOPBACK);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread echo = new Thread(() -> {
+                        try {
+                            echo(socket);
+                        } finally {
+                            connections.decrementAndGet();
+                        }
+                    });
+                    echo.setDaemon(true);
+                    echo.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    InetSocketAddress address() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return A tunnel to this echo server through the SOCKS proxy on the given loopback port.
+     */
+    Socket openTunnel(int proxyPort) throws IOException {
+        return openTunnel(proxyPort, address());
+    }
+
+    /**
+     * @return A tunnel to the destination through the SOCKS proxy on the given loopback port, with a read timeout of 5 seconds.
+     */
+    Socket openTunnel(int proxyPort, InetSocketAddress destination) throws IOException {
+        Socket socket = new Socket(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(LOOPBACK, proxyPort)));
+        tunnels.add(socket);
+        socket.setSoTimeout(5000);
+        socket.connect(destination);
+        return socket;
+    }
+
+    List<Socket> tunnels() {
+        return tunnels;
+    }
+
+    /**
+     * @return The number of connections the echo server is still serving, which end once the other side closed them.
+     */
+    int connections() {
+        return connections.get();
+    }
+
+    /**
+     * Waits up to 5 seconds for an asynchronously started server to listen on the given loopback port.
+     */
+    public static void awaitListening(int port) throws IOException, InterruptedException {
+        for (int i = 0; i < 250; i++) {
+            Socket probe = new Socket();
+            try {
+                probe.connect(new InetSocketAddress(LOOPBACK, port));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            } finally {
+                probe.close();
+            }
+        }
+        throw new IllegalStateException("Nothing listens on loopback port " + port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Socket socket : tunnels) {
+            socket.close();
+        }
+        serverSocket.close();
+    }
+}
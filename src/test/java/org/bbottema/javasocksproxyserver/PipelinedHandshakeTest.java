@@ -0,0 +1,85 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.bbottema.javasocksproxyserver.auth.UsernamePasswordAuthenticator;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ServerSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PipelinedHandshakeTest {
+
+    private static final byte[] EARLY_DATA = "GET / HTTP/1.1\r\n\r\n".getBytes(UTF_8);
+
+    @Test
+    public void socks5_greeting_authentication_request_and_early_data_in_one_segment() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port, ServerSocketFactory.getDefault(), new UsernamePasswordAuthenticator(false) {
+            @Override
+            public boolean validate(String username, String password) {
+                return username.equals("user") && password.equals("secret");
+            }
+        });
+        try (ServerSocket target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            segment.write(new byte[]{5, 1, AuthConstants.TYPE_USER_PASS_AUTH});
+            segment.write(new byte[]{AuthConstants.AUTH_VERSION, 4, 'u', 's', 'e', 'r', 6, 's', 'e', 'c', 'r', 'e', 't'});
+            segment.write(new byte[]{5, SocksConstants.SC_CONNECT, 0, 1, 127, 0, 0, 1, (byte) (target.getLocalPort() >> 8), (byte) target.getLocalPort()});
+            segment.write(EARLY_DATA);
+            client.getOutputStream().write(segment.toByteArray());
+
+            InputStream in = client.getInputStream();
+            assertArrayEquals(new byte[]{5, AuthConstants.TYPE_USER_PASS_AUTH}, readFully(in, 2));
+            assertArrayEquals(new byte[]{AuthConstants.AUTH_VERSION, 0}, readFully(in, 2));
+            assertEquals(0, readFully(in, 10)[1]);
+            try (Socket accepted = target.accept()) {
+                assertArrayEquals(EARLY_DATA, readFully(accepted.getInputStream(), EARLY_DATA.length));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void socks4_request_and_early_data_in_one_segment() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (ServerSocket target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            segment.write(new byte[]{4, SocksConstants.SC_CONNECT, (byte) (target.getLocalPort() >> 8), (byte) target.getLocalPort(), 127, 0, 0, 1, 'i', 'd', 0});
+            segment.write(EARLY_DATA);
+            client.getOutputStream().write(segment.toByteArray());
+
+            assertEquals(90, readFully(client.getInputStream(), 8)[1]);
+            try (Socket accepted = target.accept()) {
+                assertArrayEquals(EARLY_DATA, readFully(accepted.getInputStream(), EARLY_DATA.length));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,111 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.bbottema.javasocksproxyserver.auth.DefaultAuthenticator;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Guards against per-chunk garbage (eager log formatting, reverse lookups and the like) creeping back into the relay.
+ */
+public class RelayAllocationTest {
+
+    private static final int CHUNKS = 50_000;
+    private static final int CHUNK_SIZE = 512;
+
+    @Test
+    public void relaying_a_chunk_does_not_allocate() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        relayChunks(null); // warm up class loading and the JIT
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        relayChunks(null);
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        // the tunnel's own setup and teardown allocates a few KB, garbage per chunk would add up to megabytes
+        assertTrue(allocated < CHUNKS, "allocated " + allocated + " bytes relaying " + CHUNKS + " chunks");
+    }
+
+    @Test
+    public void reporting_relayed_bytes_to_listeners_does_not_allocate_per_chunk() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] reported = new long[1];
+        ConnectionListener listener = new ConnectionListener() {
+            @Override
+            public void bytesRelayed(long sessionId, long clientToServer, long serverToClient) {
+                reported[0] += clientToServer;
+            }
+        };
+        relayChunks(listener);
+
+        reported[0] = 0;
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        relayChunks(listener);
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertTrue(reported[0] >= (long) CHUNKS * CHUNK_SIZE - ConnectionListener.BYTES_BATCH, "reported " + reported[0] + " bytes");
+        assertTrue(allocated < CHUNKS, "allocated " + allocated + " bytes relaying " + CHUNKS + " chunks");
+    }
+
+    /**
+     * Relays from client to server on the current thread, while the server side stays silent.
+     */
+    private static void relayChunks(ConnectionListener connectionListener) throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+             Socket proxyClientSide = listener.accept();
+             Socket proxyServerSide = new Socket(listener.getInetAddress(), listener.getLocalPort());
+             Socket server = listener.accept()) {
+            ServerContext context = new ServerContext(new DefaultAuthenticator());
+            context.fullDuplexRelay = true;
+            context.connectionListener = connectionListener;
+            ProxyHandler handler = new ProxyHandler(proxyClientSide, context);
+            handler.m_ServerSocket = proxyServerSide;
+            handler.m_Buffer = new byte[CHUNK_SIZE];
+            handler.prepareClient();
+            handler.prepareServer();
+
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = client.getOutputStream();
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    for (int i = 0; i < CHUNKS; i++) {
+                        out.write(chunk);
+                    }
+                    client.shutdownOutput();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            long[] received = new long[1];
+            Thread sink = new Thread(() -> {
+                try {
+                    InputStream in = server.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    int len;
+                    while ((len = in.read(buffer)) >= 0) {
+                        received[0] += len;
+                    }
+                    server.shutdownOutput();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            sink.start();
+            handler.relayFullDuplex();
+            writer.join();
+            sink.join();
+            assertEquals((long) CHUNKS * CHUNK_SIZE, received[0]);
+        }
+    }
+}
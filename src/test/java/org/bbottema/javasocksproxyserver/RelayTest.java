@@ -0,0 +1,94 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RelayTest {
+
+    private static final byte[] PAYLOAD = new byte[1024 * 1024];
+
+    static {
+        new Random(42).nextBytes(PAYLOAD);
+    }
+
+    @Test
+    public void nio_engine_relays_bulk_data_both_ways_and_propagates_half_close() throws Exception {
+        try (NioRelayEngine engine = new NioRelayEngine(1)) {
+            assertEchoedThroughProxy(new SyncSocksServer().setRelayEngine(engine));
+        }
+    }
+
+    @Test
+    public void nio_engine_recycles_buffers_through_its_event_loop_thread_cache() throws Exception {
+        BufferPool pool = new BufferPool(8192, 16, false);
+        try (NioRelayEngine engine = new NioRelayEngine(1, pool)) {
+            for (int i = 0; i < 5; i++) {
+                assertEchoedThroughProxy(new SyncSocksServer().setRelayEngine(engine));
+                for (int wait = 0; pool.getStats().getOutstanding() > 0 && wait < 500; wait++) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, pool.getStats().getOutstanding());
+            }
+        }
+        // the event loop acquires and releases every tunnel's buffers, so after a few tunnels they stay in its own cache
+        assertEquals(2, pool.getStats().getMisses());
+        assertEquals(0, pool.getStats().getPooled());
+    }
+
+    @Test
+    public void full_duplex_relay_relays_bulk_data_both_ways_and_propagates_half_close() throws Exception {
+        assertEchoedThroughProxy(new SyncSocksServer().setFullDuplexRelay(true));
+    }
+
+    @Test
+    public void polling_relay_with_small_buffers_and_socket_options_relays_bulk_data() throws Exception {
+        SocketOptions socketOptions = SocketOptions.defaults().withTcpNoDelay(true).withKeepAlive(true).withSendBufferSize(16 * 1024);
+        assertEchoedThroughProxy(new SyncSocksServer().setConfig(ServerConfig.builder()
+                .bufferSize(ServerConfig.MIN_BUFFER_SIZE)
+                .relayPollMillis(5)
+                .clientSocketOptions(socketOptions)
+                .upstreamSocketOptions(socketOptions.withReceiveBufferSize(16 * 1024))
+                .build()));
+    }
+
+    private static void assertEchoedThroughProxy(SyncSocksServer server) throws Exception {
+        try (LoopbackEcho echo = new LoopbackEcho()) {
+            int port = Utils.getFreePort();
+            server.start(port);
+            try {
+                Socket socket = echo.openTunnel(port);
+                Thread writer = new Thread(() -> {
+                    try {
+                        socket.getOutputStream().write(PAYLOAD);
+                        socket.shutdownOutput();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                writer.start();
+                assertArrayEquals(PAYLOAD, readFully(socket.getInputStream()));
+                writer.join();
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) >= 0) {
+            result.write(buffer, 0, len);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,51 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ServerConfigTest {
+
+    @Test
+    public void defaults_are_the_socks_constants() {
+        ServerConfig config = ServerConfig.defaults();
+        assertEquals(SocksConstants.DEFAULT_BUF_SIZE, config.getBufferSize());
+        assertEquals(SocksConstants.LISTEN_TIMEOUT, config.getAcceptPollMillis());
+        assertEquals(SocksConstants.DEFAULT_PROXY_TIMEOUT, config.getRelayPollMillis());
+        assertEquals(SocksConstants.DEFAULT_CONNECT_TIMEOUT, config.getConnectTimeoutMillis());
+        assertEquals(SocksConstants.DEFAULT_LISTEN_BACKLOG, config.getListenBacklog());
+        assertTrue(config.getIdleTimeouts().isDisabled());
+        assertTrue(config.getClientSocketOptions().isDefaults());
+        assertTrue(config.getUpstreamSocketOptions().isDefaults());
+    }
+
+    @Test
+    public void single_setters_keep_the_rest_of_the_config() {
+        ServerConfig config = ServerConfig.builder().bufferSize(8192).listenBacklog(1024).build();
+        SocksServer server = new SocksServer(0).setConfig(config).setConnectTimeout(500);
+        assertEquals(config.toBuilder().connectTimeoutMillis(500).build(), server.getConfig());
+        assertEquals(config, config.toBuilder().build());
+    }
+
+    @Test
+    public void invalid_values_are_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.builder().bufferSize(ServerConfig.MIN_BUFFER_SIZE - 1).build());
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.builder().relayPollMillis(0).build());
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.builder().connectTimeoutMillis(-1).build());
+        assertThrows(IllegalArgumentException.class, () -> SocketOptions.defaults().withLinger(-1));
+    }
+
+    @Test
+    public void socket_options_are_applied() throws Exception {
+        try (Socket socket = new Socket()) {
+            SocketOptions.defaults().withTcpNoDelay(true).withKeepAlive(true).withLinger(0).applyTo(socket);
+            assertTrue(socket.getTcpNoDelay());
+            assertTrue(socket.getKeepAlive());
+            assertEquals(0, socket.getSoLinger());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionTest {
+
+    private LoopbackEcho echo;
+
+    @BeforeEach
+    public void startEchoServer() throws IOException {
+        echo = new LoopbackEcho();
+    }
+
+    @AfterEach
+    public void closeEchoServer() throws IOException {
+        echo.close();
+    }
+
+    @Test
+    public void lists_live_sessions_and_closes_them_selectively() throws Exception {
+        int port = Utils.getFreePort();
+        SocksServer server = new SocksServer(port).start();
+        LoopbackEcho.awaitListening(port);
+        try {
+            Instant before = Instant.now().minusSeconds(1);
+            Socket byName = echo.openTunnel(port, InetSocketAddress.createUnresolved("localhost", echo.port()));
+            Socket byAddress = echo.openTunnel(port);
+            byName.getOutputStream().write(new byte[]{1, 2, 3});
+            assertEquals(3, byName.getInputStream().read(new byte[3]));
+            await(() -> server.getSessions().stream().anyMatch(session -> session.getBytesServerToClient() == 3));
+
+            List<Session> sessions = tunnels(server.getSessions());
+            assertEquals(2, sessions.size());
+            Session named = sessions.stream().filter(session -> session.getDestinationHost() != null).findFirst().get();
+            assertEquals("localhost", named.getDestinationHost());
+            assertEquals(echo.port(), named.getDestinationPort());
+            assertEquals(5, named.getSocksVersion());
+            assertEquals("CONNECT", named.getCommand());
+            assertNull(named.getUser());
+            assertEquals(byName.getLocalPort(), named.getClient().getPort());
+            assertEquals(3, named.getBytesClientToServer());
+            assertEquals(3, named.getBytesServerToClient());
+            assertTrue(!named.getStartTime().isBefore(before) && !named.getStartTime().isAfter(Instant.now()));
+
+            assertEquals(1, server.closeSessions(session -> "localhost".equals(session.getDestinationHost())));
+            assertEquals(-1, byName.getInputStream().read());
+            await(() -> tunnels(server.getSessions()).size() == 1);
+
+            byAddress.getOutputStream().write(7);
+            assertEquals(7, byAddress.getInputStream().read());
+            Session remaining = tunnels(server.getSessions()).get(0);
+            assertEquals(echo.address().getAddress(), remaining.getDestinationAddress());
+            assertFalse(server.closeSession(remaining.getId() + 1000));
+            assertTrue(server.closeSession(remaining.getId()));
+            assertEquals(-1, byAddress.getInputStream().read());
+            await(() -> server.getSessions().isEmpty());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void forgets_sessions_and_client_threads_once_they_end() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        try {
+            for (int i = 0; i < 50; i++) {
+                Socket socket = echo.openTunnel(port);
+                socket.getOutputStream().write(i);
+                assertEquals(i, socket.getInputStream().read());
+                socket.close();
+            }
+            Socket open = echo.openTunnel(port);
+            await(() -> server.getSessions().size() == 1);
+            assertEquals(1, server.closeSessions(session -> true));
+            assertEquals(-1, open.getInputStream().read());
+            await(() -> server.getSessions().isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
+    // leaves out the connections probing whether the server listens
+    private static List<Session> tunnels(List<Session> sessions) {
+        return sessions.stream().filter(session -> session.getCommand() != null).collect(Collectors.toList());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 250 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,62 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SocksMetricsTest {
+
+    @Test
+    public void counts_connections_bytes_and_refusals() throws Exception {
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        try (ServerSocket target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            try (Socket socket = new Socket(proxy)) {
+                socket.connect(target.getLocalSocketAddress());
+                try (Socket accepted = target.accept()) {
+                    socket.getOutputStream().write(new byte[10]);
+                    assertEquals(10, accepted.getInputStream().read(new byte[10]));
+                }
+            }
+            int closedPort = Utils.getFreePort();
+            assertThrows(IOException.class, () -> new Socket(proxy).connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), closedPort)));
+
+            SocksMetrics metrics = server.getMetrics();
+            awaitNoActiveConnections(metrics);
+            SocksMetrics.Snapshot snapshot = metrics.snapshot();
+            assertEquals(2, snapshot.getConnectionsAccepted());
+            assertEquals(2L, snapshot.getCommandsTotal().get("SOCKS5 CONNECT"));
+            assertEquals(0L, snapshot.getCommandsActive().get("SOCKS5 CONNECT"));
+            assertEquals(10, snapshot.getBytesClientToServer());
+            assertEquals(1L, snapshot.getHandshakeFailures().get("4 HOST Unreachable"));
+
+            ObjectName name = metrics.registerMBean("metrics-test");
+            try {
+                assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ConnectionsAccepted"));
+            } finally {
+                metrics.unregisterMBean();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void awaitNoActiveConnections(SocksMetrics metrics) throws InterruptedException {
+        for (int i = 0; i < 100 && metrics.getConnectionsActive() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, metrics.getConnectionsActive());
+    }
+}
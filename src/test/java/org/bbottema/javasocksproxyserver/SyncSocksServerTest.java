@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.net.Socket;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -20,6 +21,17 @@ public class SyncSocksServerTest {
         server.stop();
     }
 
+    @Test
+    public void close_timeout_comes_from_the_config() {
+        SyncSocksServer server = new SyncSocksServer(1, 100, 1);
+        assertEquals(1, server.getConfig().getCloseTimeoutMillis());
+        server.setConfig(ServerConfig.builder().closeTimeoutMillis(50).build());
+        int port = Utils.getFreePort();
+        server.start(port);
+        assertTrue(server.stop(0));
+        assertEquals(SocksConstants.DEFAULT_CLOSE_TIMEOUT, new SyncSocksServer().getConfig().getCloseTimeoutMillis());
+    }
+
     @Test
     public void cant_start_on_the_same_port() {
         SyncSocksServer server = new SyncSocksServer();
@@ -0,0 +1,160 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class UdpAssociateTest {
+
+    private static final byte[] PAYLOAD = {'p', 'i', 'n', 'g'};
+
+    @Test
+    public void relays_datagrams_and_ends_with_the_control_connection() throws Exception {
+        assertRelaysDatagrams(new SyncSocksServer());
+    }
+
+    @Test
+    public void relays_datagrams_with_a_channel_backed_control_connection() throws Exception {
+        try (NioRelayEngine engine = new NioRelayEngine(1)) {
+            assertRelaysDatagrams(new SyncSocksServer().setRelayEngine(engine));
+        }
+    }
+
+    @Test
+    public void relays_the_largest_datagrams_the_buffer_allows_whole() throws Exception {
+        // the relay receives into one buffer, after room for the reply header, and the request brings an IPv4 header
+        byte[] payload = new byte[ServerConfig.defaults().getBufferSize() - UdpHeaderCodec.HEADER_ROOM - 10];
+        Arrays.fill(payload, (byte) 'x');
+        assertRelaysDatagrams(new SyncSocksServer(), payload);
+    }
+
+    @Test
+    public void treats_a_peer_on_the_clients_host_as_remote() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        SyncSocksServer server = new SyncSocksServer();
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (DatagramSocket peer = new DatagramSocket(0, loopback);
+             DatagramSocket client = new DatagramSocket(0, loopback);
+             Socket control = new Socket(loopback, port)) {
+            peer.setSoTimeout(2000);
+            client.setSoTimeout(2000);
+            control.getOutputStream().write(new byte[]{5, 1, 0, 5, SocksConstants.SC_UDP, 0, 1, 0, 0, 0, 0, 0, 0});
+            byte[] replies = readFully(control.getInputStream(), 12);
+            assertEquals(0, replies[3]);
+            int relayPort = Utils.calcPort(replies[10], replies[11]);
+
+            byte[] header = new byte[10];
+            header[3] = 1;
+            System.arraycopy(loopback.getAddress(), 0, header, 4, 4);
+            header[8] = (byte) (peer.getLocalPort() >> 8);
+            header[9] = (byte) peer.getLocalPort();
+            byte[] request = Arrays.copyOf(header, 10 + PAYLOAD.length);
+            System.arraycopy(PAYLOAD, 0, request, 10, PAYLOAD.length);
+            client.send(new DatagramPacket(request, request.length, loopback, relayPort));
+
+            DatagramPacket received = new DatagramPacket(new byte[1024], 1024);
+            peer.receive(received);
+            assertArrayEquals(PAYLOAD, Arrays.copyOf(received.getData(), received.getLength()));
+
+            // same host as the client, but not its port: relayed to the client with the peer's address in the header
+            byte[] answer = {'p', 'o', 'n', 'g'};
+            peer.send(new DatagramPacket(answer, answer.length, received.getSocketAddress()));
+            DatagramPacket response = new DatagramPacket(new byte[1024], 1024);
+            client.receive(response);
+            byte[] expected = Arrays.copyOf(header, 10 + answer.length);
+            System.arraycopy(answer, 0, expected, 10, answer.length);
+            assertArrayEquals(expected, Arrays.copyOf(response.getData(), response.getLength()));
+
+            control.close();
+            awaitNoActiveConnections(server.getMetrics());
+            assertEquals(1, server.getMetrics().getUdpDatagramsClientToRemote());
+            assertEquals(1, server.getMetrics().getUdpDatagramsRemoteToClient());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void assertRelaysDatagrams(SyncSocksServer server) throws Exception {
+        assertRelaysDatagrams(server, PAYLOAD);
+    }
+
+    private static void assertRelaysDatagrams(SyncSocksServer server, byte[] payload) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        int port = Utils.getFreePort();
+        server.start(port);
+        try (DatagramSocket echo = new DatagramSocket(0, loopback);
+             DatagramSocket client = new DatagramSocket(0, loopback)) {
+            startEcho(echo);
+            client.setSoTimeout(2000);
+            try (Socket control = new Socket(loopback, port)) {
+                control.getOutputStream().write(new byte[]{5, 1, 0, 5, SocksConstants.SC_UDP, 0, 1, 0, 0, 0, 0, 0, 0});
+                byte[] replies = readFully(control.getInputStream(), 12);
+                assertEquals(0, replies[3]);
+                int relayPort = Utils.calcPort(replies[10], replies[11]);
+
+                byte[] datagram = new byte[10 + payload.length];
+                datagram[3] = 1;
+                System.arraycopy(loopback.getAddress(), 0, datagram, 4, 4);
+                datagram[8] = (byte) (echo.getLocalPort() >> 8);
+                datagram[9] = (byte) echo.getLocalPort();
+                System.arraycopy(payload, 0, datagram, 10, payload.length);
+                for (int i = 0; i < 3; i++) {
+                    client.send(new DatagramPacket(datagram, datagram.length, loopback, relayPort));
+                    DatagramPacket response = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+                    client.receive(response);
+                    assertArrayEquals(datagram, Arrays.copyOf(response.getData(), response.getLength()));
+                }
+            }
+            awaitNoActiveConnections(server.getMetrics());
+            assertEquals(3, server.getMetrics().getUdpDatagramsRemoteToClient());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void startEcho(DatagramSocket echo) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    echo.receive(packet);
+                    echo.send(packet);
+                }
+            } catch (Exception e) {
+                // closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void awaitNoActiveConnections(SocksMetrics metrics) throws InterruptedException {
+        for (int i = 0; i < 100 && metrics.getConnectionsActive() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, metrics.getConnectionsActive());
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,58 @@
+package org.bbottema.javasocksproxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UdpHeaderCodecTest {
+
+    @Test
+    public void prepends_ipv4_and_ipv6_headers_in_front_of_the_payload() {
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64)}) {
+            buffer.put(UdpHeaderCodec.HEADER_ROOM, (byte) 42);
+
+            int ipv4 = UdpHeaderCodec.writeHeader(buffer, UdpHeaderCodec.HEADER_ROOM, new byte[]{10, 0, 0, 1}, 0x1234);
+            assertEquals(UdpHeaderCodec.HEADER_ROOM - 10, ipv4);
+            assertEquals(UdpHeaderCodec.ATYP_IPV4, buffer.get(ipv4 + 3));
+            assertEquals(10, UdpHeaderCodec.headerLength(buffer, ipv4, 11));
+            assertEquals(0x1234, UdpHeaderCodec.port(buffer, ipv4, 10));
+
+            int ipv6 = UdpHeaderCodec.writeHeader(buffer, UdpHeaderCodec.HEADER_ROOM, new byte[16], 53);
+            assertEquals(0, ipv6);
+            assertEquals(UdpHeaderCodec.ATYP_IPV6, buffer.get(3));
+            assertEquals(22, UdpHeaderCodec.headerLength(buffer, 0, 23));
+            assertEquals(53, UdpHeaderCodec.port(buffer, 0, 22));
+
+            assertEquals(42, buffer.get(UdpHeaderCodec.HEADER_ROOM));
+        }
+    }
+
+    @Test
+    public void decodes_domain_headers() {
+        byte[] host = "example.com".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(new byte[]{0, 0, 0, UdpHeaderCodec.ATYP_DOMAIN, (byte) host.length}).put(host).put(new byte[]{0, 80}).put((byte) 1);
+
+        assertEquals(4 + 1 + host.length + 2, UdpHeaderCodec.headerLength(buffer, 0, buffer.position()));
+        assertEquals(80, UdpHeaderCodec.port(buffer, 0, 4 + 1 + host.length + 2));
+        assertTrue(UdpHeaderCodec.regionMatches(buffer, 5, host, host.length));
+    }
+
+    @Test
+    public void rejects_truncated_fragmented_and_unknown_headers() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        UdpHeaderCodec.writeHeader(buffer, 10, new byte[]{10, 0, 0, 1}, 80);
+
+        assertEquals(-1, UdpHeaderCodec.headerLength(buffer, 0, 9));
+        buffer.put(2, (byte) 1);
+        assertEquals(-1, UdpHeaderCodec.headerLength(buffer, 0, 10));
+        buffer.put(2, (byte) 0).put(3, (byte) 2);
+        assertEquals(-1, UdpHeaderCodec.headerLength(buffer, 0, 10));
+        buffer.put(3, UdpHeaderCodec.ATYP_DOMAIN).put(4, (byte) 200);
+        assertEquals(-1, UdpHeaderCodec.headerLength(buffer, 0, 64));
+    }
+}
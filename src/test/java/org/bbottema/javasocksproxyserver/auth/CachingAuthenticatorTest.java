@@ -0,0 +1,116 @@
+package org.bbottema.javasocksproxyserver.auth;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CachingAuthenticatorTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger checks = new AtomicInteger();
+    private final Map<String, String> passwords = new HashMap<>();
+
+    private final Authenticator backend = new AsyncUsernamePasswordAuthenticator(false) {
+        @NotNull
+        @Override
+        public CompletionStage<Boolean> validateAsync(String username, String password) {
+            checks.incrementAndGet();
+            return CompletableFuture.completedFuture(password.equals(passwords.get(username)));
+        }
+    };
+
+    @Test
+    public void caches_successful_verifications_until_ttl_expires() {
+        passwords.put("alice", "secret");
+        CachingAuthenticator authenticator = new CachingAuthenticator(backend, 10, 1000, clock::get);
+
+        assertTrue(validate(authenticator, "alice", "secret"));
+        assertTrue(validate(authenticator, "alice", "secret"));
+        assertTrue(authenticator.validate(bytes("alice"), bytes("secret")));
+        assertEquals(1, checks.get());
+
+        clock.set(1_000_000_000L);
+        assertTrue(validate(authenticator, "alice", "secret"));
+        assertEquals(2, checks.get());
+    }
+
+    @Test
+    public void does_not_cache_failures_or_confuse_credentials() {
+        passwords.put("alice", "secret");
+        CachingAuthenticator authenticator = new CachingAuthenticator(backend, 10, 1000, clock::get);
+
+        assertFalse(validate(authenticator, "alice", "wrong"));
+        assertFalse(validate(authenticator, "alice", "wrong"));
+        assertEquals(2, checks.get());
+
+        assertTrue(validate(authenticator, "alice", "secret"));
+        assertFalse(validate(authenticator, "alices", "ecret"));
+        assertEquals(4, checks.get());
+    }
+
+    @Test
+    public void evicts_least_recently_used_credentials_and_supports_invalidation() {
+        passwords.put("a", "1");
+        passwords.put("b", "2");
+        passwords.put("c", "3");
+        CachingAuthenticator authenticator = new CachingAuthenticator(backend, 2, 1000, clock::get);
+
+        validate(authenticator, "a", "1");
+        validate(authenticator, "b", "2");
+        validate(authenticator, "a", "1");
+        validate(authenticator, "c", "3"); // evicts b
+        assertEquals(3, checks.get());
+        validate(authenticator, "a", "1");
+        assertEquals(3, checks.get());
+        validate(authenticator, "b", "2");
+        assertEquals(4, checks.get());
+
+        // a password change: the old password must not be accepted from the cache anymore
+        passwords.put("b", "new");
+        authenticator.invalidate("b");
+        assertFalse(validate(authenticator, "b", "2"));
+        assertEquals(1, authenticator.size());
+
+        authenticator.invalidateAll();
+        assertEquals(0, authenticator.size());
+    }
+
+    @Test
+    public void does_not_cache_verifications_that_were_running_during_an_invalidation() {
+        CompletableFuture<Boolean> slowCheck = new CompletableFuture<>();
+        CachingAuthenticator authenticator = new CachingAuthenticator(new AsyncUsernamePasswordAuthenticator(false) {
+            @NotNull
+            @Override
+            public CompletionStage<Boolean> validateAsync(String username, String password) {
+                checks.incrementAndGet();
+                return slowCheck;
+            }
+        }, 10, 1000, clock::get);
+
+        CompletableFuture<Boolean> running = authenticator.validateAsync(bytes("alice"), bytes("old")).toCompletableFuture();
+        // the password changes while the old one is still being checked
+        authenticator.invalidate("alice");
+        slowCheck.complete(true);
+        assertTrue(running.join());
+        assertEquals(0, authenticator.size());
+    }
+
+    private static boolean validate(Authenticator authenticator, String username, String password) {
+        return authenticator.validateAsync(bytes(username), bytes(password)).toCompletableFuture().join();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,112 @@
+package org.bbottema.javasocksproxyserver.dns;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CachingHostResolverTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger queries = new AtomicInteger();
+    private CompletableFuture<InetAddress[]> pendingQuery = new CompletableFuture<>();
+
+    private final HostResolver stub = host -> {
+        queries.incrementAndGet();
+        return pendingQuery;
+    };
+
+    @Test
+    public void coalesces_concurrent_lookups_and_caches_until_ttl_expires() throws Exception {
+        CachingHostResolver resolver = new CachingHostResolver(stub, 10, 1000, 100, clock::get);
+        InetAddress[] addresses = {InetAddress.getLoopbackAddress()};
+
+        CompletableFuture<InetAddress[]> first = resolver.resolve("example.org");
+        CompletableFuture<InetAddress[]> second = resolver.resolve("EXAMPLE.org");
+        assertEquals(1, queries.get());
+
+        pendingQuery.complete(addresses);
+        assertArrayEquals(addresses, first.get());
+        assertArrayEquals(addresses, second.get());
+
+        clock.set(999_999_999L);
+        assertArrayEquals(addresses, resolver.resolve("example.org").get());
+        assertEquals(1, queries.get());
+
+        clock.set(1_000_000_000L);
+        pendingQuery = new CompletableFuture<>();
+        resolver.resolve("example.org");
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void callers_cannot_tamper_with_the_cached_outcome() throws Exception {
+        CachingHostResolver resolver = new CachingHostResolver(stub, 10, 1000, 100, clock::get);
+        InetAddress[] addresses = {InetAddress.getLoopbackAddress()};
+
+        resolver.resolve("example.org").cancel(false);
+        resolver.resolve("example.org").complete(new InetAddress[0]);
+        pendingQuery.complete(addresses);
+        assertArrayEquals(addresses, resolver.resolve("example.org").get());
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void caches_delegates_throwing_right_away_as_failures() {
+        AtomicInteger throwing = new AtomicInteger();
+        CachingHostResolver resolver = new CachingHostResolver(host -> {
+            throwing.incrementAndGet();
+            throw new IllegalStateException("resolver down");
+        }, 10, 1000, 100, clock::get);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> resolver.resolve("example.org").get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertThrows(ExecutionException.class, () -> resolver.resolve("example.org").get(1, TimeUnit.SECONDS));
+        assertEquals(1, throwing.get());
+    }
+
+    @Test
+    public void caches_failures_for_the_negative_ttl() {
+        CachingHostResolver resolver = new CachingHostResolver(stub, 10, 1000, 100, clock::get);
+        pendingQuery.completeExceptionally(new UnknownHostException("nope.invalid"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> resolver.resolve("nope.invalid").get());
+        assertTrue(e.getCause() instanceof UnknownHostException);
+        resolver.resolve("nope.invalid");
+        assertEquals(1, queries.get());
+
+        clock.set(100_000_000L);
+        resolver.resolve("nope.invalid");
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void evicts_least_recently_used_hosts_and_supports_invalidation() {
+        CachingHostResolver resolver = new CachingHostResolver(stub, 2, 1000, 100, clock::get);
+        pendingQuery.complete(new InetAddress[]{InetAddress.getLoopbackAddress()});
+
+        resolver.resolve("a");
+        resolver.resolve("b");
+        resolver.resolve("a");
+        resolver.resolve("c"); // evicts b
+        assertEquals(3, queries.get());
+        resolver.resolve("a");
+        assertEquals(3, queries.get());
+        resolver.resolve("b");
+        assertEquals(4, queries.get());
+
+        resolver.invalidate("b");
+        resolver.resolve("b");
+        assertEquals(5, queries.get());
+    }
+}